@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import featuredetector.spotdetector.LoGSpotDetector2D;
+import featuredetector.spotdetector.NoFilterDetector2D;
+import featuredetector.spotdetector.SpotDetectorCommon;
+import featureobjects.Feature;
+import featureobjects.ParentFeature;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of the spot detectors on a single cell covering a
+ * synthetic image, for several image sizes, spot densities and both
+ * segmentation methods. Run with the gc profiler (the default of the
+ * "benchmark" target) to see the allocation rate.
+ *
+ * The detectors only read the image, so the same image is used for every
+ * call.
+ *
+ * @author mqbssep5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpotDetectionBenchmark {
+
+    /**
+     * The width and height of the image.
+     */
+    @Param({"64", "256", "1024"})
+    public int size;
+
+    /**
+     * The number of spots per 10000 pixels.
+     */
+    @Param({"5", "50"})
+    public double density;
+
+    @Param({"CONNECTED_COMPONENT", "WATERSHED"})
+    public String segmentation;
+
+    /**
+     * The standard deviation of the spots, and of the LoG filter.
+     */
+    private static final double SPOT_SIGMA = 1.5;
+
+    /**
+     * Detects the synthetic spots in the LoG filtered image.
+     */
+    private static final double LOG_THRESHOLD = 20;
+
+    /**
+     * Detects the synthetic spots in the raw image.
+     */
+    private static final double RAW_THRESHOLD = SyntheticImages.BACKGROUND + SyntheticImages.SPOT_AMPLITUDE / 4;
+
+    private ImageProcessor ip;
+
+    private ParentFeature cell;
+
+    private int segmentationMethod;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ip = SyntheticImages.spotImage(size, size, SyntheticImages.spotsForDensity(size, size, density), SPOT_SIGMA, 42);
+        cell = SyntheticImages.wholeImageCell(size, size, 1);
+        segmentationMethod = segmentation.equals("WATERSHED")
+                ? SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION
+                : SpotDetectorCommon.CONNECTED_COMPONENT_SEGMENTATION;
+    }
+
+    @Benchmark
+    public ArrayList<Feature> logDetector() {
+        int rad = (int) Math.max(Math.ceil(SPOT_SIGMA), 1);
+        LoGSpotDetector2D detector = new LoGSpotDetector2D(cell, ip, SPOT_SIGMA, LOG_THRESHOLD, segmentationMethod, rad, 8, 1.0);
+        detector.run();
+        return detector.getFeatures();
+    }
+
+    @Benchmark
+    public ArrayList<Feature> noFilterDetector() {
+        NoFilterDetector2D detector = new NoFilterDetector2D(cell, ip, RAW_THRESHOLD, segmentationMethod, 8, 1.0);
+        detector.run();
+        return detector.getFeatures();
+    }
+
+}
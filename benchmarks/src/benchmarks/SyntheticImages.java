@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import featuredetector.spotdetector.SpotDetectorChannelProcessor;
+import featureobjects.Feature;
+import featureobjects.ParentFeature;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Creates the synthetic images and spots used by the benchmarks, so that they
+ * do not depend on any image files and give the same data every time.
+ *
+ * @author mqbssep5
+ */
+public class SyntheticImages {
+
+    /**
+     * The mean background value of the images.
+     */
+    public static final double BACKGROUND = 100;
+
+    /**
+     * The standard deviation of the Gaussian noise added to the images.
+     */
+    public static final double NOISE = 10;
+
+    /**
+     * The peak value of the spots above the background.
+     */
+    public static final double SPOT_AMPLITUDE = 500;
+
+    /**
+     * Creates a 16-bit image of Gaussian spots placed at random on a noisy
+     * background.
+     *
+     * @param width
+     * @param height
+     * @param nSpots the number of spots.
+     * @param spotSigma the standard deviation of the spots, in pixels.
+     * @param seed the seed of the random positions and noise.
+     * @return the image.
+     */
+    public static ShortProcessor spotImage( int width, int height, int nSpots, double spotSigma, long seed ) {
+        Random random = new Random(seed);
+        float[] values = new float[width * height];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) (BACKGROUND + random.nextGaussian() * NOISE);
+        }
+        int r = (int) Math.ceil(4 * spotSigma);
+        double twoSigmaSq = 2 * spotSigma * spotSigma;
+        for (int s = 0; s < nSpots; s++) {
+            double cx = random.nextDouble() * width;
+            double cy = random.nextDouble() * height;
+            for (int y = Math.max(0, (int) cy - r); y <= Math.min(height - 1, (int) cy + r); y++) {
+                for (int x = Math.max(0, (int) cx - r); x <= Math.min(width - 1, (int) cx + r); x++) {
+                    double d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                    values[y * width + x] += SPOT_AMPLITUDE * Math.exp(-d2 / twoSigmaSq);
+                }
+            }
+        }
+        ShortProcessor sp = new ShortProcessor(width, height);
+        for (int i = 0; i < values.length; i++) {
+            sp.set(i, Math.max(0, Math.min(65535, Math.round(values[i]))));
+        }
+        return sp;
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param density the number of spots per 10000 pixels.
+     * @return the number of spots in an image of the size.
+     */
+    public static int spotsForDensity( int width, int height, double density ) {
+        return (int) Math.round(density * width * height / 10000d);
+    }
+
+    /**
+     * Creates round spot {@link Feature}s placed at random, as found by the
+     * spot detectors, in the coordinates of the cell.
+     *
+     * @param width the width of the cell.
+     * @param height the height of the cell.
+     * @param nSpots the number of spots.
+     * @param radius the radius of the spots, in pixels.
+     * @param seed the seed of the random positions.
+     * @return the spots.
+     */
+    public static ArrayList<Feature> randomSpots( int width, int height, int nSpots, int radius, long seed ) {
+        Random random = new Random(seed);
+        ArrayList<Feature> spots = new ArrayList<>(nSpots);
+        for (int s = 0; s < nSpots; s++) {
+            int x = radius + random.nextInt(Math.max(1, width - 2 * radius));
+            int y = radius + random.nextInt(Math.max(1, height - 2 * radius));
+            OvalRoi oval = new OvalRoi(x - radius, y - radius, 2 * radius + 1, 2 * radius + 1);
+            PolygonRoi outline = new PolygonRoi(oval.getPolygon(), Roi.POLYGON);
+            spots.add(new Feature(s + 1, outline, x, y));
+        }
+        return spots;
+    }
+
+    /**
+     * Creates a cell with random spots in each of its channels, stored as the
+     * spot detectors store them.
+     *
+     * @param width
+     * @param height
+     * @param nChannels
+     * @param nSpots the number of spots in each channel.
+     * @param radius the radius of the spots, in pixels.
+     * @param seed the seed of the random positions.
+     * @return the cell.
+     */
+    public static ParentFeature cellWithSpots( int width, int height, int nChannels, int nSpots, int radius, long seed ) {
+        ParentFeature cell = wholeImageCell(width, height, nChannels);
+        for (int c = 0; c < nChannels; c++) {
+            cell.addFeatures(c, SpotDetectorChannelProcessor.SPOT_FEATURE_NAME, randomSpots(width, height, nSpots, radius, seed + c));
+        }
+        return cell;
+    }
+
+    /**
+     * Creates a cell covering the whole of an image.
+     *
+     * @param width
+     * @param height
+     * @param nChannels
+     * @return the cell.
+     */
+    public static ParentFeature wholeImageCell( int width, int height, int nChannels ) {
+        PolygonRoi roi = new PolygonRoi(new int[]{0, width, width, 0}, new int[]{0, 0, height, height}, 4, Roi.POLYGON);
+        return new ParentFeature(1, nChannels, "synthetic", roi, 1.0);
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package featuredetector.spotdetector;
+
+import benchmarks.SyntheticImages;
+import featureobjects.Feature;
+import featureobjects.ParentFeature;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utilimageprocessor.LoGEngine;
+import utilimageprocessor.PlaneView;
+
+/**
+ * Measures the throughput of the {@link MultiScaleLoGSpotDetector2D}, which
+ * keeps only three levels of the scale space at once, against a detector
+ * which keeps every level, on a single cell covering a synthetic image. Run
+ * with the gc profiler (the default of the "benchmark" target) to see the
+ * allocation rate.
+ *
+ * Before measuring, the setup checks that both give the same response, maxima
+ * across space and scale, segmentation and spots, and fails the trial if not.
+ * It is in the same package as the detector so that the maxima can be read.
+ *
+ * @author mqbssep5
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiScaleLoGSpotDetectorBenchmark {
+
+    /**
+     * The width and height of the image.
+     */
+    @Param({"64", "256"})
+    public int size;
+
+    /**
+     * The number of spots per 10000 pixels.
+     */
+    @Param({"5", "50"})
+    public double density;
+
+    @Param({"3", "5", "8"})
+    public int nScales;
+
+    /**
+     * The standard deviation of the spots.
+     */
+    private static final double SPOT_SIGMA = 1.5;
+
+    private static final double MIN_SIGMA = 1.0;
+
+    private static final double MAX_SIGMA = 3.0;
+
+    /**
+     * Detects the synthetic spots in the LoG filtered image.
+     */
+    private static final double LOG_THRESHOLD = 20;
+
+    private PlaneView view;
+
+    private ParentFeature cell;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        view = PlaneView.of(SyntheticImages.spotImage(size, size, SyntheticImages.spotsForDensity(size, size, density), SPOT_SIGMA, 42));
+        cell = SyntheticImages.wholeImageCell(size, size, 1);
+        check(multiScaleDetector(), allLevelsDetector());
+    }
+
+    /**
+     * @throws IllegalStateException if the detectors do not give the same
+     * results.
+     */
+    private static void check( MultiScaleLoGSpotDetector2D detector, AllLevelsDetector reference ) {
+        ImageProcessor response = detector.getFilteredImage();
+        if (!Arrays.equals((float[]) response.getPixels(), (float[]) reference.getFilteredImage().getPixels())) {
+            throw new IllegalStateException("The multi-scale response differs from that of every level");
+        }
+        if (!Arrays.equals((float[]) detector.findMaxima(response).getPixels(), (float[]) reference.findMaxima(response).getPixels())) {
+            throw new IllegalStateException("The maxima across space and scale differ from those of every level");
+        }
+        if (!Arrays.equals((float[]) detector.getLabelledRegions().convertToFloat().getPixels(), (float[]) reference.getLabelledRegions().convertToFloat().getPixels())) {
+            throw new IllegalStateException("The multi-scale segmentation differs from that of every level");
+        }
+        ArrayList<Feature> spots = detector.getFeatures();
+        ArrayList<Feature> expected = reference.getFeatures();
+        if (spots.size() != expected.size()) {
+            throw new IllegalStateException("Found " + spots.size() + " spots rather than " + expected.size());
+        }
+        for (int i = 0; i < spots.size(); i++) {
+            if (!spots.get(i).getNumericFeatures().equals(expected.get(i).getNumericFeatures())) {
+                throw new IllegalStateException("Spot " + i + " differs from that of every level");
+            }
+        }
+    }
+
+    @Benchmark
+    public MultiScaleLoGSpotDetector2D multiScaleDetector() {
+        MultiScaleLoGSpotDetector2D detector = new MultiScaleLoGSpotDetector2D(cell, view, MIN_SIGMA, MAX_SIGMA, nScales, LOG_THRESHOLD, SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION, 1, 8, 1.0);
+        detector.run();
+        return detector;
+    }
+
+    @Benchmark
+    public AllLevelsDetector allLevelsDetector() {
+        AllLevelsDetector detector = new AllLevelsDetector(cell, view, MIN_SIGMA, MAX_SIGMA, nScales, LOG_THRESHOLD, SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION, 1, 8, 1.0);
+        detector.run();
+        return detector;
+    }
+
+    /**
+     * The multi-scale detector as it was first written, building and keeping
+     * every level of the scale space before looking for the maxima.
+     */
+    public static class AllLevelsDetector extends LoGSpotDetector2D {
+
+        private final double[] sigmas;
+
+        private byte[] bestScale;
+
+        private float[] response;
+
+        private float[] maxima;
+
+        AllLevelsDetector( ParentFeature parentFeature, PlaneView view, double minSigma, double maxSigma, int nScales, double thresh, int segmentationMethod, int detectRad, int connectivity, double pixelScale ) {
+            super(parentFeature, view, minSigma, thresh, segmentationMethod, detectRad, connectivity, pixelScale);
+            this.sigmas = MultiScaleLoGSpotDetector2D.getSigmas(minSigma, maxSigma, nScales);
+        }
+
+        @Override
+        protected float[] filter( float[] input, int w, int h, float[] smoothed, float[] out ) {
+            int n = w * h;
+            int nScales = sigmas.length;
+            float sigma0 = (float) sigmas[0];
+            LoGEngine engine = LoGEngine.get(sigma0, SMOOTHING_SIGMA, getSmoothingAccuracy());
+            engine.blur(input, w, h, SMOOTHING_SIGMA, getSmoothingAccuracy(), smoothed);
+
+            float[][] levels = new float[nScales][];
+            float[] blurred = new float[n];
+            engine.blur(input, w, h, sigma0, LoGEngine.ACCURACY, blurred);
+            for (int s = 0; s < nScales; s++) {
+                if (s > 0) {
+                    double sigmaStep = Math.sqrt(sigmas[s] * sigmas[s] - sigmas[s - 1] * sigmas[s - 1]);
+                    engine.blur(blurred, w, h, sigmaStep, LoGEngine.ACCURACY, blurred);
+                }
+                levels[s] = new float[n];
+                LoGEngine.laplacian(blurred, w, h, Float.NEGATIVE_INFINITY, levels[s]);
+                if (s > 0) {
+                    float norm = (float) (sigmas[s] * sigmas[s] / (sigma0 * sigma0));
+                    for (int i = 0; i < n; i++) {
+                        levels[s][i] *= norm;
+                    }
+                }
+            }
+
+            double thresh = getThreshold();
+            response = new float[n];
+            bestScale = new byte[n];
+            maxima = new float[n];
+            for (int s = 0; s < nScales; s++) {
+                for (int y = 0, i = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++, i++) {
+                        float v = levels[s][i];
+                        if (!(v > thresh)) {
+                            continue;
+                        }
+                        if (v > response[i]) {
+                            response[i] = v;
+                            bestScale[i] = (byte) s;
+                        }
+                        if (isMaximum(levels, s, x, y, w, h)) {
+                            maxima[i] = 255f;
+                        }
+                    }
+                }
+            }
+            return response;
+        }
+
+        private static boolean isMaximum( float[][] levels, int s, int x, int y, int w, int h ) {
+            float v = levels[s][y * w + x];
+            for (int k = Math.max(0, s - 1); k <= Math.min(levels.length - 1, s + 1); k++) {
+                for (int j = Math.max(0, y - 1); j <= Math.min(h - 1, y + 1); j++) {
+                    for (int i = Math.max(0, x - 1); i <= Math.min(w - 1, x + 1); i++) {
+                        if (levels[k][j * w + i] > v) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected ImageProcessor findMaxima( ImageProcessor ipLoG ) {
+            return new FloatProcessor(ipLoG.getWidth(), ipLoG.getHeight(), maxima);
+        }
+
+        @Override
+        protected double getSpotScale( Point[] points ) {
+            int w = getFilteredImage().getWidth();
+            float max = Float.NEGATIVE_INFINITY;
+            int scale = 0;
+            for (Point p : points) {
+                int i = p.y * w + p.x;
+                if (response[i] > max) {
+                    max = response[i];
+                    scale = bestScale[i];
+                }
+            }
+            return 2d * sigmas[scale];
+        }
+
+    }
+
+}
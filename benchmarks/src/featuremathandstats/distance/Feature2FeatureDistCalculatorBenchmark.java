@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package featuremathandstats.distance;
+
+import benchmarks.SyntheticImages;
+import featuredetector.spotdetector.SpotDetectorChannelProcessor;
+import featureobjects.Feature;
+import featureobjects.ParentFeature;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time taken by {@link Feature2FeatureDistCalculator} on a two
+ * channel cell of random spots: the whole of {@link Feature2FeatureDistCalculator#run()},
+ * the nearest neighbour search between two channels
+ * ({@link Feature2FeatureDistCalculator#computePairedDistances(java.util.ArrayList, java.util.ArrayList, java.lang.String, java.lang.String)})
+ * and the edge distance between a single pair of spots
+ * ({@link Feature2FeatureDistCalculator#closestEdgeDistance(java.awt.Point[], java.awt.Point[], double)}).
+ * It is in the same package as the calculator so that the last two can be
+ * called directly.
+ *
+ * The parameters are split between several states so that each benchmark is
+ * only run for the parameters it depends on.
+ *
+ * @author mqbssep5
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Feature2FeatureDistCalculatorBenchmark {
+
+    /**
+     * The width and height of the cell, in pixels.
+     */
+    private static final int CELL_SIZE = 256;
+
+    /**
+     * The spots of a cell.
+     */
+    @State(Scope.Thread)
+    public static class Spots {
+
+        @Param({"10", "30", "100"})
+        public int spotsPerChannel;
+
+        /**
+         * The radius of the spots, in pixels.
+         */
+        @Param({"2", "5"})
+        public int spotRadius;
+
+        ParentFeature cell;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            cell = SyntheticImages.cellWithSpots(CELL_SIZE, CELL_SIZE, 2, spotsPerChannel, spotRadius, 42);
+        }
+
+        ArrayList<Feature> getSpots( int channel ) {
+            return cell.getFeatures(channel, SpotDetectorChannelProcessor.SPOT_FEATURE_NAME);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class EdgeDistance {
+
+        @Param({"false", "true"})
+        public boolean edgeDistance;
+
+    }
+
+    @State(Scope.Thread)
+    public static class Randomisations {
+
+        @Param({"0", "10"})
+        public int nRandomisations;
+
+    }
+
+    /**
+     * The pixels of a single pair of spots.
+     */
+    @State(Scope.Thread)
+    public static class SpotPair {
+
+        /**
+         * The radius of the spots, in pixels.
+         */
+        @Param({"2", "5", "10"})
+        public int pairSpotRadius;
+
+        Point[] points1, points2;
+
+        Feature2FeatureDistCalculator calculator;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            ArrayList<Feature> spots = SyntheticImages.randomSpots(CELL_SIZE, CELL_SIZE, 2, pairSpotRadius, 42);
+            points1 = spots.get(0).getOutLine().getContainedPoints();
+            points2 = spots.get(1).getOutLine().getContainedPoints();
+            calculator = calculator(SyntheticImages.wholeImageCell(CELL_SIZE, CELL_SIZE, 2), true, 0);
+        }
+
+    }
+
+    private static Feature2FeatureDistCalculator calculator( ParentFeature cell, boolean edgeDistance, int nRandomisations ) {
+        String name = SpotDetectorChannelProcessor.SPOT_FEATURE_NAME;
+        return new Feature2FeatureDistCalculator(cell, edgeDistance, 1.0, name, name, nRandomisations, 10, 50, 1);
+    }
+
+    @Benchmark
+    public ParentFeature run( Spots spots, EdgeDistance edge, Randomisations randomisations ) {
+        calculator(spots.cell, edge.edgeDistance, randomisations.nRandomisations).run();
+        return spots.cell;
+    }
+
+    @Benchmark
+    public ArrayList<Feature> computePairedDistances( Spots spots, EdgeDistance edge ) {
+        ArrayList<Feature> set1 = spots.getSpots(0);
+        calculator(spots.cell, edge.edgeDistance, 0).computePairedDistances(set1, spots.getSpots(1), "1", "2");
+        return set1;
+    }
+
+    @Benchmark
+    public double[] closestEdgeDistance( SpotPair pair ) {
+        return pair.calculator.closestEdgeDistance(pair.points1, pair.points2, 1.0);
+    }
+
+}
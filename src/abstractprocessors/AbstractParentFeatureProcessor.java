@@ -17,6 +17,11 @@ package abstractprocessors;
 
 import featureobjects.ParentFeature;
 import gui.CellAnalyserGUIModel;
+import ij.ImagePlus;
+import io.StreamingResultsSink;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.TreeMap;
 import javax.swing.JPanel;
 
 /**
@@ -33,6 +38,12 @@ public abstract class AbstractParentFeatureProcessor {
     
     protected CellAnalyserGUIModel model;
     
+    /**
+     * The name of the pixel data of the image, for {@link #getInputs()} and 
+     * {@link #getOutputs()}. 
+     */
+    public static final String DATA_IMAGE = "image";
+    
     
     /**
      * Number of channels in the data involved. 
@@ -59,8 +70,128 @@ public abstract class AbstractParentFeatureProcessor {
      * This method should be called to perform the actual processing of the 
      * which may be for multiple {@link ParentFeature}s on a single multi-dimensional
      * data set. 
+     * 
+     * Processes the current image of the model using the settings taken by the 
+     * last call to {@link #readSettings()} or {@link #loadSettings(java.util.Properties)}.
+     */
+    public void doProcess(){
+        doProcess(model.getCurrentImageDataSet(), model.getCurrentImageSetParentFeatures());
+    }
+    
+    /**
+     * Takes an immutable copy of the settings entered in the settings panel, 
+     * which is then used by {@link #doProcess(ij.ImagePlus, java.util.ArrayList)}, 
+     * {@link #saveSettings(java.util.Properties)} and {@link #getSettingsFingerprint()}, 
+     * so that the worker threads never read the Swing components. Has to be 
+     * called, on the event dispatch thread, before processing a set of images 
+     * with the settings entered in the GUI. 
+     * 
+     * Processors without any settings do not need to override this. 
+     */
+    public void readSettings(){
+        
+    }
+    
+    /**
+     * Performs the processing on the {@link ParentFeature}s of a single image 
+     * data set, using the settings taken by the last call to {@link #readSettings()}.
+     * 
+     * Implementations must not use the current image or features of the model 
+     * or store the image/features in fields, as this may be called for different 
+     * images at the same time from several threads. 
+     * 
+     * @param imp the image data set. 
+     * @param features the {@link ParentFeature}s of the image data set, or of 
+     * one of its frames if the processor {@link #isFrameIndependent()}. 
+     */
+    public abstract void doProcess( ImagePlus imp, ArrayList<ParentFeature> features );
+    
+    /**
+     * A fingerprint of this processor and its current settings, used to tell 
+     * whether stored results were produced with the same settings. By default 
+     * it is made from the class name and the settings written by 
+     * {@link #saveResultSettings(java.util.Properties)}, so processors only 
+     * need to override this if their results depend on anything else. 
+     * 
+     * @return the fingerprint. 
+     */
+    public String getSettingsFingerprint(){
+        Properties settings = new Properties();
+        saveResultSettings(settings);
+        return getSettingsFingerprint(settings);
+    }
+    
+    /**
+     * Writes the settings which the results depend on, used to tell whether 
+     * results were produced with the same settings. By default these are all 
+     * of the settings written by {@link #saveSettings(java.util.Properties)}, 
+     * processors with settings that do not change the results, e.g. the 
+     * number of threads, should leave them out. 
+     * 
+     * @param settings 
+     */
+    public void saveResultSettings( Properties settings ){
+        saveSettings(settings);
+    }
+    
+    /**
+     * @param settings
+     * @return a fingerprint made from the class name and the settings.
      */
-    public abstract void doProcess();
+    protected String getSettingsFingerprint( Properties settings ){
+        // sorted so that the same settings always give the same fingerprint.
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (String key : settings.stringPropertyNames()) {
+            sorted.put(key, settings.getProperty(key));
+        }
+        return getClass().getName() + sorted.toString();
+    }
+    
+    /**
+     * @return true if this processor changes the image data, e.g. to correct 
+     * it, rather than the {@link ParentFeature}s. Such processors are run again 
+     * even when their results are taken from the cache if a later processor 
+     * has to be run, so they must not change the {@link ParentFeature}s, and 
+     * have to evict the crops taken from the image before it was changed, see 
+     * {@link featureobjects.CropCache#evict(ij.ImagePlus)}. 
+     */
+    public boolean changesImage(){
+        return false;
+    }
+    
+    /**
+     * @return true if processing the {@link ParentFeature}s of each frame of 
+     * an image in separate calls to {@link #doProcess(ij.ImagePlus, java.util.ArrayList)} 
+     * gives the same results as processing them all at once, e.g. as each cell 
+     * is processed on its own, so that the frames can be processed at the same 
+     * time, see {@link batch.ProcessorScheduler#setParallelFrames(boolean)}. 
+     */
+    public boolean isFrameIndependent(){
+        return false;
+    }
+    
+    /**
+     * Declares the data this processor reads, e.g. {@link #DATA_IMAGE}, so that 
+     * processors which do not depend on each other can be run at the same 
+     * time. The names are those given by the {@link #getOutputs()} of the 
+     * processors producing the data. 
+     * 
+     * @return the names of the data read, or null if not known, in which case 
+     * this processor is never run at the same time as any other. 
+     */
+    public String[] getInputs(){
+        return null;
+    }
+    
+    /**
+     * Declares the data this processor writes or changes, see {@link #getInputs()}. 
+     * 
+     * @return the names of the data written, or null if not known, in which 
+     * case this processor is never run at the same time as any other. 
+     */
+    public String[] getOutputs(){
+        return null;
+    }
     
     /**
      * @return The name of this processor. 
@@ -73,4 +204,67 @@ public abstract class AbstractParentFeatureProcessor {
      */
     public abstract void summariseAndSave();
     
+    /**
+     * Adds the results of a single image to the {@link StreamingResultsSink}, 
+     * straight after the image has been processed, so that the results of all 
+     * the images do not have to be collected at the end of the run. Must write 
+     * the same rows and columns {@link #summariseAndSave()} would for the image. 
+     * 
+     * Processors whose results can only be summarised across all of the images 
+     * do not need to override this. 
+     * 
+     * @param sink the files being written. 
+     * @param imageIndex index of the image in the model.
+     * @param imageName the file name of the image. 
+     * @param features the {@link ParentFeature}s of the image once processed. 
+     */
+    public void streamResults( StreamingResultsSink sink, int imageIndex, String imageName, ArrayList<ParentFeature> features ){
+        
+    }
+    
+    /**
+     * @return true if {@link #streamResults(io.StreamingResultsSink, int, java.lang.String, java.util.ArrayList)} 
+     * writes all of the results of this processor, in which case 
+     * {@link #summariseAndSave()} does not need to be called after a streamed run. 
+     */
+    public boolean resultsAreStreamed(){
+        return false;
+    }
+    
+    /**
+     * Applies the settings stored in the {@link Properties} to this processor, 
+     * e.g. when running in batch mode without the GUI, replacing the copy taken 
+     * by {@link #readSettings()} and showing them in the settings panel. The 
+     * settings panel has to have been initialised with {@link #getSettingsPanel()} 
+     * beforehand. Any setting not found in the {@link Properties} is left unchanged. 
+     * 
+     * Processors without any settings do not need to override this. 
+     * 
+     * @param settings 
+     */
+    public void loadSettings( Properties settings ){
+        
+    }
+    
+    /**
+     * Stores the settings this processor processes with, i.e. those taken by 
+     * the last call to {@link #readSettings()} or {@link #loadSettings(java.util.Properties)}, 
+     * in the {@link Properties}, using the same keys read by {@link #loadSettings(java.util.Properties)}.
+     * 
+     * @param settings 
+     */
+    public void saveSettings( Properties settings ){
+        
+    }
+    
+    /**
+     * Releases the resources held by this processor, e.g. its threads, once it 
+     * is no longer used. 
+     * 
+     * Processors which hold none do not need to override this. 
+     */
+    public void close(){
+        
+    }
+    
 }
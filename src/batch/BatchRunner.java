@@ -0,0 +1,784 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import featureobjects.FeatureStore;
+import featureobjects.ParentFeature;
+import gui.CellAnalyserGUIModel;
+import ij.IJ;
+import io.ImageIOutils;
+import io.ProcessorSettingsIO;
+import io.StreamingResultsSink;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import main.CellFeatureAnalyser_;
+import pluginmanager.PluginLoaderV1;
+import progress.LogProgressListener;
+import progress.ProgressBus;
+import timingutil.StageTimings;
+
+/**
+ * Runs a processor stream over all of the images in a folder without the GUI
+ * and without opening any windows, e.g. on a cluster node or from a script.
+ * The settings that would normally be entered in the GUI are read from a
+ * settings file (see {@link ProcessorSettingsIO}). The results are saved to
+ * the same place and in the same format as the "Run all" option of the GUI.
+ *
+ * @author mqbssep5
+ */
+public class BatchRunner {
+
+    /**
+     * Settings file key for the name of the processor stream to run, as listed
+     * in {@link PluginLoaderV1#getAnalysisSreamNames()}.
+     */
+    public static final String SETTING_STREAM = "stream";
+
+    /**
+     * Settings file key for the maximum number of images processed at once.
+     * Defaults to the number of available processors.
+     */
+    public static final String SETTING_THREADS = "threads";
+
+    /**
+     * Settings file key for the number of images opened in advance of being
+     * processed. Defaults to the number of threads.
+     */
+    public static final String SETTING_PREFETCH = "prefetch";
+
+    /**
+     * Settings file key for writing the results of each image as soon as it
+     * has been processed (true), rather than once all of the images have been
+     * processed (false). Defaults to true.
+     */
+    public static final String SETTING_STREAM_RESULTS = "streamResults";
+
+    /**
+     * Settings file key for the memory budget, in MB, of the features of the
+     * images processed; beyond it they are written to a cache file on disk
+     * until they are summarised. Zero keeps them all in memory. Defaults to a
+     * quarter of the maximum heap.
+     */
+    public static final String SETTING_FEATURE_MEMORY = "featureMemoryMB";
+
+    /**
+     * Settings file key for saving the features of each image as it is
+     * processed, so that an interrupted run can be resumed by running it
+     * again with the same settings (see {@link RunCheckpoint}). Defaults to
+     * true.
+     */
+    public static final String SETTING_CHECKPOINT = "checkpoint";
+
+    /**
+     * Settings file key for reusing the results of each processor from earlier
+     * runs when the image, its ROIs and the settings of the processor and
+     * those before it are unchanged (see {@link ResultCache}). Defaults to
+     * false.
+     */
+    public static final String SETTING_RESULT_CACHE = "resultCache";
+
+    /**
+     * Settings file key for the size the result cache is bounded to, in MB.
+     * Defaults to {@link ResultCache#DEFAULT_MAX_SIZE_MB}.
+     */
+    public static final String SETTING_RESULT_CACHE_SIZE = "resultCacheMaxMB";
+
+    /**
+     * Settings file key for the folder the result cache is kept in, e.g. to
+     * share it between several image folders. Defaults to a folder in the
+     * results folder.
+     */
+    public static final String SETTING_RESULT_CACHE_DIRECTORY = "resultCacheDirectory";
+
+    /**
+     * Settings file key for running the processors of an image which do not
+     * depend on each other at the same time (see {@link ProcessorScheduler}).
+     * Defaults to true.
+     */
+    public static final String SETTING_CONCURRENT_STAGES = "concurrentStages";
+
+    /**
+     * Settings file key for processing the frames of a time-lapse image at the
+     * same time (see {@link ProcessorScheduler#setParallelFrames(boolean)}).
+     * Defaults to true.
+     */
+    public static final String SETTING_PARALLEL_FRAMES = "parallelFrames";
+
+    /**
+     * Settings file key for sharing the images between several processes run
+     * on the same folder, e.g. on different machines (see
+     * {@link ShardedRun}). The last process to finish merges the results.
+     * Defaults to false.
+     */
+    public static final String SETTING_SHARDED = "sharded";
+
+    /**
+     * Settings file key restricting a sharded process to one part of the
+     * images, given as "k/n" for the k'th of n parts (image i is in part
+     * i % n + 1). Defaults to all of the images.
+     */
+    public static final String SETTING_SHARD = "shard";
+
+    /**
+     * Settings file key for the time, in seconds, after which the lease of an
+     * image held by a sharded process which has stopped renewing it is taken
+     * over by another. Defaults to 600.
+     */
+    public static final String SETTING_LEASE_TIMEOUT = "leaseTimeoutSeconds";
+
+    /**
+     * Settings file key for writing a report of the time taken, spots found
+     * and memory allocated by each stage (see {@link StageTimings}). Defaults
+     * to true.
+     */
+    public static final String SETTING_TIMING_REPORT = "timingReport";
+
+    /**
+     * Settings file key for the minimum time, in seconds, between writing the
+     * progress of each of the stages published to the {@link ProgressBus} to
+     * the log. Zero does not write it. Defaults to 10.
+     */
+    public static final String SETTING_PROGRESS_LOG = "progressLogSeconds";
+
+    /**
+     * Settings file key for whether only the part of each image covered by
+     * its ROIs is read, see {@link io.RoiTiffReader}. Off by default, as the
+     * pixels outside the ROIs, and their margin, are then zero.
+     */
+    public static final String SETTING_ROI_ONLY_READING = "roiOnlyReading";
+
+    /**
+     * Settings file key for the number of pixels read around the ROIs when
+     * only they are read.
+     */
+    public static final String SETTING_ROI_READ_MARGIN = "roiReadMargin";
+
+    private final String folder;
+
+    private final String settingsFile;
+
+    private CellAnalyserGUIModel model;
+
+    private AbstractParentFeatureProcessor[] processors;
+
+    /**
+     * Identifies what the processors were created for, see
+     * {@link #setReusableProcessors(abstractprocessors.AbstractParentFeatureProcessor[], java.lang.String)}.
+     */
+    private String processorsKey;
+
+    /**
+     * The processors of an earlier run which may be reused, and what they
+     * were created for.
+     */
+    private AbstractParentFeatureProcessor[] reusable;
+
+    private String reusableKey;
+
+    /**
+     * The settings the run is processed with.
+     */
+    private RunConfiguration configuration;
+
+    /**
+     * Constructor
+     *
+     * @param folder the folder containing the images (and ROI folders).
+     * @param settingsFile path to the settings file.
+     */
+    public BatchRunner( String folder, String settingsFile ) {
+        // the model expects the directory to end with a separator.
+        if (!folder.endsWith(File.separator)) {
+            folder = folder + File.separator;
+        }
+        this.folder = folder;
+        this.settingsFile = settingsFile;
+    }
+
+    /**
+     * Runs the analysis. If the settings file does not exist yet a template
+     * containing the default settings of the chosen stream is written to it
+     * instead, which can then be edited and the run repeated.
+     *
+     * @return true if all the images were processed and the results saved.
+     */
+    public boolean run() {
+
+        final String[] filenames = ImageIOutils.getFilesNames(folder, CellFeatureAnalyser_.ACCEPTED_FILE_TYPES);
+        if (filenames.length == 0) {
+            IJ.log("No image files found in " + folder);
+            return false;
+        }
+
+        File fsettings = new File(settingsFile);
+        Properties settings = new Properties();
+        if (fsettings.exists()) {
+            try {
+                settings = ProcessorSettingsIO.loadSettings(settingsFile);
+            } catch (IOException e) {
+                IJ.log("Could not read the settings file " + settingsFile + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        // Initialise the data model and open the first image so that the
+        // number of channels is known before the processors are set up.
+        model = new CellAnalyserGUIModel(folder, filenames);
+        model.setHeadless(true);
+        model.openImage(0);
+
+        String stream = getStream(settings);
+        // the settings not in the file are left as they were, so the
+        // processors are only reused with the same settings file.
+        processorsKey = stream + "\n" + fsettings.getAbsolutePath() + "\n" + fsettings.lastModified() + "\n" + model.getNchannels();
+        if (reusable != null && processorsKey.equals(reusableKey)) {
+            processors = reusable;
+            for (AbstractParentFeatureProcessor p : processors) {
+                p.resetModel(model);
+            }
+        } else {
+            processors = createProcessors(model, stream);
+        }
+        if (processors == null) {
+            return false;
+        }
+
+        if (!fsettings.exists()) {
+            return writeTemplate(stream);
+        }
+
+        // the settings are taken once, the processors do not read them from the panels.
+        new RunConfiguration(settings).apply(processors);
+        configuration = RunConfiguration.capture(stream, processors, settings);
+
+        boolean streamResults = Boolean.parseBoolean(settings.getProperty(SETTING_STREAM_RESULTS, "true").trim());
+        ImageSetRunner runner = createRunner(model, processors, settings);
+        StageTimings timings = runner.getStageTimings();
+        RunLog runLog = new RunLog(model);
+        LogProgressListener progress = startProgressLog(settings);
+        try {
+            if (Boolean.parseBoolean(settings.getProperty(SETTING_SHARDED, "false").trim())) {
+                return runSharded(runner, stream, settings, runner.getNumberOfThreads() + runner.getPrefetchDepth(), timings);
+            }
+            RunCheckpoint checkpoint = null;
+            if (Boolean.parseBoolean(settings.getProperty(SETTING_CHECKPOINT, "true").trim())) {
+                checkpoint = new RunCheckpoint(model.getSaveFileDirectory(), RunCheckpoint.createManifest(stream, processors));
+                try {
+                    checkpoint.open();
+                    runner.setCheckpoint(checkpoint);
+                } catch (IOException e) {
+                    IJ.log("Could not create the checkpoint, the run cannot be resumed: " + e.getMessage());
+                    checkpoint = null;
+                }
+            }
+            StreamingResultsSink sink = null;
+            if (streamResults) {
+                sink = new StreamingResultsSink(model.getSaveFileDirectory());
+                runner.setResultsSink(sink);
+            }
+            runner.addImageSetListener(runLog);
+            try {
+                runner.run();
+            } catch (InterruptedException e) {
+                IJ.log("Processing interrupted.");
+                return false;
+            } finally {
+                if (sink != null) {
+                    sink.close();
+                }
+            }
+
+            // now sumarise the data not already written.
+            int nProcesses = processors.length;
+            for (int p = 0; p < nProcesses; p++) {
+                if (streamResults && processors[p].resultsAreStreamed()) {
+                    continue;
+                }
+                IJ.log("Summarising " + processors[p].getName());
+                processors[p].summariseAndSave();
+            }
+            writeTimingReport(timings, StageTimings.REPORT_NAME);
+            writeConfiguration();
+            model.clearFeatureCache();
+            runLog.logFailures(checkpoint != null ? "run again to process only them" : "run again to process them");
+            // keep the checkpoint if any images failed so that only they are run again.
+            if (checkpoint != null && runLog.getFailures() == 0) {
+                checkpoint.delete();
+            }
+            IJ.log("Results saved to " + model.getSaveFileDirectory());
+            return true;
+        } finally {
+            if (progress != null) {
+                ProgressBus.flush();
+                ProgressBus.removeListener(progress);
+            }
+        }
+    }
+
+    /**
+     * @param settings
+     * @return the name of the processor stream of the settings, or the first
+     * stream if none is given.
+     */
+    static String getStream( Properties settings ) {
+        return settings.getProperty(SETTING_STREAM, new PluginLoaderV1().getAnalysisSreamNames()[0]).trim();
+    }
+
+    /**
+     * Creates the processors of the stream for the images of the model, with
+     * their settings panels, which hold the settings, so that the settings can
+     * then be applied.
+     *
+     * @param model
+     * @param stream
+     * @return the processors, or null if the stream is not known.
+     */
+    static AbstractParentFeatureProcessor[] createProcessors( CellAnalyserGUIModel model, String stream ) {
+        AbstractParentFeatureProcessor[] processors = new PluginLoaderV1().getProcessingStream(model, stream);
+        if (processors == null) {
+            IJ.log("Unknown processor stream: " + stream);
+            return null;
+        }
+        for (AbstractParentFeatureProcessor p : processors) {
+            p.getSettingsPanel();
+        }
+        return processors;
+    }
+
+    /**
+     * Applies the settings of the run to the model, and creates the runner of
+     * its images with them, as used by the {@link BatchRunner}, the
+     * {@link FolderWatcher} and the {@link JobServer}. Creates the results
+     * folder.
+     *
+     * @param model
+     * @param processors the processors, with their settings applied.
+     * @param settings
+     * @return the runner, with the stage timings and the result cache set if
+     * they are wanted.
+     */
+    static ImageSetRunner createRunner( CellAnalyserGUIModel model, AbstractParentFeatureProcessor[] processors, Properties settings ) {
+        int nThreads = ImageSetRunner.getDefaultNumberOfThreads();
+        try {
+            nThreads = Integer.parseInt(settings.getProperty(SETTING_THREADS, "" + nThreads).trim());
+        } catch (NumberFormatException e) {
+            IJ.log("Invalid number of threads, using " + nThreads);
+        }
+        int prefetch = nThreads;
+        try {
+            prefetch = Integer.parseInt(settings.getProperty(SETTING_PREFETCH, "" + prefetch).trim());
+        } catch (NumberFormatException e) {
+            IJ.log("Invalid prefetch depth, using " + prefetch);
+        }
+
+        model.setRoiOnlyReading(ProcessorSettingsIO.booleanOrDefault(settings, SETTING_ROI_ONLY_READING, false),
+                ProcessorSettingsIO.positiveIntegerOrDefault(settings, SETTING_ROI_READ_MARGIN, 16));
+        String featureMemory = settings.getProperty(SETTING_FEATURE_MEMORY);
+        if (featureMemory != null) {
+            try {
+                model.setFeatureMemoryBudget(Long.parseLong(featureMemory.trim()) * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                IJ.log("Invalid feature memory budget, using the default");
+            }
+        }
+
+        new File(model.getSaveFileDirectory()).mkdirs();
+        ImageSetRunner runner = new ImageSetRunner(model, processors, nThreads);
+        runner.setPrefetchDepth(prefetch);
+        runner.setConcurrentStages(Boolean.parseBoolean(settings.getProperty(SETTING_CONCURRENT_STAGES, "true").trim()));
+        runner.setParallelFrames(Boolean.parseBoolean(settings.getProperty(SETTING_PARALLEL_FRAMES, "true").trim()));
+        if (Boolean.parseBoolean(settings.getProperty(SETTING_TIMING_REPORT, "true").trim())) {
+            runner.setStageTimings(new StageTimings());
+        }
+        if (Boolean.parseBoolean(settings.getProperty(SETTING_RESULT_CACHE, "false").trim())) {
+            String cacheDirectory = settings.getProperty(SETTING_RESULT_CACHE_DIRECTORY);
+            if (cacheDirectory == null || cacheDirectory.trim().isEmpty()) {
+                cacheDirectory = new File(model.getSaveFileDirectory(), ResultCache.FOLDER_NAME).getPath();
+            }
+            int cacheSize = ProcessorSettingsIO.positiveIntegerOrDefault(settings, SETTING_RESULT_CACHE_SIZE, (int) ResultCache.DEFAULT_MAX_SIZE_MB);
+            runner.setResultCache(new ResultCache(new File(cacheDirectory.trim()), cacheSize));
+        }
+        return runner;
+    }
+
+    /**
+     * Starts writing the progress published to the {@link ProgressBus} to the
+     * log, if wanted.
+     *
+     * @param settings
+     * @return the listener, which has to be removed once the run is finished,
+     * or null if the progress is not logged.
+     */
+    static LogProgressListener startProgressLog( Properties settings ) {
+        double progressLog = 10;
+        try {
+            progressLog = Double.parseDouble(settings.getProperty(SETTING_PROGRESS_LOG, "" + progressLog).trim());
+        } catch (NumberFormatException e) {
+            IJ.log("Invalid progress log interval, using " + progressLog);
+        }
+        if (progressLog <= 0) {
+            return null;
+        }
+        LogProgressListener progress = new LogProgressListener(Math.round(progressLog * 1000));
+        ProgressBus.addListener(progress);
+        return progress;
+    }
+
+    /**
+     * Processes the images not claimed by the other processes sharing the
+     * folder, and merges the results of all of them if this is the last
+     * process to finish.
+     *
+     * @param runner the runner, with the settings applied.
+     * @param stream
+     * @param settings
+     * @param batchSize the number of images claimed at a time.
+     * @param timings the timings recorded, or null.
+     * @return true if the images claimed were processed, and the results
+     * merged if all of the images are finished.
+     */
+    private boolean runSharded( ImageSetRunner runner, String stream, Properties settings, int batchSize, StageTimings timings ) {
+        final String[] filenames = model.getImageNames();
+        long leaseTimeout = 600;
+        try {
+            leaseTimeout = Long.parseLong(settings.getProperty(SETTING_LEASE_TIMEOUT, "" + leaseTimeout).trim());
+        } catch (NumberFormatException e) {
+            IJ.log("Invalid lease timeout, using " + leaseTimeout);
+        }
+        int shardIndex = 0;
+        int nShards = 1;
+        String shard = settings.getProperty(SETTING_SHARD);
+        if (shard != null && !shard.trim().isEmpty()) {
+            try {
+                String[] parts = shard.trim().split("/");
+                shardIndex = Integer.parseInt(parts[0].trim()) - 1;
+                nShards = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                shardIndex = -1;
+            }
+            if (shardIndex < 0 || shardIndex >= nShards) {
+                IJ.log("Invalid shard " + shard + ", it should be k/n with 1 <= k <= n");
+                return false;
+            }
+        }
+
+        final ShardedRun shards = new ShardedRun(model.getSaveFileDirectory(), RunCheckpoint.createManifest(stream, processors), leaseTimeout * 1000);
+        try {
+            if (!shards.open()) {
+                return false;
+            }
+        } catch (IOException e) {
+            IJ.log("Could not join the sharded run: " + e.getMessage());
+            return false;
+        }
+        runner.addImageSetListener(new ImageSetListener() {
+            @Override
+            public void imageStarted( int imageIndex ) {
+
+            }
+
+            @Override
+            public void imageCompleted( int imageIndex ) {
+                try {
+                    shards.complete(filenames[imageIndex], model.getFeatures(imageIndex));
+                    IJ.log("Processed data set " + filenames[imageIndex]);
+                } catch (IOException e) {
+                    IJ.log("Could not save the features of " + filenames[imageIndex] + ": " + e.getMessage());
+                    shards.fail(filenames[imageIndex]);
+                }
+            }
+
+            @Override
+            public void imageFailed( int imageIndex, Throwable t ) {
+                shards.fail(filenames[imageIndex]);
+            }
+        });
+
+        try {
+            // each image is only tried once by this process.
+            boolean[] attempted = new boolean[filenames.length];
+            while (true) {
+                ArrayList<Integer> claimed = new ArrayList<>();
+                for (int i = 0; i < filenames.length && claimed.size() < batchSize; i++) {
+                    if (i % nShards == shardIndex && !attempted[i] && shards.claim(filenames[i])) {
+                        attempted[i] = true;
+                        claimed.add(i);
+                    }
+                }
+                if (claimed.isEmpty()) {
+                    break;
+                }
+                int[] indices = new int[claimed.size()];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = claimed.get(i);
+                }
+                runner.run(indices);
+                // they are saved in the shard folder until the merge.
+                for (int i : indices) {
+                    model.setFeatures(filenames[i], new ArrayList<ParentFeature>());
+                }
+            }
+
+            // each process writes its own report.
+            writeTimingReport(timings, StageTimings.REPORT_NAME + "_" + shards.getWorkerID().replaceAll("[^A-Za-z0-9.-]", "_"));
+
+            int nUnfinished = 0;
+            for (String name : filenames) {
+                if (!shards.isFinished(name)) {
+                    nUnfinished++;
+                }
+            }
+            if (nUnfinished > 0) {
+                IJ.log(nUnfinished + " images are still to be processed by other processes, the last of them to finish will merge the results.");
+                return true;
+            }
+            if (!shards.claimMerge()) {
+                IJ.log("The results are being merged by another process.");
+                return true;
+            }
+            return mergeShards(shards);
+        } catch (InterruptedException e) {
+            IJ.log("Processing interrupted.");
+            return false;
+        } finally {
+            shards.close();
+        }
+    }
+
+    /**
+     * Reads in the features of all of the images saved by the processes of a
+     * sharded run and summarises them.
+     *
+     * @param shards
+     * @return true if the results were saved.
+     */
+    private boolean mergeShards( ShardedRun shards ) {
+        String[] filenames = model.getImageNames();
+        IJ.log("Merging the results of " + filenames.length + " images");
+        int nFailed = 0;
+        for (String name : filenames) {
+            if (!shards.isProcessed(name)) {
+                nFailed++;
+            }
+            try {
+                model.setFeatures(name, shards.restore(name));
+            } catch (IOException e) {
+                IJ.log("Could not read the features of " + name + ": " + e.getMessage());
+                return false;
+            }
+        }
+        for (AbstractParentFeatureProcessor p : processors) {
+            model.addProcessorNameToList(p.getName());
+        }
+        for (AbstractParentFeatureProcessor p : processors) {
+            IJ.log("Summarising " + p.getName());
+            p.summariseAndSave();
+        }
+        writeConfiguration();
+        model.clearFeatureCache();
+        if (nFailed > 0) {
+            // kept so that the failed images can be tried again and the results merged again.
+            IJ.log(nFailed + " images failed, run again to try them again.");
+        } else {
+            shards.delete();
+        }
+        IJ.log("Results saved to " + model.getSaveFileDirectory());
+        return true;
+    }
+
+    /**
+     * Writes the settings of the run to the results folder, so that the run
+     * can be repeated.
+     */
+    private void writeConfiguration() {
+        try {
+            configuration.save(new File(model.getSaveFileDirectory(), RunConfiguration.FILE_NAME).getPath());
+        } catch (IOException e) {
+            IJ.log("Could not write the run configuration: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param timings the timings recorded, or null if no report is wanted.
+     * @param name the name of the report files.
+     */
+    private void writeTimingReport( StageTimings timings, String name ) {
+        if (timings == null) {
+            return;
+        }
+        try {
+            timings.writeReport(model.getSaveFileDirectory(), name);
+        } catch (IOException e) {
+            IJ.log("Could not write the timing report: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the default settings of the stream to the settings file.
+     *
+     * @param stream
+     * @return true if the template was written.
+     */
+    private boolean writeTemplate( String stream ) {
+        Properties template = new Properties();
+        template.setProperty(SETTING_STREAM, stream);
+        template.setProperty(SETTING_THREADS, "" + ImageSetRunner.getDefaultNumberOfThreads());
+        template.setProperty(SETTING_PREFETCH, "" + ImageSetRunner.getDefaultNumberOfThreads());
+        template.setProperty(SETTING_STREAM_RESULTS, "true");
+        template.setProperty(SETTING_FEATURE_MEMORY, "" + FeatureStore.getDefaultMemoryBudget() / (1024 * 1024));
+        template.setProperty(SETTING_CHECKPOINT, "true");
+        template.setProperty(SETTING_RESULT_CACHE, "false");
+        template.setProperty(SETTING_RESULT_CACHE_SIZE, "" + ResultCache.DEFAULT_MAX_SIZE_MB);
+        template.setProperty(SETTING_CONCURRENT_STAGES, "true");
+        template.setProperty(SETTING_PARALLEL_FRAMES, "true");
+        template.setProperty(SETTING_SHARDED, "false");
+        template.setProperty(SETTING_TIMING_REPORT, "true");
+        template.setProperty(SETTING_PROGRESS_LOG, "10");
+        template.setProperty(SETTING_ROI_ONLY_READING, "false");
+        template.setProperty(SETTING_ROI_READ_MARGIN, "16");
+        template.setProperty(FolderWatcher.SETTING_SETTLE, "2");
+        template.setProperty(FolderWatcher.SETTING_IDLE, "0");
+        for (AbstractParentFeatureProcessor p : processors) {
+            p.saveSettings(template);
+        }
+        try {
+            ProcessorSettingsIO.saveSettings(template, settingsFile, "CellFeatureAnalyser settings for stream " + stream);
+        } catch (IOException e) {
+            IJ.log("Could not write the settings file " + settingsFile + ": " + e.getMessage());
+            return false;
+        }
+        IJ.log("No settings file found, default settings written to " + settingsFile);
+        return false;
+    }
+
+    /**
+     * Logs each image of a run as it is processed, and keeps the images which
+     * failed so that they are reported together, rather than only in the
+     * lines logged as they failed.
+     */
+    static class RunLog implements ImageSetListener {
+
+        private final CellAnalyserGUIModel model;
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        /**
+         * The images which failed and have not been reported yet.
+         */
+        private final ArrayList<String> failed = new ArrayList<>();
+
+        private int nFailed;
+
+        RunLog( CellAnalyserGUIModel model ) {
+            this.model = model;
+        }
+
+        @Override
+        public void imageStarted( int imageIndex ) {
+
+        }
+
+        @Override
+        public void imageCompleted( int imageIndex ) {
+            IJ.log("Processed data set " + counter.incrementAndGet() + "/" + model.getNImages() + ": " + model.getImageNames()[imageIndex]);
+        }
+
+        @Override
+        public synchronized void imageFailed( int imageIndex, Throwable t ) {
+            counter.incrementAndGet();
+            failed.add(model.getImageNames()[imageIndex]);
+            nFailed++;
+        }
+
+        /**
+         * @return the number of images which have failed.
+         */
+        synchronized int getFailures() {
+            return nFailed;
+        }
+
+        /**
+         * Logs the images which have failed since the last call.
+         *
+         * @param advice what can be done about them.
+         */
+        synchronized void logFailures( String advice ) {
+            if (failed.isEmpty()) {
+                return;
+            }
+            IJ.log(failed.size() + (failed.size() == 1 ? " image" : " images") + " failed, " + advice + ": " + String.join(", ", failed));
+            failed.clear();
+        }
+
+    }
+
+    /**
+     * @return the folder the results are saved to, or null if the run has not
+     * got as far as opening the images.
+     */
+    public String getResultsDirectory() {
+        return model == null ? null : model.getSaveFileDirectory();
+    }
+
+    /**
+     * Lets the processors of an earlier run be reused, rather than created
+     * again, if they were created for the same stream, settings file and
+     * number of channels, as the GUI does when another folder is loaded.
+     *
+     * @param processors see {@link #getProcessors()}.
+     * @param key see {@link #getProcessorsKey()}.
+     */
+    void setReusableProcessors( AbstractParentFeatureProcessor[] processors, String key ) {
+        this.reusable = processors;
+        this.reusableKey = key;
+    }
+
+    /**
+     * @return the processors of the run, which may be those it was given to
+     * reuse, or null if the run did not get as far as creating them.
+     */
+    AbstractParentFeatureProcessor[] getProcessors() {
+        return processors;
+    }
+
+    /**
+     * @return what the processors of the run were created for.
+     */
+    String getProcessorsKey() {
+        return processorsKey;
+    }
+
+    /**
+     * Entry point for running in batch mode.
+     *
+     * @param args the image folder and the settings file.
+     */
+    public static void main( String[] args ) {
+        if (args.length < 2) {
+            System.out.println("Usage: BatchRunner <image folder> <settings file>");
+            System.exit(1);
+        }
+        // no windows are needed.
+        System.setProperty("java.awt.headless", "true");
+        boolean ok = new BatchRunner(args[0], args[1]).run();
+        System.exit(ok ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import gui.CellAnalyserGUIModel;
+import ij.IJ;
+import io.ImageIOutils;
+import io.ProcessorSettingsIO;
+import io.StreamingResultsSink;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import main.CellFeatureAnalyser_;
+import progress.LogProgressListener;
+import progress.ProgressBus;
+import timingutil.StageTimings;
+
+/**
+ * Processes the images of an acquisition folder as they are written, rather
+ * than once the whole plate has been acquired, so that the analysis keeps
+ * pace with the acquisition.
+ *
+ * The folder is watched with a {@link WatchService}. An image is processed
+ * once it has stopped changing for {@link #SETTING_SETTLE} seconds, i.e. the
+ * acquisition software has finished writing it, so the ROIs of an image have
+ * to be saved before the image itself. The rows of each image are appended to
+ * the result files as it is processed, and the summaries of the processors
+ * which cannot be streamed are saved again after each group of new images, so
+ * the results folder is always up to date with the images processed so far.
+ *
+ * The settings file is the same as that of the {@link BatchRunner}, with the
+ * addition of the watch keys. Images already in the folder when the watch
+ * starts are processed first; with the result cache on, restarting a watch
+ * only runs the processors on the images not processed before.
+ *
+ * @author mqbssep5
+ */
+public class FolderWatcher {
+
+    /**
+     * Settings file key for the time an image has to be unchanged before it
+     * is processed, in seconds.
+     */
+    public static final String SETTING_SETTLE = "watchSettleSeconds";
+
+    /**
+     * Settings file key for the time without any new images after which the
+     * watch stops, in minutes, or 0 to watch until the process is stopped.
+     */
+    public static final String SETTING_IDLE = "watchIdleMinutes";
+
+    /**
+     * The time between checks of the images still being written, in ms.
+     */
+    private static final long POLL_MS = 500;
+
+    private final String folder;
+
+    private final String settingsFile;
+
+    private CellAnalyserGUIModel model;
+
+    private AbstractParentFeatureProcessor[] processors;
+
+    /**
+     * The names of the images in the model.
+     */
+    private final HashSet<String> known = new HashSet<>();
+
+    /**
+     * The size and time last modified of each image which has not settled yet,
+     * and the time that they were first seen.
+     */
+    private final HashMap<String, long[]> pending = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param folder the folder the images are written to.
+     * @param settingsFile path to the settings file.
+     */
+    public FolderWatcher( String folder, String settingsFile ) {
+        // the model expects the directory to end with a separator.
+        if (!folder.endsWith(File.separator)) {
+            folder = folder + File.separator;
+        }
+        this.folder = folder;
+        this.settingsFile = settingsFile;
+    }
+
+    /**
+     * Watches the folder until it has been idle for the time set, or the
+     * thread is interrupted.
+     *
+     * @return true if the watch ended normally.
+     */
+    public boolean run() {
+        Properties settings;
+        try {
+            settings = ProcessorSettingsIO.loadSettings(settingsFile);
+        } catch (IOException e) {
+            IJ.log("Could not read the settings file " + settingsFile + ": " + e.getMessage());
+            return false;
+        }
+        long settleMs = Math.round(ProcessorSettingsIO.positiveDoubleOrDefault(settings, SETTING_SETTLE, 2) * 1000);
+        long idleMs = Math.round(ProcessorSettingsIO.positiveDoubleOrDefault(settings, SETTING_IDLE, 0) * 60000);
+
+        WatchService watcher;
+        try {
+            // registered before the first scan so that no image is missed.
+            watcher = FileSystems.getDefault().newWatchService();
+            new File(folder).toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            IJ.log("Could not watch " + folder + ": " + e.getMessage());
+            return false;
+        }
+
+        StreamingResultsSink sink = null;
+        LogProgressListener progress = null;
+        try {
+            IJ.log("Watching " + folder);
+            // the first image is needed to set up the processors.
+            String[] images = waitForImages(watcher, settleMs, idleMs);
+            if (images.length == 0) {
+                return true;
+            }
+            model = new CellAnalyserGUIModel(folder, images);
+            model.setHeadless(true);
+            model.openImage(0);
+            for (String name : images) {
+                known.add(name);
+            }
+
+            String stream = BatchRunner.getStream(settings);
+            processors = BatchRunner.createProcessors(model, stream);
+            if (processors == null) {
+                return false;
+            }
+            new RunConfiguration(settings).apply(processors);
+            RunConfiguration configuration = RunConfiguration.capture(stream, processors, settings);
+
+            ImageSetRunner runner = BatchRunner.createRunner(model, processors, settings);
+            StageTimings timings = runner.getStageTimings();
+            // the files stay open for the whole watch, so the rows of each
+            // group of images follow on from those before.
+            sink = new StreamingResultsSink(model.getSaveFileDirectory());
+            runner.setResultsSink(sink);
+            BatchRunner.RunLog runLog = new BatchRunner.RunLog(model);
+            runner.addImageSetListener(runLog);
+            progress = BatchRunner.startProgressLog(settings);
+
+            int first = 0;
+            while (images.length > 0) {
+                int[] indices = new int[images.length];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = first + i;
+                }
+                runner.run(indices);
+                for (AbstractParentFeatureProcessor p : processors) {
+                    if (!p.resultsAreStreamed()) {
+                        p.summariseAndSave();
+                    }
+                }
+                saveReports(configuration, timings);
+                runLog.logFailures("restart the watch to process them again");
+
+                images = waitForImages(watcher, settleMs, idleMs);
+                if (images.length > 0) {
+                    first = model.addImages(images);
+                    for (String name : images) {
+                        known.add(name);
+                    }
+                }
+            }
+            if (runLog.getFailures() > 0) {
+                IJ.log(runLog.getFailures() + " of " + model.getNImages() + " images failed during the watch.");
+            }
+            IJ.log("No new images for " + (idleMs / 60000.0) + " minutes, results saved to " + model.getSaveFileDirectory());
+            return true;
+        } catch (InterruptedException e) {
+            IJ.log("Watch of " + folder + " stopped.");
+            return false;
+        } finally {
+            if (sink != null) {
+                sink.close();
+            }
+            if (progress != null) {
+                ProgressBus.flush();
+                ProgressBus.removeListener(progress);
+            }
+            if (model != null) {
+                model.clearFeatureCache();
+            }
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Waits until there are new images which have finished being written.
+     *
+     * @param watcher
+     * @param settleMs the time an image has to be unchanged for.
+     * @param idleMs the time to wait for an image, or 0 to wait for ever.
+     * @return the names of the new images, in order, or none if the time to
+     * wait ran out.
+     * @throws InterruptedException
+     */
+    private String[] waitForImages( WatchService watcher, long settleMs, long idleMs ) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            String[] ready = scan(settleMs);
+            if (ready.length > 0) {
+                return ready;
+            }
+            long wait = pending.isEmpty() ? TimeUnit.MINUTES.toMillis(1) : POLL_MS;
+            if (idleMs > 0) {
+                long left = idleMs - (System.currentTimeMillis() - start);
+                if (left <= 0 && pending.isEmpty()) {
+                    return ready;
+                }
+                if (left > 0) {
+                    wait = Math.min(wait, left);
+                }
+            }
+            // the events only wake the watch up, the folder is scanned for
+            // the images so that none are lost if the events overflow.
+            WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                key.pollEvents();
+                if (!key.reset()) {
+                    IJ.log("The folder " + folder + " can no longer be watched.");
+                    return new String[0];
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the images in the folder which are not in the model yet.
+     *
+     * @param settleMs
+     * @return the names of the images which have not changed for the settle
+     * time and can be read.
+     */
+    private String[] scan( long settleMs ) {
+        long now = System.currentTimeMillis();
+        ArrayList<String> ready = new ArrayList<>();
+        for (String name : ImageIOutils.getFilesNames(folder, CellFeatureAnalyser_.ACCEPTED_FILE_TYPES)) {
+            if (known.contains(name)) {
+                continue;
+            }
+            File f = new File(folder, name);
+            long[] state = pending.get(name);
+            if (state == null || state[0] != f.length() || state[1] != f.lastModified()) {
+                pending.put(name, new long[]{f.length(), f.lastModified(), now});
+                continue;
+            }
+            if (now - state[2] >= settleMs && isReadable(f)) {
+                pending.remove(name);
+                ready.add(name);
+            }
+        }
+        return ready.toArray(new String[ready.size()]);
+    }
+
+    /**
+     * @param f
+     * @return true if the file can be opened, which it cannot on some systems
+     * whilst it is still being written.
+     */
+    private static boolean isReadable( File f ) {
+        try {
+            new FileInputStream(f).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the run configuration and the timing report so far.
+     *
+     * @param configuration
+     * @param timings the timings, or null if no report is wanted.
+     */
+    private void saveReports( RunConfiguration configuration, StageTimings timings ) {
+        try {
+            configuration.save(new File(model.getSaveFileDirectory(), RunConfiguration.FILE_NAME).getPath());
+            if (timings != null) {
+                timings.writeReport(model.getSaveFileDirectory(), StageTimings.REPORT_NAME);
+            }
+        } catch (IOException e) {
+            IJ.log("Could not write the run reports: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Entry point for watching a folder.
+     *
+     * @param args the image folder and the settings file.
+     */
+    public static void main( String[] args ) {
+        if (args.length < 2) {
+            System.out.println("Usage: FolderWatcher <image folder> <settings file>");
+            System.exit(1);
+        }
+        System.setProperty("java.awt.headless", "true");
+        boolean ok = new FolderWatcher(args[0], args[1]).run();
+        System.exit(ok ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import featureobjects.ParentFeature;
+import gui.CellAnalyserGUIModel;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import io.ParentFeature_ROI;
+import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens the images of a {@link CellAnalyserGUIModel} (and reads in their
+ * {@link ParentFeature_ROI} outlines) on a background thread, ahead of the
+ * images being processed, so that reading and decoding the files overlaps with
+ * the processing.
+ *
+ * The number of images held in memory, whether waiting to be processed or
+ * being processed, is limited to a fixed number of permits. A permit is taken
+ * before an image is opened and given back by {@link #release()} once the
+ * image has been processed.
+ *
+ * @author mqbssep5
+ */
+public class ImagePrefetcher {
+
+    /**
+     * Fraction of the free heap the images held in memory may use.
+     */
+    private static final double MEMORY_FRACTION = 0.5;
+
+    /**
+     * The working copies made whilst processing an image are allowed for by
+     * assuming each image in memory takes this many times its own size: the
+     * image, the crops shared through the {@link featureobjects.CropCache},
+     * which are limited to the size of the image, and the crops and filtered
+     * images of the processors.
+     */
+    private static final double PROCESSING_OVERHEAD = 4.0;
+
+    private final CellAnalyserGUIModel model;
+
+    private final int[] imageIndices;
+
+    private final Semaphore permits;
+
+    private final LinkedBlockingQueue<PrefetchedImage> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger remaining;
+
+    private Thread loader;
+
+    /**
+     * Constructor
+     *
+     * @param model
+     * @param imageIndices the indices of the images to open, in the order they
+     * will be processed.
+     * @param maxImagesInMemory the maximum number of images opened but not yet
+     * released.
+     */
+    public ImagePrefetcher( CellAnalyserGUIModel model, int[] imageIndices, int maxImagesInMemory ) {
+        this.model = model;
+        this.imageIndices = imageIndices;
+        this.permits = new Semaphore(Math.max(1, maxImagesInMemory));
+        this.remaining = new AtomicInteger(imageIndices.length);
+    }
+
+    /**
+     * Starts opening the images in the background.
+     */
+    public void start() {
+        loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int index : imageIndices) {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    PrefetchedImage image;
+                    try {
+                        image = new PrefetchedImage(index, model.loadImage(index), null);
+                    } catch (Exception e) {
+                        image = new PrefetchedImage(index, null, e);
+                    } catch (Throwable t) {
+                        // e.g. out of memory, the image is still queued as 
+                        // failed so that the worker waiting for it wakes up.
+                        image = new PrefetchedImage(index, null, new Exception("Could not open the image: " + t, t));
+                    }
+                    queue.add(image);
+                }
+            }
+        }, "Image prefetch");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Waits for the next image to be opened. Can be called from several
+     * threads, each call returns a different image.
+     *
+     * @return the next image, or null if all the images have been taken.
+     * @throws InterruptedException
+     */
+    public PrefetchedImage next() throws InterruptedException {
+        if (remaining.getAndDecrement() <= 0) {
+            return null;
+        }
+        return queue.take();
+    }
+
+    /**
+     * Must be called once an image returned by {@link #next()} has been
+     * processed, so that another image can be opened in its place.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Stops opening any more images.
+     */
+    public void stop() {
+        if (loader != null) {
+            loader.interrupt();
+        }
+    }
+
+    /**
+     * Limits the number of images held in memory at once to what will fit in
+     * the free heap, estimated from the size of the first image.
+     *
+     * @param model
+     * @param requested the number of images wanted in memory.
+     * @return the number of images that can be held in memory, at least 1.
+     */
+    public static int maxImagesInMemory( CellAnalyserGUIModel model, int requested ) {
+        if (model.getNImages() == 0) {
+            return Math.max(1, requested);
+        }
+        long imageBytes = estimateImageBytes(new File(model.getOriginalDirectory(), model.getImageNames()[0]).getPath());
+        if (imageBytes <= 0) {
+            return Math.max(1, requested);
+        }
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        long fit = (long) ((MEMORY_FRACTION * free) / (PROCESSING_OVERHEAD * imageBytes));
+        return (int) Math.max(1, Math.min(requested, fit));
+    }
+
+    /**
+     * Estimates the size of the decoded image from the TIFF header, without
+     * reading the pixel data.
+     *
+     * @param path
+     * @return the size in bytes, or -1 if it could not be read.
+     */
+    private static long estimateImageBytes( String path ) {
+        FileInfo[] info;
+        try {
+            info = Opener.getTiffFileInfo(path);
+        } catch (Exception e) {
+            return -1;
+        }
+        if (info == null || info.length == 0) {
+            return -1;
+        }
+        long nImages = info.length > 1 ? info.length : Math.max(1, info[0].nImages);
+        return nImages * info[0].width * info[0].height * Math.max(1, info[0].getBytesPerPixel());
+    }
+
+    /**
+     * An image opened by the {@link ImagePrefetcher}.
+     */
+    public static class PrefetchedImage {
+
+        private final int index;
+
+        private final ImagePlus imp;
+
+        private final Exception error;
+
+        PrefetchedImage( int index, ImagePlus imp, Exception error ) {
+            this.index = index;
+            this.imp = imp;
+            this.error = error;
+        }
+
+        /**
+         * @return index of the image in the model.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the image, or null if it could not be opened.
+         */
+        public ImagePlus getImage() {
+            return imp;
+        }
+
+        /**
+         * @return the reason the image could not be opened, or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+    }
+
+}
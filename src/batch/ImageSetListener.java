@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+/**
+ * Listener for the progress of an {@link ImageSetRunner}. The methods are
+ * called from the worker threads, so implementations have to be thread safe
+ * and must not assume they are on the event dispatch thread.
+ *
+ * @author mqbssep5
+ */
+public interface ImageSetListener {
+
+    /**
+     * Called when a worker starts processing an image data set.
+     *
+     * @param imageIndex index of the image in the model.
+     */
+    public void imageStarted( int imageIndex );
+
+    /**
+     * Called once all of the processors have been run on an image data set.
+     *
+     * @param imageIndex index of the image in the model.
+     */
+    public void imageCompleted( int imageIndex );
+
+    /**
+     * Called if processing an image data set failed. The remaining images are
+     * still processed, unless it failed with an {@link Error}, which stops the
+     * worker thread once the failure has been reported.
+     *
+     * @param imageIndex index of the image in the model.
+     * @param t the cause of the failure.
+     */
+    public void imageFailed( int imageIndex, Throwable t );
+
+}
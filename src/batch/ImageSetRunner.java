@@ -0,0 +1,520 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import featureobjects.CropCache;
+import featureobjects.ParentFeature;
+import gui.CellAnalyserGUIModel;
+import ij.IJ;
+import ij.ImagePlus;
+import io.StreamingResultsSink;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import timingutil.StageTimings;
+
+/**
+ * Runs the chain of {@link AbstractParentFeatureProcessor}s on all of the image
+ * data sets of a {@link CellAnalyserGUIModel}, processing several images at
+ * once on a bounded pool of worker threads. Each worker opens its own copy of
+ * the image (without displaying it) and the {@link ParentFeature}s found are
+ * stored in the model's feature store under the image name, exactly as for
+ * the sequential run, so the summaries do not depend on the order in which the
+ * images complete.
+ *
+ * The images are opened ahead of being processed by an {@link ImagePrefetcher},
+ * so that reading the files overlaps with the processing. Every image opened
+ * is held in memory until it has been processed, so the number of threads plus
+ * the prefetch depth is limited by the free memory.
+ *
+ * If a {@link StreamingResultsSink} is set the results of each image are
+ * written to it as soon as the image has been processed. If a
+ * {@link RunCheckpoint} is set the features of each image are saved to it once
+ * processed, and the images saved by an earlier run are read back in rather
+ * than processed again.
+ *
+ * The processors of each image which do not depend on each other are run at
+ * the same time by a {@link ProcessorScheduler}, unless this is turned off.
+ *
+ * @author mqbssep5
+ */
+public class ImageSetRunner {
+
+    private final CellAnalyserGUIModel model;
+
+    private final AbstractParentFeatureProcessor[] processors;
+
+    private final int nThreads;
+
+    private int prefetchDepth;
+
+    private final ArrayList<ImageSetListener> listeners = new ArrayList<>();
+
+    private StreamingResultsSink sink;
+
+    private RunCheckpoint checkpoint;
+
+    private ResultCache cache;
+
+    /**
+     * The fingerprints of each stage, when there is a cache.
+     */
+    private String[] stageFingerprints;
+
+    private boolean concurrentStages = true;
+
+    private boolean parallelFrames = true;
+
+    private ProcessorScheduler scheduler;
+
+    private StageTimings timings;
+
+    /**
+     * Constructor
+     *
+     * @param model the data model containing the image names and features.
+     * @param processors the chain of processors to run on each image.
+     * @param nThreads the maximum number of images processed at once.
+     */
+    public ImageSetRunner( CellAnalyserGUIModel model, AbstractParentFeatureProcessor[] processors, int nThreads ) {
+        this.model = model;
+        this.processors = processors;
+        this.nThreads = Math.max(1, nThreads);
+        this.prefetchDepth = this.nThreads;
+    }
+
+    /**
+     * @param prefetchDepth the number of images opened in advance of being
+     * processed. It will be reduced if the images would not fit in memory.
+     */
+    public void setPrefetchDepth( int prefetchDepth ) {
+        this.prefetchDepth = Math.max(0, prefetchDepth);
+    }
+
+    /**
+     * @return the maximum number of images processed at once.
+     */
+    public int getNumberOfThreads() {
+        return nThreads;
+    }
+
+    /**
+     * @return the number of images opened in advance of being processed,
+     * before it is reduced to fit in memory.
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * @param sink the files the results of each image are written to as the
+     * images are processed, or null to leave the results in the model only.
+     */
+    public void setResultsSink( StreamingResultsSink sink ) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param checkpoint the checkpoint the features of each image are saved
+     * to, which has been opened, or null to not save them.
+     */
+    public void setCheckpoint( RunCheckpoint checkpoint ) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @param cache the cache the results of each processor are stored in and
+     * reused from when the image, its ROIs and the settings are unchanged, or
+     * null to always run all of the processors.
+     */
+    public void setResultCache( ResultCache cache ) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param timings the timings each processor, and the stages within them,
+     * are recorded into whilst the images are processed, or null to not
+     * record them.
+     */
+    public void setStageTimings( StageTimings timings ) {
+        this.timings = timings;
+    }
+
+    /**
+     * @return the timings the stages are recorded to, or null if they are not
+     * recorded.
+     */
+    public StageTimings getStageTimings() {
+        return timings;
+    }
+
+    /**
+     * @param concurrentStages true to run the processors which do not depend
+     * on each other at the same time, false to run them one at a time.
+     */
+    public void setConcurrentStages( boolean concurrentStages ) {
+        this.concurrentStages = concurrentStages;
+    }
+
+    /**
+     * @param parallelFrames true to process the frames of time-lapse images at
+     * the same time, see {@link ProcessorScheduler#setParallelFrames(boolean)}.
+     */
+    public void setParallelFrames( boolean parallelFrames ) {
+        this.parallelFrames = parallelFrames;
+    }
+
+    /**
+     * @return the default number of worker threads, one per available processor.
+     */
+    public static int getDefaultNumberOfThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @param listener notified as each of the images is processed.
+     */
+    public void addImageSetListener( ImageSetListener listener ) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Processes all of the images in the model and waits for them to finish.
+     *
+     * @throws InterruptedException if interrupted whilst waiting, in which case
+     * the remaining images are not processed.
+     */
+    public void run() throws InterruptedException {
+        int[] indices = new int[model.getNImages()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        run(indices);
+    }
+
+    /**
+     * Processes the specified images in the model and waits for them to finish.
+     * The processors use the settings they took before, by
+     * {@link AbstractParentFeatureProcessor#readSettings()} or
+     * {@link AbstractParentFeatureProcessor#loadSettings(java.util.Properties)},
+     * e.g. from a {@link RunConfiguration}.
+     *
+     * @param imageIndices the indices of the images to process.
+     * @throws InterruptedException if interrupted whilst waiting, in which case
+     * the remaining images are not processed.
+     */
+    public void run( int[] imageIndices ) throws InterruptedException {
+
+        for (AbstractParentFeatureProcessor p : processors) {
+            // store this as we may need to access this for sumarising the data later from across different processors.
+            model.addProcessorNameToList(p.getName());
+        }
+        if (cache != null) {
+            stageFingerprints = ResultCache.getStageFingerprints(processors);
+        }
+        scheduler = new ProcessorScheduler(processors, concurrentStages);
+        scheduler.setParallelFrames(parallelFrames);
+
+        if (imageIndices.length == 0) {
+            return;
+        }
+
+        if (sink != null) {
+            sink.setImageOrder(imageIndices);
+        }
+
+        if (checkpoint != null) {
+            imageIndices = restoreCompletedImages(imageIndices);
+            if (imageIndices.length == 0) {
+                return;
+            }
+        }
+
+        // the images being processed and those waiting have to fit in memory.
+        int maxInMemory = ImagePrefetcher.maxImagesInMemory(model, nThreads + prefetchDepth);
+        int nWorkers = Math.min(Math.min(nThreads, maxInMemory), imageIndices.length);
+        if (nWorkers < nThreads) {
+            IJ.log("Processing " + nWorkers + " images at once, limited by the number of images or the memory available.");
+        }
+
+        if (timings != null) {
+            StageTimings.setCurrent(timings);
+        }
+        final ImagePrefetcher prefetcher = new ImagePrefetcher(model, imageIndices, maxInMemory);
+        prefetcher.start();
+
+        ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+        for (int w = 0; w < nWorkers; w++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ImagePrefetcher.PrefetchedImage image;
+                    try {
+                        while ((image = prefetcher.next()) != null) {
+                            try {
+                                processImage(image);
+                            } finally {
+                                prefetcher.release();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // the run has been cancelled.
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw e;
+        } finally {
+            prefetcher.stop();
+            if (timings != null) {
+                StageTimings.setCurrent(null);
+            }
+        }
+    }
+
+    /**
+     * Runs the processors on an image, taking the results of as many of the
+     * stages as possible from the cache and storing the results of the stages
+     * which had to be run. The results are stored once each group of stages
+     * run together has finished, under the key of its last stage.
+     *
+     * @param index index of the image in the model.
+     * @param imp the image.
+     * @param features the features of the image.
+     * @return the features of the image once processed, which replace those
+     * in the model if they were taken from the cache.
+     */
+    private ArrayList<ParentFeature> runProcessorsCached( int index, ImagePlus imp, ArrayList<ParentFeature> features ) {
+        String name = model.getImageNames()[index];
+        String[] keys = null;
+        try {
+            String inputHash = getInputHash(index);
+            keys = new String[processors.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = ResultCache.getKey(inputHash, stageFingerprints[i]);
+            }
+        } catch (IOException e) {
+            IJ.log("Could not hash the input files of " + name + ", the cache will not be used: " + e.getMessage());
+        }
+
+        // find the last stage whose results are stored.
+        int cached = -1;
+        if (keys != null) {
+            for (int i = keys.length - 1; i >= 0 && cached < 0; i--) {
+                if (cache.contains(keys[i])) {
+                    try {
+                        features = cache.load(keys[i]);
+                        model.setFeatures(name, features);
+                        cached = i;
+                    } catch (IOException e) {
+                        IJ.log("Could not read the cached results of " + name + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        for (int[] group : scheduler.getGroups()) {
+            int last = group[group.length - 1];
+            if (last <= cached) {
+                // the image has to be the same as it was for the stages still to be run.
+                if (cached < processors.length - 1) {
+                    for (int i : group) {
+                        if (processors[i].changesImage()) {
+                            processors[i].doProcess(imp, features);
+                        }
+                    }
+                }
+                continue;
+            }
+            if (group[0] <= cached) {
+                // stored by a run which grouped the stages differently.
+                group = Arrays.copyOfRange(group, cached - group[0] + 1, group.length);
+            }
+            scheduler.runGroup(group, imp, features);
+            if (keys != null) {
+                try {
+                    cache.store(keys[last], features);
+                } catch (IOException e) {
+                    IJ.log("Could not cache the results of " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        return features;
+    }
+
+    /**
+     * @param index index of the image in the model.
+     * @return the hash of the image and ROI files of the image.
+     * @throws IOException if any of the files is missing.
+     */
+    private String getInputHash( int index ) throws IOException {
+        return ResultCache.hash(
+                ResultCache.hashFiles(new File(model.getOriginalDirectory(), model.getImageNames()[index])),
+                ResultCache.hashFiles(model.getRoiFiles(index)));
+    }
+
+    /**
+     * Reads in the features of the images completed by an earlier run, rather
+     * than processing them again, and writes their results to the sink. The 
+     * images whose image or ROI files have changed since are processed again.
+     *
+     * @param imageIndices the indices of the images to process.
+     * @return the indices of the images still to be processed.
+     */
+    private int[] restoreCompletedImages( int[] imageIndices ) {
+        String[] imageNames = model.getImageNames();
+        ArrayList<Integer> remaining = new ArrayList<>();
+        int nRestored = 0;
+        for (int index : imageIndices) {
+            String name = imageNames[index];
+            String inputHash;
+            try {
+                inputHash = getInputHash(index);
+            } catch (IOException e) {
+                IJ.log("Could not hash the input files of " + name + ", it will be processed again: " + e.getMessage());
+                remaining.add(index);
+                continue;
+            }
+            if (!checkpoint.isComplete(name, inputHash)) {
+                remaining.add(index);
+                continue;
+            }
+            ArrayList<ParentFeature> features;
+            try {
+                features = checkpoint.restore(name);
+            } catch (IOException e) {
+                IJ.log("Could not restore " + name + ", it will be processed again: " + e.getMessage());
+                remaining.add(index);
+                continue;
+            }
+            model.setFeatures(name, features);
+            if (sink != null) {
+                for (AbstractParentFeatureProcessor p : processors) {
+                    p.streamResults(sink, index, name, features);
+                }
+                sink.imageFinished(index);
+            }
+            nRestored++;
+            for (ImageSetListener l : listeners) {
+                l.imageCompleted(index);
+            }
+        }
+        if (nRestored > 0) {
+            IJ.log("Resumed from the checkpoint, " + nRestored + " images were already processed.");
+        }
+        int[] out = new int[remaining.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = remaining.get(i);
+        }
+        return out;
+    }
+
+    /**
+     * Runs all of the processors on a single image.
+     *
+     * @param image the opened image.
+     */
+    private void processImage( ImagePrefetcher.PrefetchedImage image ) {
+        int index = image.getIndex();
+        // the features are changed, so must not be written out to disk whilst being processed.
+        model.holdFeatures(index);
+        try {
+            processImage(index, image);
+        } finally {
+            model.releaseFeatures(index);
+        }
+    }
+
+    /**
+     * Runs all of the processors on a single image, whose features are held
+     * in memory.
+     *
+     * @param index index of the image in the model.
+     * @param image the opened image.
+     */
+    private void processImage( int index, ImagePrefetcher.PrefetchedImage image ) {
+        for (ImageSetListener l : listeners) {
+            l.imageStarted(index);
+        }
+        ImagePlus imp = image.getImage();
+        try {
+            if (image.getError() != null) {
+                throw image.getError();
+            }
+            // hashed before processing, as the files the image was opened from.
+            String inputHash = null;
+            if (checkpoint != null) {
+                try {
+                    inputHash = getInputHash(index);
+                } catch (IOException e) {
+                    IJ.log("Could not hash the input files of " + model.getImageNames()[index] + ", it will not be checkpointed: " + e.getMessage());
+                }
+            }
+            ArrayList<ParentFeature> features = model.getFeatures(index);
+            if (cache != null) {
+                features = runProcessorsCached(index, imp, features);
+            } else {
+                scheduler.run(imp, features);
+            }
+            if (inputHash != null) {
+                try {
+                    checkpoint.save(model.getImageNames()[index], inputHash, features);
+                } catch (IOException e) {
+                    IJ.log("Could not save the checkpoint of " + model.getImageNames()[index] + ": " + e.getMessage());
+                }
+            }
+            if (sink != null) {
+                for (AbstractParentFeatureProcessor p : processors) {
+                    p.streamResults(sink, index, model.getImageNames()[index], features);
+                }
+                sink.imageFinished(index);
+            }
+        } catch (Throwable t) {
+            // an Error, e.g. running out of memory, is recorded as a failure 
+            // too, so that the run is not taken to have finished. 
+            IJ.log("Processing " + model.getImageNames()[index] + " failed: " + t);
+            if (sink != null) {
+                sink.imageFailed(index);
+            }
+            for (ImageSetListener l : listeners) {
+                l.imageFailed(index, t);
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            return;
+        } finally {
+            if (imp != null) {
+                CropCache.evict(imp);
+                imp.flush();
+            }
+        }
+        for (ImageSetListener l : listeners) {
+            l.imageCompleted(index);
+        }
+    }
+
+}
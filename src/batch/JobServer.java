@@ -0,0 +1,497 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import ij.IJ;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a JVM running which analyses image folders as they are submitted, so
+ * that the start up of ImageJ and the warm up of the processors is only paid
+ * once rather than for every batch, e.g. for images arriving from the
+ * acquisition software throughout the day.
+ *
+ * The jobs are submitted over a socket which is only bound to the loopback
+ * address, so only clients on the same machine can submit jobs; acquisition
+ * PCs share the server by running the client on the analysis machine, e.g.
+ * over ssh, with the images on a shared drive. Each job is run by a
+ * {@link BatchRunner}, one at a time in the order they were submitted (a job
+ * already uses all of the threads), and its results are saved to the results
+ * folder of its image folder as soon as it is finished.
+ *
+ * The protocol is one line of tab separated fields per request and reply, so
+ * that paths may contain spaces:
+ * <pre>
+ * SUBMIT  folder  [settings file]  -&gt;  QUEUED  id  position
+ *                                       then DONE  id  results folder
+ *                                       or FAILED  id  reason
+ * STATUS                            -&gt;  OK  running job  queued  done  failed
+ * SHUTDOWN                          -&gt;  OK, the queued jobs are finished first
+ * </pre>
+ * The paths should be absolute, as they are resolved by the server; the
+ * client of {@link #main(java.lang.String[])} does this.
+ *
+ * @author mqbssep5
+ */
+public class JobServer {
+
+    /**
+     * The port the server listens on if none is given.
+     */
+    public static final int DEFAULT_PORT = 7878;
+
+    public static final String COMMAND_SUBMIT = "SUBMIT";
+
+    public static final String COMMAND_STATUS = "STATUS";
+
+    public static final String COMMAND_SHUTDOWN = "SHUTDOWN";
+
+    public static final String REPLY_OK = "OK";
+
+    public static final String REPLY_QUEUED = "QUEUED";
+
+    public static final String REPLY_DONE = "DONE";
+
+    public static final String REPLY_FAILED = "FAILED";
+
+    public static final String REPLY_ERROR = "ERROR";
+
+    /**
+     * The time a client has to send its request, in ms, so that a client
+     * which never does cannot hold on to a connection.
+     */
+    private static final int REQUEST_TIMEOUT_MS = 10000;
+
+    private static final String SEPARATOR = "\t";
+
+    private final int port;
+
+    private final String defaultSettingsFile;
+
+    private ServerSocket serverSocket;
+
+    private final ExecutorService jobs = Executors.newSingleThreadExecutor(new NamedThreadFactory("job-runner"));
+
+    private final ExecutorService connections = Executors.newCachedThreadPool(new NamedThreadFactory("job-connection"));
+
+    private final AtomicInteger jobCounter = new AtomicInteger();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger done = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private volatile String runningJob;
+
+    private volatile boolean shutdown;
+
+    /**
+     * The processors of the last job, which are reused by the next job if it
+     * has the same stream, settings file and number of channels, so that
+     * their set up and their threads are not paid for every job. Only used by
+     * the job thread.
+     */
+    private AbstractParentFeatureProcessor[] processors;
+
+    private String processorsKey;
+
+    /**
+     * @param port the port to listen on, or 0 for any free port.
+     * @param defaultSettingsFile the settings file of the jobs which are
+     * submitted without one, or null if they have to give one.
+     */
+    public JobServer( int port, String defaultSettingsFile ) {
+        this.port = port;
+        this.defaultSettingsFile = defaultSettingsFile;
+    }
+
+    /**
+     * Starts listening for jobs.
+     *
+     * @throws IOException if the port could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "job-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        IJ.log("Job server listening on " + serverSocket.getInetAddress().getHostAddress() + ":" + getPort());
+    }
+
+    /**
+     * @return the port the server is listening on, or -1 if not started.
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting jobs. The jobs already submitted are still run.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        jobs.shutdown();
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // it is being closed anyway.
+            }
+        }
+    }
+
+    /**
+     * Waits until the server has been shut down and the jobs submitted have
+     * finished.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitTermination() throws InterruptedException {
+        while (!jobs.awaitTermination(1, TimeUnit.MINUTES)) {
+            // keep waiting, a job may take hours.
+        }
+        closeProcessors();
+        connections.shutdown();
+        // let the clients of the last jobs read their replies.
+        connections.awaitTermination(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void acceptConnections() {
+        while (!shutdown) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // closed by shutdown.
+                break;
+            } catch (IOException e) {
+                IJ.log("Job server could not accept a connection: " + e.getMessage());
+                continue;
+            }
+            try {
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Reads a request from a client and replies to it, waiting for the job if
+     * it is a submission.
+     *
+     * @param socket
+     */
+    private void handle( Socket socket ) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+            String[] fields = line.split(SEPARATOR);
+            String command = fields[0].trim().toUpperCase();
+            if (command.equals(COMMAND_SUBMIT)) {
+                // the job may take much longer than the request.
+                socket.setSoTimeout(0);
+                submit(fields, out);
+            } else if (command.equals(COMMAND_STATUS)) {
+                String running = runningJob;
+                out.println(REPLY_OK + SEPARATOR + (running == null ? "-" : running) + SEPARATOR + queued.get()
+                        + SEPARATOR + done.get() + SEPARATOR + failed.get());
+            } else if (command.equals(COMMAND_SHUTDOWN)) {
+                IJ.log("Job server shutting down once the queued jobs are finished");
+                shutdown();
+                out.println(REPLY_OK);
+            } else {
+                out.println(REPLY_ERROR + SEPARATOR + "Unknown command: " + command);
+            }
+        } catch (IOException e) {
+            IJ.log("Job server connection failed: " + e.getMessage());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Queues a job and replies once it is finished. The job is still run if
+     * the client goes away before then.
+     *
+     * @param fields the fields of the request.
+     * @param out to the client.
+     */
+    private void submit( String[] fields, PrintWriter out ) {
+        if (fields.length < 2 || fields[1].trim().isEmpty()) {
+            out.println(REPLY_ERROR + SEPARATOR + "No image folder given");
+            return;
+        }
+        final String folder = fields[1].trim();
+        final String settingsFile = fields.length > 2 && !fields[2].trim().isEmpty() ? fields[2].trim() : defaultSettingsFile;
+        if (settingsFile == null) {
+            out.println(REPLY_ERROR + SEPARATOR + "No settings file given");
+            return;
+        }
+        if (!new File(folder).isDirectory()) {
+            out.println(REPLY_ERROR + SEPARATOR + "Not a folder: " + folder);
+            return;
+        }
+        final int id = jobCounter.incrementAndGet();
+        final BatchRunner runner = new BatchRunner(folder, settingsFile);
+        Future<Boolean> result;
+        int position = queued.incrementAndGet();
+        try {
+            result = jobs.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    queued.decrementAndGet();
+                    runningJob = id + " " + folder;
+                    IJ.log("Job " + id + " started: " + folder);
+                    runner.setReusableProcessors(processors, processorsKey);
+                    try {
+                        return runner.run();
+                    } finally {
+                        runningJob = null;
+                        keepProcessors(runner);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            out.println(REPLY_ERROR + SEPARATOR + "The server is shutting down");
+            return;
+        }
+        out.println(REPLY_QUEUED + SEPARATOR + id + SEPARATOR + position);
+
+        String reply;
+        try {
+            if (result.get()) {
+                done.incrementAndGet();
+                reply = REPLY_DONE + SEPARATOR + id + SEPARATOR + runner.getResultsDirectory();
+            } else {
+                failed.incrementAndGet();
+                reply = REPLY_FAILED + SEPARATOR + id + SEPARATOR + "See the server log";
+            }
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            IJ.log("Job " + id + " failed: " + e.getCause());
+            reply = REPLY_FAILED + SEPARATOR + id + SEPARATOR + e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        IJ.log("Job " + id + " finished: " + reply);
+        out.println(reply);
+    }
+
+    /**
+     * Keeps the processors of a job for the next one, closing those they
+     * replace.
+     *
+     * @param runner
+     */
+    private void keepProcessors( BatchRunner runner ) {
+        AbstractParentFeatureProcessor[] used = runner.getProcessors();
+        if (used == null || used == processors) {
+            return;
+        }
+        closeProcessors();
+        processors = used;
+        processorsKey = runner.getProcessorsKey();
+    }
+
+    private void closeProcessors() {
+        if (processors != null) {
+            for (AbstractParentFeatureProcessor p : processors) {
+                p.close();
+            }
+            processors = null;
+            processorsKey = null;
+        }
+    }
+
+    private static void closeQuietly( Socket socket ) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do.
+        }
+    }
+
+    /**
+     * Sends a request to a server on this machine.
+     *
+     * @param port
+     * @param fields the command and its arguments.
+     * @param lines the number of reply lines to wait for.
+     * @return the reply lines, the last of which may be missing if the server
+     * closed the connection.
+     * @throws IOException if the server could not be reached.
+     */
+    public static String[] send( int port, String[] fields, int lines ) throws IOException {
+        StringBuilder request = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                request.append(SEPARATOR);
+            }
+            request.append(fields[i]);
+        }
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(request);
+            String[] replies = new String[lines];
+            for (int i = 0; i < lines; i++) {
+                replies[i] = in.readLine();
+                if (replies[i] == null) {
+                    break;
+                }
+                // an error ends the reply early.
+                if (replies[i].startsWith(REPLY_ERROR)) {
+                    break;
+                }
+            }
+            return replies;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static int parsePort( String[] args, int index ) {
+        return args.length > index ? Integer.parseInt(args[index]) : DEFAULT_PORT;
+    }
+
+    /**
+     * Entry point for the server and its client.
+     *
+     * @param args one of
+     * <pre>
+     * server [port [default settings file]]
+     * submit folder [settings file [port]]
+     * status [port]
+     * shutdown [port]
+     * </pre>
+     */
+    public static void main( String[] args ) {
+        if (args.length == 0) {
+            System.out.println("Usage: JobServer server [port [settings file]]");
+            System.out.println("       JobServer submit <image folder> [settings file [port]]");
+            System.out.println("       JobServer status|shutdown [port]");
+            System.exit(1);
+        }
+        String mode = args[0].toLowerCase();
+        try {
+            if (mode.equals("server")) {
+                System.setProperty("java.awt.headless", "true");
+                String settings = args.length > 2 ? new File(args[2]).getAbsolutePath() : null;
+                JobServer server = new JobServer(parsePort(args, 1), settings);
+                server.start();
+                server.awaitTermination();
+                System.exit(0);
+            }
+            String[] reply;
+            if (mode.equals("submit")) {
+                if (args.length < 2) {
+                    System.out.println("No image folder given");
+                    System.exit(1);
+                }
+                String settings = args.length > 2 ? new File(args[2]).getAbsolutePath() : "";
+                reply = send(parsePort(args, 3), new String[]{COMMAND_SUBMIT, new File(args[1]).getAbsolutePath(), settings}, 2);
+            } else if (mode.equals("status")) {
+                reply = send(parsePort(args, 1), new String[]{COMMAND_STATUS}, 1);
+            } else if (mode.equals("shutdown")) {
+                reply = send(parsePort(args, 1), new String[]{COMMAND_SHUTDOWN}, 1);
+            } else {
+                System.out.println("Unknown mode: " + args[0]);
+                System.exit(1);
+                return;
+            }
+            boolean ok = true;
+            for (String r : reply) {
+                if (r == null) {
+                    break;
+                }
+                System.out.println(r.replace(SEPARATOR, " "));
+                ok = !r.startsWith(REPLY_ERROR) && !r.startsWith(REPLY_FAILED);
+            }
+            System.exit(ok && reply[reply.length - 1] != null ? 0 : 1);
+        } catch (IOException e) {
+            System.out.println("Job server: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Names the threads of the server, which are daemons so that they do not
+     * keep the JVM running on their own.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory( String name ) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread( Runnable r ) {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import featureobjects.ParentFeature;
+import ij.ImagePlus;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import timingutil.StageTimings;
+
+/**
+ * Runs the processors of a stream on an image, running the processors which
+ * do not depend on each other at the same time.
+ *
+ * The processors are split, in order, into groups of neighbouring processors
+ * which are independent of each other according to their
+ * {@link AbstractParentFeatureProcessor#getInputs()} and
+ * {@link AbstractParentFeatureProcessor#getOutputs()}: neither reads or writes
+ * data the other writes. The processors of a group are run at the same time
+ * and each group is finished before the next is started, so the processors are
+ * always run after those they depend on, exactly as in the sequential order.
+ * E.g. for chromatic correction, intensity measurement, spot detection and
+ * the distance analysis, the intensity measurement and spot detection both
+ * only read the corrected image and are run together.
+ *
+ * The {@link ParentFeature}s of the different frames of a time-lapse image can
+ * also be processed at the same time, see {@link #setParallelFrames(boolean)},
+ * each frame being given to the processors as a list of its own features, for
+ * the groups whose processors are all
+ * {@link AbstractParentFeatureProcessor#isFrameIndependent()}. The results are
+ * still stored in the features, which stay in the same order, so the output is
+ * the same as processing the frames in turn. The times of the frames are
+ * added up, so the timings have one stage per processor and image either way.
+ *
+ * @author mqbssep5
+ */
+public class ProcessorScheduler {
+
+    private final AbstractParentFeatureProcessor[] processors;
+
+    private final int[][] groups;
+
+    private volatile boolean parallelFrames;
+
+    /**
+     * Constructor
+     *
+     * @param processors the processor stream.
+     * @param concurrent if false every processor is put in a group of its own,
+     * so they are run one at a time.
+     */
+    public ProcessorScheduler( AbstractParentFeatureProcessor[] processors, boolean concurrent ) {
+        this.processors = processors;
+        ArrayList<int[]> out = new ArrayList<>();
+        ArrayList<Integer> group = new ArrayList<>();
+        for (int i = 0; i < processors.length; i++) {
+            boolean independent = concurrent;
+            for (int j = 0; j < group.size() && independent; j++) {
+                independent = areIndependent(processors[group.get(j)], processors[i]);
+            }
+            if (!independent && !group.isEmpty()) {
+                out.add(toArray(group));
+                group.clear();
+            }
+            group.add(i);
+        }
+        if (!group.isEmpty()) {
+            out.add(toArray(group));
+        }
+        groups = out.toArray(new int[out.size()][]);
+    }
+
+    /**
+     * @return the indices of the processors in each group, in the order the
+     * groups are run.
+     */
+    public int[][] getGroups() {
+        return groups;
+    }
+
+    /**
+     * @param parallelFrames true to process the features of each frame of an
+     * image with more than one frame at the same time. The groups with a
+     * processor which changes the image, see
+     * {@link AbstractParentFeatureProcessor#changesImage()}, or which is not
+     * {@link AbstractParentFeatureProcessor#isFrameIndependent()}, are always
+     * run on the whole image at once.
+     */
+    public void setParallelFrames( boolean parallelFrames ) {
+        this.parallelFrames = parallelFrames;
+    }
+
+    /**
+     * Runs all of the processors on the image.
+     *
+     * @param imp
+     * @param features
+     */
+    public void run( ImagePlus imp, ArrayList<ParentFeature> features ) {
+        for (int[] group : groups) {
+            runGroup(group, imp, features);
+        }
+    }
+
+    /**
+     * Runs the processors of a group on the image at the same time and waits
+     * for them all to finish.
+     *
+     * @param group the indices of the processors.
+     * @param imp
+     * @param features
+     */
+    public void runGroup( int[] group, final ImagePlus imp, final ArrayList<ParentFeature> features ) {
+        List<ArrayList<ParentFeature>> frames = null;
+        if (parallelFrames && areFrameIndependent(group)) {
+            frames = splitFrames(features);
+        }
+        if (frames == null || frames.size() < 2) {
+            // the whole image at once. 
+            frames = new ArrayList<>();
+            frames.add(features);
+        }
+        if (group.length == 1 && frames.size() == 1) {
+            process(processors[group[0]], imp, features);
+            return;
+        }
+        // the frames of each processor are timed as a single stage.
+        final StageTimings.Total[] totals = new StageTimings.Total[group.length];
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (final ArrayList<ParentFeature> frame : frames) {
+            for (int k = 0; k < group.length; k++) {
+                final int p = group[k];
+                if (totals[k] == null && frames.size() > 1) {
+                    totals[k] = StageTimings.startTotal(processors[p].getName(), imp.getTitle(), "");
+                }
+                final StageTimings.Total total = totals[k];
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        process(processors[p], imp, frame, total);
+                    }
+                });
+            }
+        }
+        // the first is run on this thread, any exception is re-thrown here.
+        ForkJoinTask.invokeAll(tasks);
+        for (StageTimings.Total total : totals) {
+            StageTimings.stop(total);
+        }
+    }
+
+    private boolean areFrameIndependent( int[] group ) {
+        for (int p : group) {
+            if (processors[p].changesImage() || !processors[p].isFrameIndependent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param features
+     * @return the features of each frame, in the order of the frames, each
+     * in the order they are in the list.
+     */
+    private static List<ArrayList<ParentFeature>> splitFrames( ArrayList<ParentFeature> features ) {
+        TreeMap<Integer, ArrayList<ParentFeature>> frames = new TreeMap<>();
+        for (ParentFeature pf : features) {
+            ArrayList<ParentFeature> frame = frames.get(pf.getFrame());
+            if (frame == null) {
+                frame = new ArrayList<>();
+                frames.put(pf.getFrame(), frame);
+            }
+            frame.add(pf);
+        }
+        return new ArrayList<>(frames.values());
+    }
+
+    /**
+     * Runs a processor on the image, timing it if a report is being made (see
+     * {@link StageTimings}).
+     */
+    private static void process( AbstractParentFeatureProcessor p, ImagePlus imp, ArrayList<ParentFeature> features ) {
+        process(p, imp, features, null);
+    }
+
+    /**
+     * Runs a processor on some of the features of the image, adding its time
+     * to the total of the processor, or timing it on its own if there is no
+     * total.
+     */
+    private static void process( AbstractParentFeatureProcessor p, ImagePlus imp, ArrayList<ParentFeature> features, StageTimings.Total total ) {
+        StageTimings.Timer timer = StageTimings.start(p.getName(), imp.getTitle(), "");
+        p.doProcess(imp, features);
+        StageTimings.stop(timer, timer == null ? 0 : StageTimings.countFeatures(features), total);
+    }
+
+    /**
+     * @param p1
+     * @param p2
+     * @return true if neither processor reads or writes data written by the
+     * other, so they can be run at the same time.
+     */
+    public static boolean areIndependent( AbstractParentFeatureProcessor p1, AbstractParentFeatureProcessor p2 ) {
+        String[] in1 = p1.getInputs();
+        String[] out1 = p1.getOutputs();
+        String[] in2 = p2.getInputs();
+        String[] out2 = p2.getOutputs();
+        if (in1 == null || out1 == null || in2 == null || out2 == null) {
+            return false;
+        }
+        return !intersect(out1, in2) && !intersect(in1, out2) && !intersect(out1, out2);
+    }
+
+    private static boolean intersect( String[] a, String[] b ) {
+        List<String> lb = Arrays.asList(b);
+        for (String s : a) {
+            if (lb.contains(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] toArray( ArrayList<Integer> list ) {
+        int[] out = new int[list.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = list.get(i);
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import featureobjects.ParentFeature;
+import io.ParentFeatureSerialiser;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * A store of the {@link ParentFeature}s produced by each stage of a processor
+ * stream. The key of a stage is a hash of the path, size and modification
+ * time of the image file and its ROI files together with the settings
+ * fingerprints of the stage and all of the stages before it, so results are
+ * only reused if none of the inputs of the stage have changed, e.g. the spot
+ * detection results can be reused when only the distance settings are
+ * changed. The files are not read to key them, so an image which is replaced
+ * by one of the same size without its modification time changing is not
+ * noticed.
+ *
+ * The size of the cache is bounded, once it is exceeded the entries which
+ * have been used least recently are removed. The folder can be deleted to
+ * clear the cache.
+ *
+ * @author mqbssep5
+ */
+public class ResultCache {
+
+    /**
+     * The name of the folder, within the results folder, the cache is kept in
+     * by default.
+     */
+    public static final String FOLDER_NAME = "cache";
+
+    /**
+     * Changed whenever the stored format or the meaning of the keys changes,
+     * so that old entries are not used.
+     */
+    private static final String VERSION = "2";
+
+    private static final String EXT = ".features";
+
+    /**
+     * The default bound of the size of the cache, in MB.
+     */
+    public static final long DEFAULT_MAX_SIZE_MB = 1024;
+
+    private final File directory;
+
+    private final long maxSize;
+
+    /**
+     * The size of the entries, which is found from the folder on first use and
+     * again whenever it exceeds the bound, as other processes may share the
+     * folder.
+     */
+    private long size = -1;
+
+    /**
+     * Constructor
+     *
+     * @param directory the folder the results are stored in.
+     * @param maxSizeMB the size the entries are bounded to, in MB.
+     */
+    public ResultCache( File directory, long maxSizeMB ) {
+        this.directory = directory;
+        this.maxSize = Math.max(1, maxSizeMB) * 1024 * 1024;
+    }
+
+    /**
+     * Computes the fingerprint of each stage of the processor stream, which
+     * together with the hash of the input gives the key of the stage.
+     *
+     * @param processors the processor stream, with its settings read.
+     * @return the fingerprints of each stage and all of the stages before it.
+     */
+    public static String[] getStageFingerprints( AbstractParentFeatureProcessor[] processors ) {
+        String[] out = new String[processors.length];
+        String chain = VERSION;
+        for (int i = 0; i < processors.length; i++) {
+            chain = hash(chain, processors[i].getSettingsFingerprint());
+            out[i] = chain;
+        }
+        return out;
+    }
+
+    /**
+     * @param inputHash the hash of the input files, see
+     * {@link #hashFiles(java.io.File[])}.
+     * @param stageFingerprint
+     * @return the key of the stage for this input.
+     */
+    public static String getKey( String inputHash, String stageFingerprint ) {
+        return hash(inputHash, stageFingerprint);
+    }
+
+    /**
+     * @param key
+     * @return true if results are stored under the key.
+     */
+    public boolean contains( String key ) {
+        return getFile(key).exists();
+    }
+
+    /**
+     * @param key
+     * @return the results stored under the key, which are marked as used so
+     * that they are kept over the older entries.
+     * @throws IOException if they could not be read.
+     */
+    public ArrayList<ParentFeature> load( String key ) throws IOException {
+        File f = getFile(key);
+        ArrayList<ParentFeature> features = ParentFeatureSerialiser.read(f);
+        f.setLastModified(System.currentTimeMillis());
+        return features;
+    }
+
+    /**
+     * Stores the results under the key. The file is written under a temporary
+     * name and then renamed, so that an incomplete file is never read, even if
+     * several processes share the cache.
+     *
+     * @param key
+     * @param features
+     * @throws IOException if they could not be written.
+     */
+    public void store( String key, ArrayList<ParentFeature> features ) throws IOException {
+        directory.mkdirs();
+        File f = getFile(key);
+        File tmp = File.createTempFile(key, ".tmp", directory);
+        try {
+            ParentFeatureSerialiser.write(tmp, features);
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        added(f.length());
+    }
+
+    /**
+     * Adds the size of a new entry, and removes the least recently used
+     * entries if the cache has grown beyond its bound, down to 90% of the
+     * bound so that they are not removed on every store.
+     *
+     * @param bytes
+     */
+    private synchronized void added( long bytes ) {
+        if (size >= 0) {
+            size += bytes;
+            if (size <= maxSize) {
+                return;
+            }
+        }
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        final HashMap<File, Long> used = new HashMap<>();
+        size = 0;
+        for (File f : entries) {
+            if (f.getName().endsWith(EXT)) {
+                used.put(f, f.lastModified());
+                size += f.length();
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        ArrayList<File> oldest = new ArrayList<>(used.keySet());
+        Collections.sort(oldest, new Comparator<File>() {
+            @Override
+            public int compare( File a, File b ) {
+                return Long.compare(used.get(a), used.get(b));
+            }
+        });
+        long target = maxSize / 10 * 9;
+        for (int i = 0; i < oldest.size() && size > target; i++) {
+            File f = oldest.get(i);
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * Hashes the path, size and modification time of the files, in order.
+     *
+     * @param files
+     * @return the hash as a hexadecimal string.
+     * @throws IOException if any of the files does not exist.
+     */
+    public static String hashFiles( File... files ) throws IOException {
+        MessageDigest md = newDigest();
+        for (File f : files) {
+            if (!f.isFile()) {
+                throw new FileNotFoundException(f.getPath());
+            }
+            md.update((f.getAbsolutePath() + "|" + f.length() + "|" + f.lastModified()).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param parts
+     * @return a hash of the strings as a hexadecimal string.
+     */
+    public static String hash( String... parts ) {
+        MessageDigest md = newDigest();
+        for (String s : parts) {
+            md.update(s.getBytes(StandardCharsets.UTF_8));
+            // separates the parts, so that "ab","c" differs from "a","bc".
+            md.update((byte) 0);
+        }
+        return toHex(md.digest());
+    }
+
+    private File getFile( String key ) {
+        return new File(directory, key + EXT);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex( byte[] bytes ) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import featureobjects.ParentFeature;
+import ij.IJ;
+import io.ParentFeatureSerialiser;
+import io.ProcessorSettingsIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Properties;
+
+/**
+ * Saves the {@link ParentFeature}s of each image as soon as it has been
+ * processed, so that a run which is stopped part way through (e.g. by running
+ * out of memory or a reboot) can be resumed without processing the finished
+ * images again.
+ *
+ * The files are kept in a folder in the results folder, along with a run
+ * manifest recording the processor stream and all of its settings. A
+ * checkpoint is only resumed if the settings are the same as those of the new
+ * run, otherwise it is deleted and the run starts from the beginning. The
+ * features of each image are stored with a hash of the image and ROI files,
+ * see {@link ResultCache#hashFiles(java.io.File...)}, so that an image which
+ * has been replaced, or whose ROIs have been saved again, is processed again.
+ *
+ * @author mqbssep5
+ */
+public class RunCheckpoint {
+
+    /**
+     * The name of the folder, within the results folder, the checkpoint is
+     * kept in.
+     */
+    public static final String FOLDER_NAME = "checkpoint";
+
+    /**
+     * The name of the run manifest file.
+     */
+    public static final String MANIFEST_NAME = "manifest.properties";
+
+    /**
+     * Manifest key for the name of the processor stream.
+     */
+    public static final String MANIFEST_STREAM = "manifest.stream";
+
+    private static final String FEATURES_EXT = ".features";
+
+    private static final String INPUT_HASH_EXT = ".input";
+
+    private final File directory;
+
+    private final Properties manifest;
+
+    /**
+     * Constructor
+     *
+     * @param saveDirectory the folder the results are saved to.
+     * @param manifest the stream and settings of the run, see
+     * {@link #createManifest(java.lang.String, abstractprocessors.AbstractParentFeatureProcessor[])}.
+     */
+    public RunCheckpoint( String saveDirectory, Properties manifest ) {
+        this.directory = new File(saveDirectory, FOLDER_NAME);
+        this.manifest = manifest;
+    }
+
+    /**
+     * @param stream the name of the processor stream.
+     * @param processors the processors of the stream, with their settings
+     * entered.
+     * @return the manifest of the run, without the settings which do not
+     * change the results.
+     */
+    public static Properties createManifest( String stream, AbstractParentFeatureProcessor[] processors ) {
+        Properties manifest = new Properties();
+        manifest.setProperty(MANIFEST_STREAM, stream);
+        for (AbstractParentFeatureProcessor p : processors) {
+            p.saveResultSettings(manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Opens the checkpoint, deleting any left by a run with different
+     * settings.
+     *
+     * @return true if there is a checkpoint of an earlier run with the same
+     * settings to resume.
+     * @throws IOException if the manifest could not be written.
+     */
+    public boolean open() throws IOException {
+        File fmanifest = new File(directory, MANIFEST_NAME);
+        if (fmanifest.exists()) {
+            Properties previous = null;
+            try {
+                previous = ProcessorSettingsIO.loadSettings(fmanifest.getPath());
+            } catch (IOException e) {
+                IJ.log("Could not read " + fmanifest + ": " + e.getMessage());
+            }
+            if (manifest.equals(previous)) {
+                return true;
+            }
+            IJ.log("The settings have changed since the last run, so it will not be resumed.");
+            delete();
+        }
+        directory.mkdirs();
+        ProcessorSettingsIO.saveSettings(manifest, fmanifest.getPath(), "CellFeatureAnalyser run manifest");
+        return false;
+    }
+
+    /**
+     * @param imageName
+     * @param inputHash the hash of the image and ROI files as they are now.
+     * @return true if the image was processed by an earlier run, from the
+     * same image and ROI files.
+     */
+    public boolean isComplete( String imageName, String inputHash ) {
+        File f = getFile(imageName);
+        if (!f.exists()) {
+            return false;
+        }
+        String previous = null;
+        try {
+            previous = new String(Files.readAllBytes(getInputHashFile(imageName).toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // an older checkpoint, or the hash could not be read.
+        }
+        if (!inputHash.equals(previous)) {
+            IJ.log(imageName + " or its ROIs have changed since the last run, so it will be processed again.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads in the features of an image processed by an earlier run.
+     *
+     * @param imageName
+     * @return the features.
+     * @throws IOException if they could not be read.
+     */
+    public ArrayList<ParentFeature> restore( String imageName ) throws IOException {
+        return ParentFeatureSerialiser.read(getFile(imageName));
+    }
+
+    /**
+     * Saves the features of an image once it has been processed. The files are
+     * written under temporary names and then renamed, so that an incomplete
+     * file is never taken for a finished image.
+     *
+     * @param imageName
+     * @param inputHash the hash of the image and ROI files the features were
+     * found from.
+     * @param features
+     * @throws IOException if they could not be saved.
+     */
+    public void save( String imageName, String inputHash, ArrayList<ParentFeature> features ) throws IOException {
+        File f = getFile(imageName);
+        File fhash = getInputHashFile(imageName);
+        File tmp = new File(directory, f.getName() + ".tmp");
+        File tmpHash = new File(directory, fhash.getName() + ".tmp");
+        ParentFeatureSerialiser.write(tmp, features);
+        Files.write(tmpHash.toPath(), inputHash.getBytes(StandardCharsets.UTF_8));
+        // the features of the previous files go first, so that they are never 
+        // taken for those of the new ones. 
+        Files.deleteIfExists(f.toPath());
+        Files.move(tmpHash.toPath(), fhash.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the checkpoint, e.g. once the run has finished.
+     */
+    public void delete() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private File getFile( String imageName ) {
+        return new File(directory, imageName + FEATURES_EXT);
+    }
+
+    private File getInputHashFile( String imageName ) {
+        return new File(directory, imageName + INPUT_HASH_EXT);
+    }
+
+}
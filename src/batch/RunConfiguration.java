@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import io.ProcessorSettingsIO;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * All of the settings of a run: the processor stream, the settings of each of
+ * its processors and the options of the run, e.g. the number of threads.
+ *
+ * A configuration is immutable, and is taken from the processors once, before
+ * the run, so that the run does not depend on the settings panels. It is
+ * written to the results folder as {@link #FILE_NAME} by both the GUI and the
+ * {@link BatchRunner}, and as it uses the same keys as the settings file of
+ * the {@link BatchRunner} any run, whether from the GUI, sharded or partly
+ * taken from the cache, can be repeated by passing it to the
+ * {@link BatchRunner}.
+ *
+ * @author mqbssep5
+ */
+public final class RunConfiguration {
+
+    /**
+     * The name of the configuration written to the results folder.
+     */
+    public static final String FILE_NAME = "Run_configuration.properties";
+
+    private final Properties settings;
+
+    /**
+     * @param settings the settings, which are copied.
+     */
+    public RunConfiguration( Properties settings ) {
+        this.settings = new Properties();
+        this.settings.putAll(settings);
+    }
+
+    /**
+     * Takes the configuration of the processors, using the settings they
+     * process with, see {@link AbstractParentFeatureProcessor#readSettings()}.
+     *
+     * @param stream the name of the processor stream.
+     * @param processors the processors of the stream.
+     * @param options the options of the run, see the settings keys of
+     * {@link BatchRunner}, or null.
+     * @return the configuration.
+     */
+    public static RunConfiguration capture( String stream, AbstractParentFeatureProcessor[] processors, Properties options ) {
+        Properties settings = new Properties();
+        if (options != null) {
+            settings.putAll(options);
+        }
+        settings.setProperty(BatchRunner.SETTING_STREAM, stream);
+        for (AbstractParentFeatureProcessor p : processors) {
+            p.saveSettings(settings);
+        }
+        return new RunConfiguration(settings);
+    }
+
+    /**
+     * @param filePath
+     * @return the configuration stored in the file.
+     * @throws IOException if the file could not be read.
+     */
+    public static RunConfiguration load( String filePath ) throws IOException {
+        return new RunConfiguration(ProcessorSettingsIO.loadSettings(filePath));
+    }
+
+    /**
+     * @param filePath the file the configuration is written to.
+     * @throws IOException if the file could not be written.
+     */
+    public void save( String filePath ) throws IOException {
+        ProcessorSettingsIO.saveSettings(settings, filePath, "CellFeatureAnalyser run configuration");
+    }
+
+    /**
+     * Applies the settings of the processors, see
+     * {@link AbstractParentFeatureProcessor#loadSettings(java.util.Properties)}.
+     *
+     * @param processors
+     */
+    public void apply( AbstractParentFeatureProcessor[] processors ) {
+        for (AbstractParentFeatureProcessor p : processors) {
+            p.loadSettings(settings);
+        }
+    }
+
+    /**
+     * @return the name of the processor stream, or null if not set.
+     */
+    public String getStream() {
+        return getProperty(BatchRunner.SETTING_STREAM, null);
+    }
+
+    /**
+     * @param key
+     * @param defaultValue
+     * @return the trimmed value stored under the key, or the default if there
+     * is none.
+     */
+    public String getProperty( String key, String defaultValue ) {
+        String value = settings.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /**
+     * @return a copy of all of the settings.
+     */
+    public Properties toProperties() {
+        Properties copy = new Properties();
+        copy.putAll(settings);
+        return copy;
+    }
+
+}
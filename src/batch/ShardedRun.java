@@ -0,0 +1,366 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package batch;
+
+import featureobjects.ParentFeature;
+import ij.IJ;
+import io.ParentFeatureSerialiser;
+import io.ProcessorSettingsIO;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Shares the processing of an image folder between several processes, e.g.
+ * separate JVMs on the nodes of a cluster which share the file system,
+ * without a central coordinator.
+ *
+ * Each image is claimed by creating a lease file for it, which only one
+ * process can do. The lease is renewed whilst the image is being processed,
+ * so the images of a process which has died are claimed again by another once
+ * their leases have expired. The features of each image are saved once it has
+ * been processed, and once all of the images are finished one of the
+ * processes (the one which claims the merge lease) reads them all back in and
+ * summarises them, giving the same result files as running all of the images
+ * in a single process.
+ *
+ * The files are kept in a folder in the results folder along with the run
+ * manifest. Processes whose settings differ from the manifest are refused, as
+ * their results could not be merged.
+ *
+ * @author mqbssep5
+ */
+public class ShardedRun {
+
+    /**
+     * The name of the folder, within the results folder, the shared files are
+     * kept in.
+     */
+    public static final String FOLDER_NAME = "shards";
+
+    private static final String MANIFEST_NAME = "manifest.properties";
+
+    private static final String LEASE_EXT = ".lease";
+
+    private static final String FEATURES_EXT = ".features";
+
+    private static final String FAILED_EXT = ".failed";
+
+    private static final String MERGE_LEASE = "merge" + LEASE_EXT;
+
+    private final File directory;
+
+    private final Properties manifest;
+
+    private final long leaseTimeout;
+
+    private final String workerID;
+
+    /**
+     * The lease files currently held by this process.
+     */
+    private final HashSet<File> leases = new HashSet<>();
+
+    private Timer renewTimer;
+
+    /**
+     * Constructor
+     *
+     * @param saveDirectory the folder the results are saved to.
+     * @param manifest the stream and settings of the run, see
+     * {@link RunCheckpoint#createManifest(java.lang.String, abstractprocessors.AbstractParentFeatureProcessor[])}.
+     * @param leaseTimeout the time, in milliseconds, after which the lease of
+     * an image which has not been renewed is taken to be abandoned.
+     */
+    public ShardedRun( String saveDirectory, Properties manifest, long leaseTimeout ) {
+        this.directory = new File(saveDirectory, FOLDER_NAME);
+        this.manifest = manifest;
+        this.leaseTimeout = Math.max(1000, leaseTimeout);
+        this.workerID = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /**
+     * @return the name identifying this process in the lease files.
+     */
+    public String getWorkerID() {
+        return workerID;
+    }
+
+    /**
+     * Joins the run, creating it if this is the first process, and starts
+     * renewing the leases this process holds.
+     *
+     * @return false if the run was started with different settings.
+     * @throws IOException if the manifest could not be written or read.
+     */
+    public boolean open() throws IOException {
+        directory.mkdirs();
+        File fmanifest = new File(directory, MANIFEST_NAME);
+        if (!fmanifest.exists()) {
+            // written under a temporary name so that the other processes never read it part written.
+            File tmp = File.createTempFile(MANIFEST_NAME, ".tmp", directory);
+            try {
+                ProcessorSettingsIO.saveSettings(manifest, tmp.getPath(), "CellFeatureAnalyser run manifest");
+                // unlike a move, linking fails if another process has created it since.
+                Files.createLink(fmanifest.toPath(), tmp.toPath());
+            } catch (FileAlreadyExistsException e) {
+                // another process created it first.
+            } finally {
+                tmp.delete();
+            }
+        }
+        if (!manifest.equals(ProcessorSettingsIO.loadSettings(fmanifest.getPath()))) {
+            IJ.log("The settings differ from those of the run in " + directory + ", delete the folder to start a new run.");
+            return false;
+        }
+        renewTimer = new Timer("lease renewal", true);
+        renewTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                renewLeases();
+            }
+        }, leaseTimeout / 4, leaseTimeout / 4);
+        return true;
+    }
+
+    /**
+     * Stops renewing the leases, and releases any still held.
+     */
+    public void close() {
+        if (renewTimer != null) {
+            renewTimer.cancel();
+            renewTimer = null;
+        }
+        synchronized (leases) {
+            for (File f : leases) {
+                if (holds(f)) {
+                    f.delete();
+                }
+            }
+            leases.clear();
+        }
+    }
+
+    /**
+     * Claims an image, unless it has already been processed or another
+     * process holds a lease on it which has not expired.
+     *
+     * @param imageName
+     * @return true if this process now holds the lease of the image.
+     */
+    public boolean claim( String imageName ) {
+        if (isProcessed(imageName)) {
+            return false;
+        }
+        return acquire(new File(directory, imageName + LEASE_EXT));
+    }
+
+    /**
+     * Saves the features of a claimed image once it has been processed and
+     * releases its lease.
+     *
+     * @param imageName
+     * @param features
+     * @throws IOException if the features could not be saved, in which case
+     * the lease is kept until {@link #fail(java.lang.String)} is called.
+     */
+    public void complete( String imageName, ArrayList<ParentFeature> features ) throws IOException {
+        File f = getFile(imageName, FEATURES_EXT);
+        File tmp = File.createTempFile(f.getName(), ".tmp", directory);
+        try {
+            ParentFeatureSerialiser.write(tmp, features);
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        getFile(imageName, FAILED_EXT).delete();
+        release(getFile(imageName, LEASE_EXT));
+    }
+
+    /**
+     * Records that a claimed image could not be processed and releases its
+     * lease. It is merged without any features, as when processing it in a
+     * single process fails, but will be tried again by processes started
+     * later.
+     *
+     * @param imageName
+     */
+    public void fail( String imageName ) {
+        try {
+            Files.write(getFile(imageName, FAILED_EXT).toPath(), workerID.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            IJ.log("Could not record the failure of " + imageName + ": " + e.getMessage());
+        }
+        release(getFile(imageName, LEASE_EXT));
+    }
+
+    /**
+     * @param imageName
+     * @return true if the image has been processed, or has failed and is not
+     * being tried again.
+     */
+    public boolean isFinished( String imageName ) {
+        return isProcessed(imageName)
+                || (getFile(imageName, FAILED_EXT).exists() && !getFile(imageName, LEASE_EXT).exists());
+    }
+
+    /**
+     * @param imageName
+     * @return true if the features of the image have been saved.
+     */
+    public boolean isProcessed( String imageName ) {
+        return getFile(imageName, FEATURES_EXT).exists();
+    }
+
+    /**
+     * Claims the merge of the results, which is only done by one process.
+     *
+     * @return true if this process should merge the results.
+     */
+    public boolean claimMerge() {
+        return acquire(new File(directory, MERGE_LEASE));
+    }
+
+    /**
+     * Reads in the features of a processed image.
+     *
+     * @param imageName
+     * @return the features, or an empty list if the image failed.
+     * @throws IOException if they could not be read.
+     */
+    public ArrayList<ParentFeature> restore( String imageName ) throws IOException {
+        if (!isProcessed(imageName)) {
+            return new ArrayList<>();
+        }
+        return ParentFeatureSerialiser.read(getFile(imageName, FEATURES_EXT));
+    }
+
+    /**
+     * Deletes the shared files, once the results have been merged.
+     */
+    public void delete() {
+        close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Creates the lease file, replacing it if it has expired.
+     */
+    private boolean acquire( File lease ) {
+        long modified = lease.lastModified();
+        if (modified != 0 && System.currentTimeMillis() - modified > leaseTimeout) {
+            String owner = readOwner(lease);
+            // moving it away first means only one of the processes finding it expired replaces it.
+            File stale = new File(directory, lease.getName() + "." + workerID + ".stale");
+            try {
+                Files.move(lease.toPath(), stale.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                if (stale.lastModified() == modified && owner != null && owner.equals(readOwner(stale))) {
+                    IJ.log("The lease " + lease.getName() + " had expired and has been taken over.");
+                } else {
+                    // another process took it over since it was found expired, 
+                    // so it is put back. Unlike a move, linking fails rather 
+                    // than replacing a lease created since. 
+                    try {
+                        Files.createLink(lease.toPath(), stale.toPath());
+                    } catch (IOException e) {
+                        IJ.log("Could not put back the lease " + lease.getName() + ": " + e);
+                    }
+                }
+                stale.delete();
+            } catch (IOException e) {
+                // taken over by another process.
+            }
+        }
+        try {
+            Files.write(lease.toPath(), workerID.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+        } catch (IOException e) {
+            return false;
+        }
+        synchronized (leases) {
+            leases.add(lease);
+        }
+        return true;
+    }
+
+    /**
+     * Releases a lease, unless it has been taken over by another process.
+     */
+    private void release( File lease ) {
+        synchronized (leases) {
+            leases.remove(lease);
+        }
+        if (holds(lease)) {
+            lease.delete();
+        }
+    }
+
+    private void renewLeases() {
+        long now = System.currentTimeMillis();
+        synchronized (leases) {
+            for (Iterator<File> it = leases.iterator(); it.hasNext();) {
+                File f = it.next();
+                if (holds(f)) {
+                    f.setLastModified(now);
+                } else {
+                    // e.g. not renewed in time whilst the process was suspended.
+                    IJ.log("The lease " + f.getName() + " has been taken over by another process.");
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the lease file is that of this process.
+     */
+    private boolean holds( File lease ) {
+        return workerID.equals(readOwner(lease));
+    }
+
+    /**
+     * @return the worker ID in the lease file, or null if it could not be
+     * read, e.g. as it has been deleted.
+     */
+    private static String readOwner( File lease ) {
+        try {
+            return new String(Files.readAllBytes(lease.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private File getFile( String imageName, String ext ) {
+        return new File(directory, imageName + ext);
+    }
+
+}
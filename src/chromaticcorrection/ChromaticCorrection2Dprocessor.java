@@ -16,13 +16,18 @@
 package chromaticcorrection;
 
 import abstractprocessors.AbstractParentFeatureProcessor;
+import featureobjects.CropCache;
+import featureobjects.ParentFeature;
 import gui.CellAnalyserGUIModel;
 import gui.GUI;
 import gui.TextFieldGetTextOps;
 import ij.ImagePlus;
+import io.ProcessorSettingsIO;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Properties;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JPanel;
@@ -53,12 +58,21 @@ public class ChromaticCorrection2Dprocessor extends AbstractParentFeatureProcess
 
     private JButton jbtPreview;
 
-    private double shiftX = 0.00;
-
-    private double shiftY = 0.00;
+    /**
+     * The shift applied, taken from the settings panel by {@link #readSettings()} 
+     * or from a settings file by {@link #loadSettings(java.util.Properties)}. 
+     */
+    private volatile Settings settings = new Settings(0.00, 0.00);
 
     public static String NAME = "Chromatic";
 
+    /**
+     * Settings file keys.
+     */
+    public static final String SETTING_SHIFT_X = "chromatic.dx";
+
+    public static final String SETTING_SHIFT_Y = "chromatic.dy";
+
     public ChromaticCorrection2Dprocessor(CellAnalyserGUIModel model) {
         super(model);
     }
@@ -74,8 +88,8 @@ public class ChromaticCorrection2Dprocessor extends AbstractParentFeatureProcess
 
         Dimension siz = GUI.FULL_WIDTH_DIM;
 
-        jtfShiftX = gc.jTextFeild("" + shiftX, siz);
-        jtfShiftY = gc.jTextFeild("" + shiftY, siz);
+        jtfShiftX = gc.jTextFeild("" + settings.getShiftX(), siz);
+        jtfShiftY = gc.jTextFeild("" + settings.getShiftY(), siz);
 
         // shift units. 
         jrbPix = gc.jRadioButton("Pix", null, siz);
@@ -104,19 +118,60 @@ public class ChromaticCorrection2Dprocessor extends AbstractParentFeatureProcess
     }
 
     @Override
-    public void doProcess() {
+    public void readSettings() {
+        settings = getValues();
+    }
 
-        getSettings();
+    /**
+     * @return the shift applied. 
+     */
+    public Settings getSettings() {
+        return settings;
+    }
 
-        // shift the image current image 
+    /**
+     * @param settings the shift applied from now on, which is also shown in 
+     * the settings panel if it has been created. 
+     */
+    public void setSettings( Settings settings ) {
+        this.settings = settings;
+        if (jtfShiftX != null) {
+            jtfShiftX.setText(Double.toString(settings.getShiftX()));
+            jtfShiftY.setText(Double.toString(settings.getShiftY()));
+        }
+    }
+
+    @Override
+    public void doProcess( ImagePlus imp, ArrayList<ParentFeature> features ) {
+
+        // shift the image 
+        Settings s = settings;
         ShiftImageSlices shifter = new ShiftImageSlices();
-        shifter.process(model.getCurrentImageDataSet(), new double[]{shiftX}, new double[]{shiftY}, true);
+        shifter.process(imp, new double[]{s.getShiftX()}, new double[]{s.getShiftY()}, true);
+        // any crops taken before the shift are out of date. 
+        CropCache.evict(imp);
+
+    }
+
+    @Override
+    public boolean changesImage() {
+        return true;
+    }
 
+    @Override
+    public String[] getInputs() {
+        return new String[]{DATA_IMAGE};
+    }
+
+    @Override
+    public String[] getOutputs() {
+        return new String[]{DATA_IMAGE};
     }
 
     private void doPreview() {
 
-        getSettings();
+        readSettings();
+        Settings s = settings;
 
         // duplicate the current image, apply the shift, and display the image. 
         ImagePlus impCurrentDup = model.getCurrentImageDataSet().duplicate();
@@ -126,13 +181,16 @@ public class ChromaticCorrection2Dprocessor extends AbstractParentFeatureProcess
         //System.out.println(" pix size " + impCurrentDup.getCalibration().pixelWidth);
 
         ShiftImageSlices shifter = new ShiftImageSlices();
-        shifter.process(impCurrentDup, new double[]{shiftX}, new double[]{shiftY}, true);
+        shifter.process(impCurrentDup, new double[]{s.getShiftX()}, new double[]{s.getShiftY()}, true);
 
     }
 
-    private void getSettings() {
-        shiftX = TextFieldGetTextOps.doubleOrDefault(jtfShiftX, shiftX);
-        shiftY = TextFieldGetTextOps.doubleOrDefault(jtfShiftY, shiftY);
+    /**
+     * @return the shift entered in the panel. 
+     */
+    private Settings getValues() {
+        Settings s = settings;
+        return new Settings(TextFieldGetTextOps.doubleOrDefault(jtfShiftX, s.getShiftX()), TextFieldGetTextOps.doubleOrDefault(jtfShiftY, s.getShiftY()));
     }
 
     @Override
@@ -140,6 +198,20 @@ public class ChromaticCorrection2Dprocessor extends AbstractParentFeatureProcess
         return NAME;
     }
 
+    @Override
+    public void loadSettings( Properties settings ) {
+        Settings s = this.settings;
+        setSettings(new Settings(ProcessorSettingsIO.doubleOrDefault(settings, SETTING_SHIFT_X, s.getShiftX()), 
+                ProcessorSettingsIO.doubleOrDefault(settings, SETTING_SHIFT_Y, s.getShiftY())));
+    }
+
+    @Override
+    public void saveSettings( Properties settings ) {
+        Settings s = this.settings;
+        settings.setProperty(SETTING_SHIFT_X, Double.toString(s.getShiftX()));
+        settings.setProperty(SETTING_SHIFT_Y, Double.toString(s.getShiftY()));
+    }
+
     @Override
     public void summariseAndSave() {
 
@@ -152,4 +224,31 @@ public class ChromaticCorrection2Dprocessor extends AbstractParentFeatureProcess
         }
     }
 
+    /**
+     * The chromatic shift of the second channel. Immutable, so that it can be 
+     * shared by all of the threads of a run. 
+     */
+    public static final class Settings {
+
+        private final double shiftX, shiftY;
+
+        /**
+         * @param shiftX in the same units as the pixels. 
+         * @param shiftY 
+         */
+        public Settings( double shiftX, double shiftY ) {
+            this.shiftX = shiftX;
+            this.shiftY = shiftY;
+        }
+
+        public double getShiftX() {
+            return shiftX;
+        }
+
+        public double getShiftY() {
+            return shiftY;
+        }
+
+    }
+
 }
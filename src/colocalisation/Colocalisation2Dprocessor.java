@@ -17,15 +17,22 @@ package colocalisation;
 
 import abstractprocessors.AbstractParentFeatureProcessor;
 
+import featuredetector.spotdetector.SpotDetectorMultiChannelProcessor;
+import featureobjects.CropCache;
 import featureobjects.ParentFeature;
 import gui.CellAnalyserGUIModel;
 import gui.GUI;
 import gui.JPanelSpeedy2ColBased;
 import gui.TextFieldGetTextOps;
+import ij.ImagePlus;
 import ij.measure.ResultsTable;
 import io.FeaturesAndParentFeaturesToResultsTable;
+import io.ProcessorSettingsIO;
+import io.StreamingResultsSink;
 import java.awt.Dimension;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Properties;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JPanel;
@@ -41,28 +48,39 @@ public class Colocalisation2Dprocessor extends AbstractParentFeatureProcessor{
 
     public static String NAME = "Coloc";
     
+    /**
+     * Settings file keys.
+     */
+    public static final String SETTING_REFERENCE_CHANNEL = "coloc.referenceChannel";
+    
+    public static final String SETTING_N_RANDOMISATIONS = "coloc.nRandomisations";
+    
+    /**
+     * The name of the colocalisation measurements, for {@link #getOutputs()}.
+     */
+    public static final String DATA_COLOCALISATION = "colocalisation";
+    
     private JPanelSpeedy2ColBased panel;
     
     private GUI gc;
     
     private JTextField jtfDoRandomisaion;    
     
-    private int nrandomisations = 10;
-    
-    private int referencechannel = 0;
+    /**
+     * The settings used for processing, taken from the settings panel by 
+     * {@link #readSettings()} or from a settings file by 
+     * {@link #loadSettings(java.util.Properties)}. 
+     */
+    private volatile Settings settings = new Settings(0, 10, false);
     
-    private int nchannels, nfeatures;
+    private int nchannels;
     
     private Dimension hsiz = GUI.HALF_WIDTH_DIM;       
     
     private JComboBox jComboChannel;
     
-    private ArrayList<ParentFeature> parentFeatures;    
-    
     private JCheckBox jbcShowRandimisedImages;
     
-    private boolean showRandomisedImages = false;
-    
     public Colocalisation2Dprocessor(CellAnalyserGUIModel model) {
         super(model);
     }
@@ -79,9 +97,10 @@ public class Colocalisation2Dprocessor extends AbstractParentFeatureProcessor{
             channels[i] = ""+(i+1);
         }
         jComboChannel = gc.jComboBox(channels, hsiz);        
-        jtfDoRandomisaion = gc.jTextFeild(""+nrandomisations, hsiz);
+        jtfDoRandomisaion = gc.jTextFeild(""+settings.getNRandomisations(), hsiz);
         // provide the option fot seeing the rendomised images.
         jbcShowRandimisedImages = gc.jCheckBox("Show randomised images", hsiz);
+        showSettings(settings);
       
         panel.addTwoComponentsToRow(gc.jLabel("Reference channel", hsiz), jComboChannel);
         panel.addTwoComponentsToRow(gc.jLabel("n randomisations", hsiz), jtfDoRandomisaion);
@@ -93,19 +112,48 @@ public class Colocalisation2Dprocessor extends AbstractParentFeatureProcessor{
     }
 
     @Override
-    public void doProcess() {
+    public void readSettings() {
         
-        // get the features for the current data set.
-        parentFeatures = model.getCurrentImageSetParentFeatures();
-        nfeatures = parentFeatures.size();
+        // get the settings from the panel.
+        settings = new Settings(jComboChannel.getSelectedIndex(), 
+                TextFieldGetTextOps.positiveIntegerOrDefault(jtfDoRandomisaion, settings.getNRandomisations()), 
+                jbcShowRandimisedImages.isSelected());
         
-        ParentFeature currentFeature;
+    }
+
+    /**
+     * @return the settings used for processing. 
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @param settings the settings used for processing from now on, which are 
+     * also shown in the settings panel if it has been created. 
+     */
+    public void setSettings( Settings settings ) {
+        this.settings = settings;
+        if (jComboChannel != null) {
+            showSettings(settings);
+        }
+    }
+
+    private void showSettings( Settings s ) {
+        if (s.getReferenceChannel() < jComboChannel.getItemCount()) {
+            jComboChannel.setSelectedIndex(s.getReferenceChannel());
+        }
+        jtfDoRandomisaion.setText(Integer.toString(s.getNRandomisations()));
+        jbcShowRandimisedImages.setSelected(s.isShowRandomisedImages());
+    }
+
+    @Override
+    public void doProcess( ImagePlus imp, ArrayList<ParentFeature> parentFeatures ) {
         
-        // get the settings from the panel.
-        referencechannel = jComboChannel.getSelectedIndex();
-        nrandomisations = TextFieldGetTextOps.positiveIntegerOrDefault(jtfDoRandomisaion, nrandomisations);
+        int nfeatures = parentFeatures.size();
         
-        showRandomisedImages = jbcShowRandimisedImages.isSelected();
+        ParentFeature currentFeature;
+        Settings s = settings;
         
         // class which does the number crunching 
         FeatureColocaliszer2D coloc;
@@ -113,8 +161,8 @@ public class Colocalisation2Dprocessor extends AbstractParentFeatureProcessor{
             
             currentFeature = parentFeatures.get(i);
             // do the colocalisation 
-            coloc = new FeatureColocaliszer2D(currentFeature, nrandomisations, referencechannel);
-            coloc.showRandimisedImages(showRandomisedImages);
+            coloc = new FeatureColocaliszer2D(currentFeature, s.getNRandomisations(), s.getReferenceChannel(), CropCache.of(imp));
+            coloc.showRandimisedImages(s.isShowRandomisedImages());
             coloc.doColocalisations();
             
         }
@@ -126,20 +174,105 @@ public class Colocalisation2Dprocessor extends AbstractParentFeatureProcessor{
         return NAME;
     }
 
+    @Override
+    public String[] getInputs() {
+        return new String[]{SpotDetectorMultiChannelProcessor.DATA_SPOTS};
+    }
+
+    @Override
+    public String[] getOutputs() {
+        return new String[]{DATA_COLOCALISATION};
+    }
+
+    @Override
+    public boolean isFrameIndependent() {
+        // each cell is processed on its own.
+        return true;
+    }
+
+    @Override
+    public void loadSettings( Properties settings ) {
+        Settings s = this.settings;
+        int reference = ProcessorSettingsIO.positiveIntegerOrDefault(settings, SETTING_REFERENCE_CHANNEL, s.getReferenceChannel() + 1) - 1;
+        if (reference < 0 || reference >= model.getNchannels()) {
+            reference = s.getReferenceChannel();
+        }
+        // never show the randomised images when the settings come from a file. 
+        setSettings(new Settings(reference, 
+                ProcessorSettingsIO.positiveIntegerOrDefault(settings, SETTING_N_RANDOMISATIONS, s.getNRandomisations()), 
+                false));
+    }
+
+    @Override
+    public void saveSettings( Properties settings ) {
+        Settings s = this.settings;
+        settings.setProperty(SETTING_REFERENCE_CHANNEL, "" + (s.getReferenceChannel() + 1));
+        settings.setProperty(SETTING_N_RANDOMISATIONS, Integer.toString(s.getNRandomisations()));
+    }
+
     @Override
     public void summariseAndSave() {
        
         System.out.println("Summarising " + NAME);
         
         ResultsTable rt = FeaturesAndParentFeaturesToResultsTable.parentFeatureSpecifiedNumericalProperties2ResultsTable(model, FeatureColocaliszer2D.ALL_METRICS);
-        rt.show("Colocalisation results");
+        if (!model.isHeadless()) {
+            rt.show("Colocalisation results");
+        }
         
         try{
-            rt.save( model.getSaveFileDirectory() + "\\"+"Colocalisation_results.csv" );
+            rt.save( model.getSaveFileDirectory() + File.separator + "Colocalisation_results.csv" );
         }catch(Exception e){
             System.out.println(e.getMessage());
         }        
         
     }
+
+    @Override
+    public void streamResults( StreamingResultsSink sink, int imageIndex, String imageName, ArrayList<ParentFeature> features ) {
+        ResultsTable rt = new ResultsTable();
+        FeaturesAndParentFeaturesToResultsTable.addSpecifiedNumericalPropertiesRows(rt, imageName, features, FeatureColocaliszer2D.ALL_METRICS);
+        sink.addResults(imageIndex, "Colocalisation_results.csv", rt);
+    }
+
+    @Override
+    public boolean resultsAreStreamed() {
+        return true;
+    }
+    
+    /**
+     * The settings of the colocalisation. Immutable, so that they can be 
+     * shared by all of the threads of a run. 
+     */
+    public static final class Settings {
+
+        private final int referenceChannel, nRandomisations;
+
+        private final boolean showRandomisedImages;
+
+        /**
+         * @param referenceChannel the index of the reference channel. 
+         * @param nRandomisations the number of randomisation tests. 
+         * @param showRandomisedImages whether the randomised images are shown. 
+         */
+        public Settings( int referenceChannel, int nRandomisations, boolean showRandomisedImages ) {
+            this.referenceChannel = referenceChannel;
+            this.nRandomisations = nRandomisations;
+            this.showRandomisedImages = showRandomisedImages;
+        }
+
+        public int getReferenceChannel() {
+            return referenceChannel;
+        }
+
+        public int getNRandomisations() {
+            return nRandomisations;
+        }
+
+        public boolean isShowRandomisedImages() {
+            return showRandomisedImages;
+        }
+
+    }
     
 }
@@ -20,6 +20,7 @@ import colocalisation.coefficients.PearsonsCorrelaionCoeff;
 import featuredetector.spotdetector.LoGSpotDetector2D;
 import featuredetector.spotdetector.SpotDetectorChannelProcessor;
 import featuredetector.spotdetector.SpotDetectorCommon;
+import featureobjects.CropCache;
 import featureobjects.Feature;
 import featureobjects.FeatureOps;
 import featureobjects.ParentFeature;
@@ -33,6 +34,7 @@ import java.awt.Rectangle;
 import java.util.ArrayList;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.inference.TestUtils;
+import timingutil.StageTimings;
 
 /**
  * Performs the number crunching for the {@link Colocalisation2Dprocessor} class.
@@ -50,6 +52,8 @@ public class FeatureColocaliszer2D {
 
     private final int referenceChannel;
 
+    private final CropCache cache;
+
     private int nchannels;
 
     public static final String PCC_FEATURE_ORG = "PCC_FEATURE_ORG";
@@ -87,9 +91,22 @@ public class FeatureColocaliszer2D {
      * @param referenceChannel
      */
     public FeatureColocaliszer2D(ParentFeature pf, int nRandomisations, int referenceChannel) {
+        this(pf, nRandomisations, referenceChannel, null);
+    }
+
+    /**
+     *
+     * @param pf
+     * @param nRandomisations
+     * @param referenceChannel
+     * @param cache the cache of the image the feature is in, from which the 
+     * pixels inside of the outline of the feature are taken, or null. 
+     */
+    public FeatureColocaliszer2D(ParentFeature pf, int nRandomisations, int referenceChannel, CropCache cache) {
         this.pf = pf;
         this.nRandomisations = nRandomisations;
         this.referenceChannel = referenceChannel;
+        this.cache = cache;
     }
 
     public void showRandimisedImages( boolean showImages ){
@@ -98,6 +115,7 @@ public class FeatureColocaliszer2D {
     
     public void doColocalisations() {
 
+        StageTimings.Timer timer = StageTimings.start("FeatureColocaliszer2D", pf.getImageName(), StageTimings.describe(pf));
         Rectangle bounds = pf.getBounds();
         width = bounds.width;
         height = bounds.height;
@@ -113,7 +131,8 @@ public class FeatureColocaliszer2D {
 
         ArrayList<Feature> candFeatures;
 
-        PolygonRoi roi = pf.getFeatureBoundsShifted();
+        // the pixels inside of the outline, the same for every randomisation. 
+        Point[] roiPoints = cache != null ? cache.getContainedPointsShifted(pf) : pf.getFeatureBoundsShifted().getContainedPoints();
 
         double pcc, moc1, moc2;
         double pccOrg, moc1Org, moc2Org;
@@ -137,8 +156,8 @@ public class FeatureColocaliszer2D {
                 is.addSlice(ipCandidateOriginal.duplicate());
             }
             
-            pccOrg = PearsonsCorrelaionCoeff.correlation( ipReference.duplicate(), ipCandidateOriginal.duplicate(), roi );
-            moc = MandersColocalisationCoefficients.mandersColocalisationCoefficients( ipReference.duplicate(), ipCandidateOriginal.duplicate(), roi );
+            pccOrg = PearsonsCorrelaionCoeff.correlation( ipReference.duplicate(), ipCandidateOriginal.duplicate(), roiPoints );
+            moc = MandersColocalisationCoefficients.mandersColocalisationCoefficients( ipReference.duplicate(), ipCandidateOriginal.duplicate(), roiPoints );
             moc1Org = moc[0];
             moc2Org = moc[1];
 
@@ -159,9 +178,9 @@ public class FeatureColocaliszer2D {
                 }
 
                 // compute the colocalisation Coeffs.
-                pcc = PearsonsCorrelaionCoeff.correlation( ipReference.duplicate(), ipRandomised.duplicate(), roi );
+                pcc = PearsonsCorrelaionCoeff.correlation( ipReference.duplicate(), ipRandomised.duplicate(), roiPoints );
                 // mander overlap coefficients
-                moc = MandersColocalisationCoefficients.mandersColocalisationCoefficients(ipReference.duplicate(), ipRandomised.duplicate(), roi);
+                moc = MandersColocalisationCoefficients.mandersColocalisationCoefficients(ipReference.duplicate(), ipRandomised.duplicate(), roiPoints);
                 moc1 = moc[0];
                 moc2 = moc[1];
                 // save the values 
@@ -213,6 +232,7 @@ public class FeatureColocaliszer2D {
             
             
         }
+        StageTimings.stop(timer, timer == null ? 0 : StageTimings.countFeatures(pf));
 
     }
 
@@ -97,12 +97,24 @@ public class PearsonsCorrelaionCoeff {
     }
 
     public static double correlation(ImageProcessor ip1, ImageProcessor ip2, Roi roi) {
+        // Get the pixel locations inside of the roi. 
+        return correlation(ip1, ip2, roi.getContainedPoints());
+    }
+
+    /**
+     * Performs the correlation of the pixels at the points, e.g. those inside 
+     * of an roi which are reused for many correlations. 
+     * 
+     * @param ip1
+     * @param ip2
+     * @param points the pixel locations, see {@link Roi#getContainedPoints()}.
+     * @return 
+     */
+    public static double correlation(ImageProcessor ip1, ImageProcessor ip2, Point[] points) {
 
         FloatProcessor fp1 = ip1.convertToFloatProcessor();
         FloatProcessor fp2 = ip2.convertToFloatProcessor();
 
-        // Get the pixel locations inside of the roi. 
-        Point[] points = roi.getContainedPoints();
         int n = points.length;
         // extract the pixels and perform the correlation
         float[] pixels1, pixels2;
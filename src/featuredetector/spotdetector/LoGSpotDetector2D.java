@@ -23,7 +23,9 @@ import ij.ImagePlus;
 import ij.gui.PolygonRoi;
 import ij.gui.Wand;
 import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import inra.ijpb.binary.conncomp.FloodFillComponentsLabeling;
 import inra.ijpb.watershed.MarkerControlledWatershedTransform2D;
 import java.awt.Point;
@@ -34,6 +36,8 @@ import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import roiutil.RoiUtil;
 import utilimageprocessor.ImageProcessorUtil;
+import utilimageprocessor.LoGEngine;
+import utilimageprocessor.PlaneView;
 
 /**
  * Locates spot like features using a Laplacian of Gaussian filter followed by
@@ -43,7 +47,9 @@ import utilimageprocessor.ImageProcessorUtil;
  */
 public class LoGSpotDetector2D extends AbstractFeatureDetector {
 
-    private final ImageProcessor ip;
+    private final PlaneView view;
+
+    private PlaneView floatInput;
 
     private ArrayList<Feature> features = new ArrayList<>();
 
@@ -67,6 +73,11 @@ public class LoGSpotDetector2D extends AbstractFeatureDetector {
 
     private final double pixelScale;
 
+    /**
+     * The standard deviation of the Gaussian of the smoothed intensity image.
+     */
+    protected static final double SMOOTHING_SIGMA = 1.5;
+
     /**
      * @param parentFeature
      * @param ip localised image data which bounds the parent feature.
@@ -82,8 +93,25 @@ public class LoGSpotDetector2D extends AbstractFeatureDetector {
      * @param pixelScale
      */
     public LoGSpotDetector2D(ParentFeature parentFeature, ImageProcessor ip, double logSigma, double thresh, int segmentationMethod, int detectRad, int connectivity, double pixelScale) {
+        this(parentFeature, PlaneView.of(ip), logSigma, thresh, segmentationMethod, detectRad, connectivity, pixelScale);
+    }
+
+    /**
+     * @param parentFeature
+     * @param view localised image data which bounds the parent feature, which
+     * is read but not changed.
+     * @param logSigma standard deviation of the Gaussian component of the LoG
+     * filter.
+     * @param thresh absolute threshold which should be applied to the filtered
+     * image to define the regions that contain spots.
+     * @param segmentationMethod method used to segment the filtered data.
+     * @param detectRad
+     * @param connectivity
+     * @param pixelScale
+     */
+    public LoGSpotDetector2D(ParentFeature parentFeature, PlaneView view, double logSigma, double thresh, int segmentationMethod, int detectRad, int connectivity, double pixelScale) {
         super(parentFeature);
-        this.ip = ip;
+        this.view = view;
         this.thresh = thresh;
         this.segmentationMethod = segmentationMethod;
         this.logSigma = logSigma;
@@ -91,21 +119,39 @@ public class LoGSpotDetector2D extends AbstractFeatureDetector {
         this.pixelScale = pixelScale;
     }
 
+    /**
+     * @param floatInput a 32 bit copy of the view, e.g. shared with other
+     * processors through {@link featureobjects.CropCache}, which is copied
+     * rather than converting the view again. It is read but not changed.
+     */
+    public void setFloatInput(PlaneView floatInput) {
+        this.floatInput = floatInput;
+    }
+
     @Override
     public void run() {
 
-        // copy the input image to perform the Laplacian of Gaussian filtering on. 
-        ipLoG = ip.convertToFloat();
+        int w = view.getWidth();
+        int h = view.getHeight();
+        // the 32 bit input, read in place if already a copy of the view, 
+        // otherwise a copy which the filtered image can replace. 
+        float[] input;
+        float[] out = null;
+        if (floatInput != null && floatInput.getOffset() == 0 && floatInput.getStride() == w) {
+            input = (float[]) floatInput.getPixels();
+        } else {
+            input = (floatInput != null ? floatInput : view).toFloatArray(null);
+            out = input;
+        }
 
-        boolean useAbsoluteThreshold = true;
-        // Apply the laplacian of gaussian filter to the image     
-        ImageProcessorUtil.SpotEnhancingFilter(ipLoG, (float) logSigma, (float) thresh, useAbsoluteThreshold);
+        // Apply the thresholded laplacian of gaussian filter to the image, and 
+        // smooth the raw image with a gaussian filter. This smoothed image is 
+        // used to estimate things like the spot intensity and background values.  
+        float[] smoothed = new float[w * h];
+        ipLoG = new FloatProcessor(w, h, filter(input, w, h, smoothed, out));
+        ipGaussianSmoothed = toViewType(smoothed, w, h);
 
         //new ImagePlus("LoG", ipLoG).show();
-        // Copy the raw image and smooth with a gaussian filer. This smoothed image
-        // is used to estimate things like the spot intensity and background values.  
-        ipGaussianSmoothed = ip.duplicate();
-        ipGaussianSmoothed.blurGaussian(1.5);
 
         // threshold the image to create a binary mask
         ImageProcessor ipBinMask = ipLoG.duplicate();
@@ -122,7 +168,7 @@ public class LoGSpotDetector2D extends AbstractFeatureDetector {
             ipSegmentedRegions = ffl.computeLabels(ipBinMask);
         } else if (segmentationMethod == SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION) {
             // locate any local maxima in the image. 
-            ImageProcessor ipMaxima = ImageProcessorUtil.localMaxima(ipLoG, detectRad);
+            ImageProcessor ipMaxima = findMaxima(ipLoG);
             // There may be flat maxima, therefore we will use a region labelling algorithm
             // get the connected components of plautus.
             FloodFillComponentsLabeling ffl = new FloodFillComponentsLabeling(connectivity);
@@ -148,6 +194,86 @@ public class LoGSpotDetector2D extends AbstractFeatureDetector {
 
     }
 
+    /**
+     * Filters the image with the thresholded Laplacian of Gaussian, and smooths 
+     * the raw image with a Gaussian in the same pass. 
+     * 
+     * @param input the 32 bit image data, which is not changed. 
+     * @param w
+     * @param h
+     * @param smoothed the smoothed image is written to, of w * h. 
+     * @param out the array the filtered image may be written to, which may be 
+     * the input, or null to allocate one. 
+     * @return the filtered image, zero where not above the threshold. 
+     */
+    protected float[] filter(float[] input, int w, int h, float[] smoothed, float[] out) {
+        // the sigma as a float, as it always has been filtered with. 
+        LoGEngine engine = LoGEngine.get((float) logSigma, SMOOTHING_SIGMA, getSmoothingAccuracy());
+        float[] log = out != null ? out : new float[w * h];
+        engine.process(input, w, h, (float) thresh, log, smoothed);
+        return log;
+    }
+
+    /**
+     * @return the absolute threshold applied to the filtered image. 
+     */
+    protected double getThreshold() {
+        return thresh;
+    }
+
+    /**
+     * @return the accuracy the raw image is smoothed with, as ImageJ blurs an 
+     * image of the type of the view. 
+     */
+    protected double getSmoothingAccuracy() {
+        return view.getPixels() instanceof byte[] ? LoGEngine.ACCURACY_8BIT : LoGEngine.ACCURACY;
+    }
+
+    /**
+     * @param ipLoG the filtered image. 
+     * @return the markers of the watershed segmentation, non zero at the 
+     * maxima of the filtered image. 
+     */
+    protected ImageProcessor findMaxima(ImageProcessor ipLoG) {
+        return ImageProcessorUtil.localMaxima(ipLoG, detectRad);
+    }
+
+    /**
+     * @param points the pixels of a spot. 
+     * @return the diameter, in pixels, of the scale the spot was detected at. 
+     */
+    protected double getSpotScale(Point[] points) {
+        return 2d * logSigma;
+    }
+
+    /**
+     * @param smoothed the smoothed pixels.
+     * @param w
+     * @param h
+     * @return the smoothed image of the same type as the view, rounded as 
+     * when an 8 or 16 bit image is blurred by ImageJ. 
+     */
+    private ImageProcessor toViewType(float[] smoothed, int w, int h) {
+        Object pixels = view.getPixels();
+        if (pixels instanceof float[]) {
+            return new FloatProcessor(w, h, smoothed);
+        }
+        float max = pixels instanceof short[] ? 65535f : 255f;
+        ImageProcessor ip = pixels instanceof short[] ? new ShortProcessor(w, h) : new ByteProcessor(w, h);
+        for (int i = 0; i < smoothed.length; i++) {
+            float v = smoothed[i] + 0.5f;
+            if (v < 0f) {
+                v = 0f;
+            }
+            if (v > max) {
+                v = max;
+            }
+            ip.set(i, (int) v);
+        }
+        ip.resetMinAndMax();
+        return ip;
+    }
+
     /**
      * Extract the outlines of the segmented regions using the Wand ROI tool.
      *
@@ -336,6 +462,7 @@ public class LoGSpotDetector2D extends AbstractFeatureDetector {
         spot.addNumericFeature(SpotDetectorCommon.SPOT_PERIMETER, perimeter);
         spot.addNumericFeature(SpotDetectorCommon.SPOT_CIRCULARITY, circularity );
         spot.addNumericFeature(SpotDetectorCommon.SPOT_ID, new Double(spotID));        
+        spot.addNumericFeature(SpotDetectorCommon.SPOT_BEST_SCALE, getSpotScale(points));
         
         spot.addObject(SpotDetectorCommon.SPOT_INTENSITY_PIXELS, intensity2);
 
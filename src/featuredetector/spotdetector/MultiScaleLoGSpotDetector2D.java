@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package featuredetector.spotdetector;
+
+import featureobjects.ParentFeature;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Point;
+import utilimageprocessor.LoGEngine;
+import utilimageprocessor.PlaneView;
+
+/**
+ * Locates spot like features of a range of sizes in one pass, rather than
+ * running the {@link LoGSpotDetector2D} once for each spot diameter.
+ *
+ * A Gaussian scale space of the image is built once per crop, each level
+ * being blurred from the level below by the difference of their sigmas, so
+ * that the larger scales do not blur the raw image again with ever larger
+ * kernels. The inverted Laplacian of each level is scale normalised relative
+ * to the smallest scale, so that the smallest scale gives the same response,
+ * and threshold, as the {@link LoGSpotDetector2D} with the smallest diameter.
+ *
+ * The spots are segmented as by the {@link LoGSpotDetector2D} from the
+ * strongest response over all of the scales, with the maxima across space
+ * and scale as the markers of the watershed. Only three levels are kept at
+ * once, the response and the maxima being updated as each level is reached.
+ * The diameter of the scale with the strongest response within each spot is
+ * stored as
+ * {@link SpotDetectorCommon#SPOT_BEST_SCALE}.
+ *
+ * @author mqbssep5
+ */
+public class MultiScaleLoGSpotDetector2D extends LoGSpotDetector2D {
+
+    private final double[] sigmas;
+
+    /**
+     * The index of the scale with the strongest response at each pixel.
+     */
+    private byte[] bestScale;
+
+    /**
+     * The strongest response at each pixel, over all of the scales.
+     */
+    private float[] response;
+
+    /**
+     * Non zero at the maxima across space and scale.
+     */
+    private float[] maxima;
+
+    /**
+     * @param parentFeature
+     * @param view localised image data which bounds the parent feature, which
+     * is read but not changed.
+     * @param minSigma standard deviation of the Gaussian of the smallest scale.
+     * @param maxSigma standard deviation of the Gaussian of the largest scale.
+     * @param nScales the number of scales, spaced geometrically from the
+     * smallest to the largest.
+     * @param thresh absolute threshold which should be applied to the scale
+     * normalised filtered image to define the regions that contain spots.
+     * @param segmentationMethod method used to segment the filtered data.
+     * @param detectRad
+     * @param connectivity
+     * @param pixelScale
+     */
+    public MultiScaleLoGSpotDetector2D(ParentFeature parentFeature, PlaneView view, double minSigma, double maxSigma, int nScales, double thresh, int segmentationMethod, int detectRad, int connectivity, double pixelScale) {
+        super(parentFeature, view, minSigma, thresh, segmentationMethod, detectRad, connectivity, pixelScale);
+        this.sigmas = getSigmas(minSigma, maxSigma, nScales);
+    }
+
+    /**
+     * @param minSigma
+     * @param maxSigma
+     * @param nScales
+     * @return the sigmas of the scales, spaced geometrically, at most 127 so
+     * that the index of a scale fits in a byte.
+     */
+    static double[] getSigmas(double minSigma, double maxSigma, int nScales) {
+        nScales = Math.max(1, Math.min(127, nScales));
+        if (nScales == 1 || maxSigma <= minSigma) {
+            return new double[]{minSigma};
+        }
+        double[] s = new double[nScales];
+        for (int i = 0; i < nScales; i++) {
+            s[i] = minSigma * Math.pow(maxSigma / minSigma, (double) i / (nScales - 1));
+        }
+        return s;
+    }
+
+    @Override
+    protected float[] filter(float[] input, int w, int h, float[] smoothed, float[] out) {
+
+        int n = w * h;
+        int nScales = sigmas.length;
+        // the sigma of the smallest scale as a float, as the single scale detector.
+        float sigma0 = (float) sigmas[0];
+        LoGEngine engine = LoGEngine.get(sigma0, SMOOTHING_SIGMA, getSmoothingAccuracy());
+        engine.blur(input, w, h, SMOOTHING_SIGMA, getSmoothingAccuracy(), smoothed);
+
+        // the strongest response over the scales and the maxima across space
+        // and scale, above the threshold, from the scale normalised LoG of
+        // each level and of the levels either side of it.
+        double thresh = getThreshold();
+        response = new float[n];
+        bestScale = new byte[n];
+        maxima = new float[n];
+        float[] blurred = new float[n];
+        engine.blur(input, w, h, sigma0, LoGEngine.ACCURACY, blurred);
+        // the input is no longer needed once it has been blurred.
+        float[] below = null;
+        float[] level = nextLevel(engine, blurred, w, h, 0, out);
+        // the level below the level below, which is no longer needed.
+        float[] spare = null;
+        for (int s = 0; s < nScales; s++) {
+            float[] above = null;
+            if (s + 1 < nScales) {
+                above = nextLevel(engine, blurred, w, h, s + 1, spare);
+            }
+            for (int y = 0, i = 0; y < h; y++) {
+                for (int x = 0; x < w; x++, i++) {
+                    float v = level[i];
+                    if (!(v > thresh)) {
+                        continue;
+                    }
+                    if (v > response[i]) {
+                        response[i] = v;
+                        bestScale[i] = (byte) s;
+                    }
+                    if (maxima[i] == 0 && isMaximum(below, level, above, x, y, w, h)) {
+                        maxima[i] = 255f;
+                    }
+                }
+            }
+            // the level below is only reused once its maxima have been found.
+            spare = below;
+            below = level;
+            level = above;
+        }
+        return response;
+    }
+
+    /**
+     * Blurs the scale space up to a level, in place, and takes its scale
+     * normalised LoG.
+     *
+     * @param engine
+     * @param blurred the level below, or the smallest scale for the first
+     * level, which is blurred to this level.
+     * @param w
+     * @param h
+     * @param s the index of the level.
+     * @param log the array the LoG is written to, or null to allocate one.
+     * @return the LoG of the level.
+     */
+    private float[] nextLevel(LoGEngine engine, float[] blurred, int w, int h, int s, float[] log) {
+        int n = w * h;
+        if (s > 0) {
+            double sigmaStep = Math.sqrt(sigmas[s] * sigmas[s] - sigmas[s - 1] * sigmas[s - 1]);
+            engine.blur(blurred, w, h, sigmaStep, LoGEngine.ACCURACY, blurred);
+        }
+        if (log == null) {
+            log = new float[n];
+        }
+        LoGEngine.laplacian(blurred, w, h, Float.NEGATIVE_INFINITY, log);
+        if (s > 0) {
+            // relative to the smallest sigma as a float, as it is filtered with.
+            float sigma0 = (float) sigmas[0];
+            float norm = (float) (sigmas[s] * sigmas[s] / (sigma0 * sigma0));
+            for (int i = 0; i < n; i++) {
+                log[i] *= norm;
+            }
+        }
+        return log;
+    }
+
+    /**
+     * @return true if the response is not less than that of any neighbour in
+     * the 3 by 3 by 3 neighbourhood across space and scale, so that flat
+     * maxima are found as a whole.
+     */
+    private static boolean isMaximum(float[] below, float[] level, float[] above, int x, int y, int w, int h) {
+        float v = level[y * w + x];
+        return !isAbove(below, v, x, y, w, h) && !isAbove(level, v, x, y, w, h) && !isAbove(above, v, x, y, w, h);
+    }
+
+    /**
+     * @return true if any pixel of the 3 by 3 neighbourhood of the level is
+     * above the value, false if there is no level.
+     */
+    private static boolean isAbove(float[] level, float v, int x, int y, int w, int h) {
+        if (level == null) {
+            return false;
+        }
+        int x0 = Math.max(0, x - 1), x1 = Math.min(w - 1, x + 1);
+        int y0 = Math.max(0, y - 1), y1 = Math.min(h - 1, y + 1);
+        for (int j = y0; j <= y1; j++) {
+            for (int i = x0; i <= x1; i++) {
+                if (level[j * w + i] > v) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected ImageProcessor findMaxima(ImageProcessor ipLoG) {
+        return new FloatProcessor(ipLoG.getWidth(), ipLoG.getHeight(), maxima);
+    }
+
+    @Override
+    protected double getSpotScale(Point[] points) {
+        int w = getFilteredImage().getWidth();
+        float max = Float.NEGATIVE_INFINITY;
+        int scale = 0;
+        for (Point p : points) {
+            int i = p.y * w + p.x;
+            if (response[i] > max) {
+                max = response[i];
+                scale = bestScale[i];
+            }
+        }
+        return 2d * sigmas[scale];
+    }
+
+    /**
+     * @return the sigmas of the scales, smallest first.
+     */
+    public double[] getSigmas() {
+        return sigmas.clone();
+    }
+
+}
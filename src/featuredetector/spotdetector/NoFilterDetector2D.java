@@ -34,6 +34,7 @@ import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import roiutil.RoiUtil;
 import utilimageprocessor.ImageProcessorUtil;
+import utilimageprocessor.PlaneView;
 
 /**
  *
@@ -46,7 +47,7 @@ import utilimageprocessor.ImageProcessorUtil;
  */
 public class NoFilterDetector2D extends AbstractFeatureDetector {
 
-    private final ImageProcessor ip;
+    private final PlaneView view;
 
     private ImageProcessor fp;
 
@@ -65,8 +66,21 @@ public class NoFilterDetector2D extends AbstractFeatureDetector {
     private final double pixelScale;
 
     public NoFilterDetector2D(ParentFeature parentFeature, ImageProcessor ip, double thresh, int segmentationMethod, int connectivity, double pixelScale) {
+        this(parentFeature, PlaneView.of(ip), thresh, segmentationMethod, connectivity, pixelScale);
+    }
+
+    /**
+     * @param parentFeature
+     * @param view localised image data which bounds the parent feature, which
+     * is read but not changed.
+     * @param thresh
+     * @param segmentationMethod
+     * @param connectivity
+     * @param pixelScale
+     */
+    public NoFilterDetector2D(ParentFeature parentFeature, PlaneView view, double thresh, int segmentationMethod, int connectivity, double pixelScale) {
         super(parentFeature);
-        this.ip = ip;
+        this.view = view;
         this.thresh = thresh;
         this.segmentationMethod = segmentationMethod;
         this.connectivity = connectivity;
@@ -77,7 +91,7 @@ public class NoFilterDetector2D extends AbstractFeatureDetector {
     public void run() {
 
         // threshold the image to create a binary mask
-        fp = ip.convertToFloatProcessor();
+        fp = view.toFloatProcessor();
 
         ImageProcessor ipBinMask = fp.duplicate();
         float[] pixels = (float[]) ipBinMask.getPixels();
@@ -205,7 +219,7 @@ public class NoFilterDetector2D extends AbstractFeatureDetector {
             xPoints[i] = (double) points[i].x;
             yPoints[i] = (double) points[i].y;
             // get the intensity of input image to compute other stats... mean intensity etc. 
-            intensity[i] = ip.getPixelValue(points[i].x, points[i].y);
+            intensity[i] = view.getf(points[i].x, points[i].y);
         }
 
         // extract the local box surrounding the cell roi. 
@@ -256,7 +270,7 @@ public class NoFilterDetector2D extends AbstractFeatureDetector {
 
         double[] perimValues = new double[fulloutlineX.length];
         for (int i = 0; i < fulloutlineX.length; i++) {
-            perimValues[i] = ip.getPixelValue(fulloutlineX[i], fulloutlineY[i]);
+            perimValues[i] = view.getf(fulloutlineX[i], fulloutlineY[i]);
         }
 
         // compute the median value and use as the estimate for the background level. 
@@ -311,6 +325,8 @@ public class NoFilterDetector2D extends AbstractFeatureDetector {
         spot.addNumericFeature(SpotDetectorCommon.SPOT_PERIMETER, perimeter);
         spot.addNumericFeature(SpotDetectorCommon.SPOT_CIRCULARITY, circularity );
         spot.addNumericFeature(SpotDetectorCommon.SPOT_ID, new Double(spotID));
+        // the raw image is not filtered at any scale. 
+        spot.addNumericFeature(SpotDetectorCommon.SPOT_BEST_SCALE, Double.NaN);
         
         spot.addObject(SpotDetectorCommon.SPOT_INTENSITY_PIXELS, intensity2);
 
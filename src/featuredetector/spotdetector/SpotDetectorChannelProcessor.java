@@ -17,6 +17,7 @@ package featuredetector.spotdetector;
 
 import abstractprocessors.ChannelProcessor;
 import featuredetector.AbstractFeatureDetector;
+import featureobjects.CropCache;
 import featureobjects.Feature;
 import featureobjects.FeatureOps;
 import featureobjects.ParentFeatureOps;
@@ -24,13 +25,21 @@ import featureobjects.ParentFeature;
 import gui.GUI;
 import gui.TextFieldGetTextOps;
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
+import io.ProcessorSettingsIO;
 import java.awt.CardLayout;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.ButtonGroup;
 import javax.swing.JComboBox;
 import javax.swing.JPanel;
@@ -39,6 +48,8 @@ import javax.swing.JTextField;
 import numutil.PrimNumOps;
 import rapidsimpleguibuilder.FastJComponents;
 import rapidsimpleguibuilder.RapidBuilderJPanel2Column;
+import timingutil.StageTimings;
+import utilimageprocessor.PlaneView;
 
 /**
  *
@@ -55,6 +66,8 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
      */
     public SpotDetectorChannelProcessor( int channel ) {
         this.channelID = channel;
+        this.settings = new Settings(0, spotdiameterDefault, maxSpotdiameterDefault, scalesDefault, threshDefault, SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION, 
+                minVolumeDefault, minCircDefault, minMeanIntesnityDefault, channel % colorNames.length);
     }
 
     private GUI gc;
@@ -63,33 +76,36 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
 
     private JTextField jtfSpotDiam, jtfThresh, jtfMinArea, jtfMinCirc, jtfMinMeanInt;
 
+    private JTextField jtfMinSpotDiam, jtfMaxSpotDiam, jtfScales;
+
     private JComboBox jcbColor, jcbDetectorOption;
     
     private JRadioButton jrbSegOptionCC, jrbSegOptionIWWS;
 
-    private double spotdiameter = 5.0, thresh = 4.0;
-
     private final double spotdiameterDefault = 5.0, threshDefault = 4.0;
 
-    private AbstractFeatureDetector detector;
+    private final double maxSpotdiameterDefault = 15.0;
+
+    private final int scalesDefault = 5;
 
     private ImagePlus imp;
 
     private ArrayList<ParentFeature> parentFeatures;
 
-    private int nfeatures, channelID;
-    
-    public double minVolume = 0.0, minCirc = 0.0, minMeanIntesnity = 0.0;    
+    private int channelID;
     
     public double minVolumeDefault = 0.0, minCircDefault = 0.0, minMeanIntesnityDefault = 0.0;        
 
-    private Color[] cols = new Color[]{Color.RED, Color.GREEN, Color.BLUE, Color.CYAN, Color.PINK, Color.ORANGE};
+    private static final Color[] cols = new Color[]{Color.RED, Color.GREEN, Color.BLUE, Color.CYAN, Color.PINK, Color.ORANGE};
 
-    private String[] colorNames = new String[]{"Red", "Green", "Blue", "Cyan", "Pink", "Orange"};
+    private static final String[] colorNames = new String[]{"Red", "Green", "Blue", "Cyan", "Pink", "Orange"};
 
-    private Color drawColor;
-   
-    private int chosenSegmentationMethod;
+    /**
+     * The settings used for detection, taken from the settings panel by 
+     * {@link #readSettings()} or from a settings file by 
+     * {@link #loadSettings(java.util.Properties, java.lang.String)}. 
+     */
+    private volatile Settings settings;
     
     private int panWidth;
     
@@ -108,11 +124,56 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
      */
     public static final String[] SPOT_FEATURE_NUMERIC_PROPERTY_NAMES = new String[]{SpotDetectorCommon.SPOT_ID, SpotDetectorCommon.COM_X, SpotDetectorCommon.COM_Y, SpotDetectorCommon.COM_X_PIX, SpotDetectorCommon.COM_Y_PIX, SpotDetectorCommon.SPOT_AMPLITUDE, SpotDetectorCommon.SPOT_MEAN_VALUE, SpotDetectorCommon.SPOT_AREA, SpotDetectorCommon.SPOT_BG_USED, SpotDetectorCommon.SPOT_SUM_INTENSITY, SpotDetectorCommon.SPOT_PERIMETER, SpotDetectorCommon.SPOT_CIRCULARITY };
 
-    private static final String[] COMBO_DETECTOR_NAMES = new String[]{"LoG detector", "Threshold only"};
+    /**
+     * The numerical properties of the spots when the {@link MultiScaleLoGSpotDetector2D} 
+     * is used, {@link #SPOT_FEATURE_NUMERIC_PROPERTY_NAMES} and the scale 
+     * each spot was detected at. 
+     */
+    public static final String[] SPOT_FEATURE_NUMERIC_PROPERTY_NAMES_MULTI_SCALE = new String[]{SpotDetectorCommon.SPOT_ID, SpotDetectorCommon.COM_X, SpotDetectorCommon.COM_Y, SpotDetectorCommon.COM_X_PIX, SpotDetectorCommon.COM_Y_PIX, SpotDetectorCommon.SPOT_AMPLITUDE, SpotDetectorCommon.SPOT_MEAN_VALUE, SpotDetectorCommon.SPOT_AREA, SpotDetectorCommon.SPOT_BG_USED, SpotDetectorCommon.SPOT_SUM_INTENSITY, SpotDetectorCommon.SPOT_PERIMETER, SpotDetectorCommon.SPOT_CIRCULARITY, SpotDetectorCommon.SPOT_BEST_SCALE };
 
-    private JPanel cards;
+    /**
+     * The index of each detector in the detector setting. 
+     */
+    public static final int DETECTOR_LOG = 0;
+
+    public static final int DETECTOR_THRESHOLD_ONLY = 1;
+
+    public static final int DETECTOR_MULTI_SCALE_LOG = 2;
+
+    /**
+     * Settings file keys, prefixed with the channel dependent prefix passed to
+     * {@link #loadSettings(java.util.Properties, java.lang.String)}.
+     */
+    public static final String SETTING_DETECTOR = "detector";
+
+    public static final String SETTING_SPOT_DIAMETER = "spotDiameter";
 
-    private int selected_detector_index = 0;
+    public static final String SETTING_MAX_SPOT_DIAMETER = "maxSpotDiameter";
+
+    public static final String SETTING_SCALES = "scales";
+
+    public static final String SETTING_THRESHOLD = "threshold";
+
+    public static final String SETTING_SEGMENTATION = "segmentation";
+
+    public static final String SETTING_MIN_AREA = "minArea";
+
+    public static final String SETTING_MIN_CIRCULARITY = "minCircularity";
+
+    public static final String SETTING_MIN_MEAN_INTENSITY = "minMeanIntensity";
+
+    public static final String SETTING_COLOR = "color";
+
+    /**
+     * Values of the segmentation setting.
+     */
+    public static final String SEGMENTATION_WATERSHED = "watershed";
+
+    public static final String SEGMENTATION_CONNECTED_COMPONENTS = "connectedComponents";
+
+    private static final String[] COMBO_DETECTOR_NAMES = new String[]{"LoG detector", "Threshold only", "Multi-scale LoG detector"};
+
+    private JPanel cards;
 
     @Override
     public JPanel getSettingsPanel() {
@@ -133,10 +194,12 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
         // create the Panel for the LoG detector. 
         JPanel card1 = createLoGPanel();
         JPanel card2 = createThresholdDetectorPanel();
+        JPanel card3 = createMultiScaleLoGPanel();
         // 
         cards = new JPanel(new CardLayout());
-        cards.add(card1, COMBO_DETECTOR_NAMES[0]);
-        cards.add(card2, COMBO_DETECTOR_NAMES[1]);
+        cards.add(card1, COMBO_DETECTOR_NAMES[DETECTOR_LOG]);
+        cards.add(card2, COMBO_DETECTOR_NAMES[DETECTOR_THRESHOLD_ONLY]);
+        cards.add(card3, COMBO_DETECTOR_NAMES[DETECTOR_MULTI_SCALE_LOG]);
 
         
         JPanel commonBits = createCommonPanel();
@@ -175,7 +238,7 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
         JPanel logpanel = new JPanel();
 
         // text fields 
-        jtfSpotDiam = fc.jTextFeild(Double.toString(spotdiameter));
+        jtfSpotDiam = fc.jTextFeild(Double.toString(settings.getSpotDiameter()));
 
         RapidBuilderJPanel2Column builder = new RapidBuilderJPanel2Column(logpanel, panWidth, panHeight/5, GUI.SMALL_COMPONENT_HEIGHT,GUI.GUI_INSET_X,GUI.GUI_INSET_Y);
         
@@ -189,21 +252,44 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
         return logpanel;
     }
 
+    /**
+     * Create the panel for the multi-scale LoG detector.
+     *
+     * @return the panel for the multi-scale LoG detector.
+     */
+    private JPanel createMultiScaleLoGPanel() {
+
+        JPanel pan = new JPanel();
+
+        Settings s = settings;
+        jtfMinSpotDiam = fc.jTextFeild(Double.toString(s.getSpotDiameter()));
+        jtfMaxSpotDiam = fc.jTextFeild(Double.toString(s.getMaxSpotDiameter()));
+        jtfScales = fc.jTextFeild(Integer.toString(s.getScales()));
+
+        RapidBuilderJPanel2Column builder = new RapidBuilderJPanel2Column(pan, panWidth, panHeight/5, GUI.SMALL_COMPONENT_HEIGHT,GUI.GUI_INSET_X,GUI.GUI_INSET_Y);
+        builder.addTwoComponentsToRow(fc.jLabel("Min spot diameter (pix)"), jtfMinSpotDiam);
+        builder.addTwoComponentsToRow(fc.jLabel("Max spot diameter (pix)"), jtfMaxSpotDiam);
+        builder.addTwoComponentsToRow(fc.jLabel("Number of scales"), jtfScales);
+        return pan;
+    }
+
     private JPanel createCommonPanel() {
 
         JPanel pan = new JPanel();
         //
+        Settings s = settings;
         jcbColor = fc.jComboBox(colorNames);
-        jcbColor.setSelectedIndex(channelID);
-        jtfThresh = fc.jTextFeild("" + thresh);
-        jtfMinArea = fc.jTextFeild("" + minVolume);
-        jtfMinCirc = fc.jTextFeild("" + minCirc );
-        jtfMinMeanInt = fc.jTextFeild("" + minMeanIntesnity );
+        jcbColor.setSelectedIndex(s.getColor());
+        jtfThresh = fc.jTextFeild("" + s.getThreshold());
+        jtfMinArea = fc.jTextFeild("" + s.getMinArea());
+        jtfMinCirc = fc.jTextFeild("" + s.getMinCircularity() );
+        jtfMinMeanInt = fc.jTextFeild("" + s.getMinMeanIntensity() );
 
         // segmentation option 
         jrbSegOptionIWWS = fc.jRadioButton("Int. based WS");        
         jrbSegOptionCC = fc.jRadioButton("Conn. compnts.");
-        jrbSegOptionIWWS.setSelected(true);
+        jrbSegOptionIWWS.setSelected(s.getSegmentation() == SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION);
+        jrbSegOptionCC.setSelected(s.getSegmentation() != SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION);
         //   
         ButtonGroup bg = new ButtonGroup();
         bg.add(jrbSegOptionIWWS);
@@ -245,76 +331,261 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
     public void run() {
 
         // Return the values provided in the text box. 
-        getValues();
-        // 
-        nfeatures = parentFeatures.size();
+        readSettings();
+        detect(imp, parentFeatures, channelID);
+
+    }
+
+    /**
+     * Reads the settings from the settings panel, to be used by subsequent calls 
+     * to {@link #detect(ij.ImagePlus, java.util.ArrayList, int)}. Should be 
+     * called on the event dispatch thread. 
+     */
+    public void readSettings() {
+        settings = getValues();
+    }
+
+    /**
+     * @return the settings used for detection. 
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @param settings the settings used for detection from now on, which are 
+     * also shown in the settings panel if it has been created. 
+     */
+    public void setSettings( Settings settings ) {
+        this.settings = settings;
+        if (jtfThresh != null) {
+            showSettings(settings);
+        }
+    }
+
+    /**
+     * Detects the spots within each of the {@link ParentFeature}s using the 
+     * settings taken by the last call to {@link #readSettings()}. Does not modify 
+     * the state of this class, so may be called for different images at the same time. 
+     * 
+     * @param imp single channel image data. 
+     * @param parentFeatures
+     * @param channelID the channel the detected features are stored under. 
+     */
+    public void detect( ImagePlus imp, ArrayList<ParentFeature> parentFeatures, int channelID ) {
+        detect(imp, parentFeatures, channelID, null);
+    }
+
+    /**
+     * The same as {@link #detect(ij.ImagePlus, int, java.util.ArrayList, int, java.util.concurrent.ForkJoinPool)} 
+     * for single channel image data. 
+     * 
+     * @param imp single channel image data. 
+     * @param parentFeatures
+     * @param channelID the channel the detected features are stored under. 
+     * @param pool 
+     */
+    public void detect( ImagePlus imp, ArrayList<ParentFeature> parentFeatures, int channelID, ForkJoinPool pool ) {
+        detect(imp, 1, parentFeatures, channelID, pool);
+    }
+
+    /**
+     * Detects the spots within each of the {@link ParentFeature}s using the 
+     * settings taken by the last call to {@link #readSettings()}. The 
+     * {@link ParentFeature}s are processed in parallel on the pool, largest 
+     * bounds first, so that a few large cells started late do not leave the 
+     * other threads idle at the end. The pixels of each feature are read in 
+     * place, see {@link PlaneView}, so the channel does not have to be split 
+     * from the image first. 
+     * 
+     * @param imp the image data. 
+     * @param imageChannel the channel of the image the spots are detected in, 
+     * indexed from 1. 
+     * @param parentFeatures
+     * @param channelID the channel the detected features are stored under. 
+     * @param pool the pool used to process the features, if null, or with a 
+     * parallelism of 1, the features are processed in turn on the calling thread. 
+     */
+    public void detect( final ImagePlus imp, final int imageChannel, ArrayList<ParentFeature> parentFeatures, final int channelID, ForkJoinPool pool ) {
 
-        ParentFeature currentFeature;
-        ImageProcessor ip;
-        double pixelscale = imp.getCalibration().pixelWidth;
+        final double pixelscale = imp.getCalibration().pixelWidth;
+        // the same settings for all of the features, even if they are changed meanwhile. 
+        final Settings s = settings;
+
+        if (pool == null || pool.getParallelism() == 1 || parentFeatures.size() < 2) {
+            for (ParentFeature pf : parentFeatures) {
+                detect(pf, imp, imageChannel, channelID, pixelscale, s);
+            }
+            return;
+        }
+
+        // sort the features largest first. 
+        final ParentFeature[] sorted = parentFeatures.toArray(new ParentFeature[parentFeatures.size()]);
+        Arrays.sort(sorted, new Comparator<ParentFeature>() {
+            @Override
+            public int compare( ParentFeature pf1, ParentFeature pf2 ) {
+                Rectangle r1 = pf1.getBounds();
+                Rectangle r2 = pf2.getBounds();
+                return Long.compare((long) r2.width * r2.height, (long) r1.width * r1.height);
+            }
+        });
+
+        // each worker takes the next largest feature until there are none left. 
+        final AtomicInteger next = new AtomicInteger();
+        int nworkers = Math.min(pool.getParallelism(), sorted.length);
+        final ArrayList<RecursiveAction> workers = new ArrayList<>();
+        for (int w = 0; w < nworkers; w++) {
+            workers.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < sorted.length) {
+                        detect(sorted[i], imp, imageChannel, channelID, pixelscale, s);
+                    }
+                }
+            });
+        }
+        if (ForkJoinTask.getPool() == pool) {
+            // already running in the pool, e.g. when the channels are processed at once. 
+            ForkJoinTask.invokeAll(workers);
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(workers);
+                }
+            });
+        }
+    }
+
+    /**
+     * Detects the spots within a single {@link ParentFeature}.
+     * 
+     * @param currentFeature
+     * @param imp the image data. 
+     * @param imageChannel the channel of the image, indexed from 1. 
+     * @param channelID the channel the detected features are stored under. 
+     * @param pixelscale 
+     * @param s the settings. 
+     */
+    private void detect( ParentFeature currentFeature, ImagePlus imp, int imageChannel, int channelID, double pixelscale, Settings s ) {
+
+        AbstractFeatureDetector detector;
+        PlaneView view;
         ArrayList<Feature> spots;
         int connectivity = 8;
+        double spotdiameter = s.getSpotDiameter();
         int rad = (int) Math.max(Math.ceil((double)spotdiameter / 2d), 1);
-        for (int i = 0; i < nfeatures; i++) {
-            // feature to process
-            currentFeature = parentFeatures.get(i);
-            // get a crop of the image data around our feature. 
-            ip = ParentFeatureOps.getLocalisedFeatureImageData(currentFeature, imp).getProcessor().duplicate();
-
-            if (selected_detector_index == 0) {
-                detector = new LoGSpotDetector2D(currentFeature, ip, spotdiameter / 2d, thresh, chosenSegmentationMethod, rad, connectivity, pixelscale);
-            } else {
-                detector = new NoFilterDetector2D(currentFeature, ip, thresh, chosenSegmentationMethod, connectivity, pixelscale);
-            }
-            detector.run();
+        StageTimings.Timer timer = StageTimings.start(COMBO_DETECTOR_NAMES[s.getDetector()] + " ch" + (channelID + 1), currentFeature.getImageName(), StageTimings.describe(currentFeature));
+        // a view of the image data around our feature, and its 32 bit copy shared with the other processors. 
+        view = ParentFeatureOps.getLocalisedFeatureView(currentFeature, imp, imageChannel);
+        PlaneView crop = CropCache.of(imp).getCrop(currentFeature, imageChannel);
+
+        if (s.getDetector() == DETECTOR_LOG) {
+            LoGSpotDetector2D log = new LoGSpotDetector2D(currentFeature, view, spotdiameter / 2d, s.getThreshold(), s.getSegmentation(), rad, connectivity, pixelscale);
+            log.setFloatInput(crop);
+            detector = log;
+        } else if (s.getDetector() == DETECTOR_MULTI_SCALE_LOG) {
+            // the scale space of the crop is built once for all of the diameters. 
+            LoGSpotDetector2D log = new MultiScaleLoGSpotDetector2D(currentFeature, view, spotdiameter / 2d, s.getMaxSpotDiameter() / 2d, s.getScales(), s.getThreshold(), s.getSegmentation(), rad, connectivity, pixelscale);
+            log.setFloatInput(crop);
+            detector = log;
+        } else {
+            detector = new NoFilterDetector2D(currentFeature, crop, s.getThreshold(), s.getSegmentation(), connectivity, pixelscale);
+        }
+        detector.run();
 
-            // get the detected features. 
-            spots = detector.getFeatures();
+        // get the detected features. 
+        spots = detector.getFeatures();
 
-            // filter the set based on area/volume
-            if ( minVolume > 0.0 ) {
-                FeatureOps.removeFeaturesBasedOnNumericalPropertyValue( spots, SpotDetectorCommon.SPOT_AREA, minVolume, FeatureOps.KEEP_GREATER_THAN );
-            }
-            if( minCirc > 0.0 ){
-                FeatureOps.removeFeaturesBasedOnNumericalPropertyValue( spots, SpotDetectorCommon.SPOT_CIRCULARITY, minCirc, FeatureOps.KEEP_GREATER_THAN );
-            }
-            if( minMeanIntesnity > 0.0 ){
-                FeatureOps.removeFeaturesBasedOnNumericalPropertyValue( spots, SpotDetectorCommon.SPOT_MEAN_VALUE, minMeanIntesnity, FeatureOps.KEEP_GREATER_THAN );
-            }            
-            
-            // set the draw color 
-            FeatureOps.setAllFeaturesDrawColorSameColor(spots, drawColor);
-            currentFeature.addFeatures(channelID, SPOT_FEATURE_NAME, spots);
+        // filter the set based on area/volume
+        if ( s.getMinArea() > 0.0 ) {
+            FeatureOps.removeFeaturesBasedOnNumericalPropertyValue( spots, SpotDetectorCommon.SPOT_AREA, s.getMinArea(), FeatureOps.KEEP_GREATER_THAN );
+        }
+        if( s.getMinCircularity() > 0.0 ){
+            FeatureOps.removeFeaturesBasedOnNumericalPropertyValue( spots, SpotDetectorCommon.SPOT_CIRCULARITY, s.getMinCircularity(), FeatureOps.KEEP_GREATER_THAN );
         }
+        if( s.getMinMeanIntensity() > 0.0 ){
+            FeatureOps.removeFeaturesBasedOnNumericalPropertyValue( spots, SpotDetectorCommon.SPOT_MEAN_VALUE, s.getMinMeanIntensity(), FeatureOps.KEEP_GREATER_THAN );
+        }            
+        
+        // set the draw color 
+        FeatureOps.setAllFeaturesDrawColorSameColor(spots, cols[s.getColor()]);
+        currentFeature.addFeatures(channelID, SPOT_FEATURE_NAME, spots);
+        StageTimings.stop(timer, spots.size());
 
     }
 
     /**
      * Get the values from the text box.
+     * 
+     * @return the settings entered in the panel. 
      */
-    private void getValues() {
-
-        // get the selcted detector
-        selected_detector_index = jcbDetectorOption.getSelectedIndex();
+    private Settings getValues() {
 
         // text box values. 
-        spotdiameter = TextFieldGetTextOps.positiveDoubleOrDefault(jtfSpotDiam, spotdiameterDefault);
-        thresh = TextFieldGetTextOps.positiveDoubleOrDefault(jtfThresh, threshDefault);
-        minVolume = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMinArea, minVolumeDefault);
-        minCirc = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMinCirc, minCircDefault);
-        minMeanIntesnity = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMinMeanInt, minMeanIntesnityDefault);
-        
-        //System.out.println("spotdiameter " + spotdiameter + " thresh " + thresh + " minVolume " + minVolume + " minCirc " + minCirc + " minMeanIntesnity " + minMeanIntesnity );
-        
-        // color 
-        drawColor = cols[jcbColor.getSelectedIndex()];
+        int detector = jcbDetectorOption.getSelectedIndex();
+        double spotdiameter = detector == DETECTOR_MULTI_SCALE_LOG 
+                ? TextFieldGetTextOps.positiveDoubleOrDefault(jtfMinSpotDiam, spotdiameterDefault) 
+                : TextFieldGetTextOps.positiveDoubleOrDefault(jtfSpotDiam, spotdiameterDefault);
+        double maxSpotdiameter = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMaxSpotDiam, maxSpotdiameterDefault);
+        int scales = TextFieldGetTextOps.positiveIntegerOrDefault(jtfScales, scalesDefault);
+        double thresh = TextFieldGetTextOps.positiveDoubleOrDefault(jtfThresh, threshDefault);
+        double minVolume = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMinArea, minVolumeDefault);
+        double minCirc = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMinCirc, minCircDefault);
+        double minMeanIntesnity = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMinMeanInt, minMeanIntesnityDefault);
         
+        int segmentation;
         if(jrbSegOptionIWWS.isSelected()){
-            chosenSegmentationMethod = SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION;
+            segmentation = SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION;
         }else{
-            chosenSegmentationMethod = SpotDetectorCommon.CONNECTED_COMPONENT_SEGMENTATION;
+            segmentation = SpotDetectorCommon.CONNECTED_COMPONENT_SEGMENTATION;
         }
 
+        return new Settings(detector, spotdiameter, maxSpotdiameter, scales, thresh, segmentation, minVolume, minCirc, minMeanIntesnity, jcbColor.getSelectedIndex());
+    }
+
+    /**
+     * Shows the settings in the settings panel. 
+     * 
+     * @param s 
+     */
+    private void showSettings( Settings s ) {
+        jcbDetectorOption.setSelectedIndex(s.getDetector());
+        jtfSpotDiam.setText(Double.toString(s.getSpotDiameter()));
+        jtfMinSpotDiam.setText(Double.toString(s.getSpotDiameter()));
+        jtfMaxSpotDiam.setText(Double.toString(s.getMaxSpotDiameter()));
+        jtfScales.setText(Integer.toString(s.getScales()));
+        jtfThresh.setText(Double.toString(s.getThreshold()));
+        jtfMinArea.setText(Double.toString(s.getMinArea()));
+        jtfMinCirc.setText(Double.toString(s.getMinCircularity()));
+        jtfMinMeanInt.setText(Double.toString(s.getMinMeanIntensity()));
+        jcbColor.setSelectedIndex(s.getColor());
+        if (s.getSegmentation() == SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION) {
+            jrbSegOptionIWWS.setSelected(true);
+        } else {
+            jrbSegOptionCC.setSelected(true);
+        }
+    }
+
+    /**
+     * Applies the settings stored under the prefix, see {@link Settings#load(java.util.Properties, java.lang.String, featuredetector.spotdetector.SpotDetectorChannelProcessor.Settings)}.
+     *
+     * @param settings
+     * @param prefix prefix of the keys for this channel e.g. "spotdetection.ch1."
+     */
+    public void loadSettings( Properties settings, String prefix ) {
+        setSettings(Settings.load(settings, prefix, this.settings));
+    }
+
+    /**
+     * Stores the settings used for detection under the prefix.
+     *
+     * @param settings
+     * @param prefix prefix of the keys for this channel e.g. "spotdetection.ch1."
+     */
+    public void saveSettings( Properties settings, String prefix ) {
+        this.settings.save(settings, prefix);
     }
 
     @Override
@@ -331,4 +602,143 @@ public class SpotDetectorChannelProcessor extends ChannelProcessor implements It
         }
     }
 
+    /**
+     * The settings of the detection in a single channel. Immutable, so that 
+     * they can be shared by all of the threads of a run. 
+     */
+    public static final class Settings {
+
+        private final int detector;
+
+        private final double spotDiameter, threshold;
+
+        private final double maxSpotDiameter;
+
+        private final int scales;
+
+        private final int segmentation;
+
+        private final double minArea, minCircularity, minMeanIntensity;
+
+        private final int color;
+
+        /**
+         * @param detector the index of the detector, {@link #DETECTOR_LOG}, 
+         * {@link #DETECTOR_THRESHOLD_ONLY} or {@link #DETECTOR_MULTI_SCALE_LOG}. 
+         * @param spotDiameter the diameter of the spots, in pixels, the 
+         * smallest diameter for the multi-scale detector. 
+         * @param maxSpotDiameter the largest diameter of the spots found by 
+         * the multi-scale detector, in pixels. 
+         * @param scales the number of scales of the multi-scale detector. 
+         * @param threshold 
+         * @param segmentation {@link SpotDetectorCommon#INTENSITY_BASED_WATERSHED_SEGMENTATION} 
+         * or {@link SpotDetectorCommon#CONNECTED_COMPONENT_SEGMENTATION}. 
+         * @param minArea spots with a smaller area are removed, if more than 0. 
+         * @param minCircularity spots with a smaller circularity are removed, if more than 0. 
+         * @param minMeanIntensity spots with a smaller mean intensity are removed, if more than 0. 
+         * @param color the index of the color the spots are drawn in. 
+         */
+        public Settings( int detector, double spotDiameter, double maxSpotDiameter, int scales, double threshold, int segmentation, double minArea, double minCircularity, double minMeanIntensity, int color ) {
+            this.detector = Math.max(0, Math.min(COMBO_DETECTOR_NAMES.length - 1, detector));
+            this.spotDiameter = spotDiameter;
+            this.maxSpotDiameter = Math.max(spotDiameter, maxSpotDiameter);
+            this.scales = Math.max(1, scales);
+            this.threshold = threshold;
+            this.segmentation = segmentation;
+            this.minArea = minArea;
+            this.minCircularity = minCircularity;
+            this.minMeanIntensity = minMeanIntensity;
+            this.color = Math.max(0, Math.min(colorNames.length - 1, color));
+        }
+
+        /**
+         * Reads the settings stored under the prefix. Any setting not found, 
+         * or not valid, is taken from the defaults. 
+         * 
+         * @param settings 
+         * @param prefix prefix of the keys for this channel e.g. "spotdetection.ch1."
+         * @param defaults 
+         * @return the settings. 
+         */
+        public static Settings load( Properties settings, String prefix, Settings defaults ) {
+            int segmentation = defaults.segmentation;
+            String seg = settings.getProperty(prefix + SETTING_SEGMENTATION);
+            if (seg != null) {
+                segmentation = seg.trim().equalsIgnoreCase(SEGMENTATION_CONNECTED_COMPONENTS) 
+                        ? SpotDetectorCommon.CONNECTED_COMPONENT_SEGMENTATION 
+                        : SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION;
+            }
+            return new Settings(ProcessorSettingsIO.indexOrDefault(settings, prefix + SETTING_DETECTOR, COMBO_DETECTOR_NAMES, defaults.detector), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, prefix + SETTING_SPOT_DIAMETER, defaults.spotDiameter), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, prefix + SETTING_MAX_SPOT_DIAMETER, defaults.maxSpotDiameter), 
+                    ProcessorSettingsIO.positiveIntegerOrDefault(settings, prefix + SETTING_SCALES, defaults.scales), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, prefix + SETTING_THRESHOLD, defaults.threshold), 
+                    segmentation, 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, prefix + SETTING_MIN_AREA, defaults.minArea), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, prefix + SETTING_MIN_CIRCULARITY, defaults.minCircularity), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, prefix + SETTING_MIN_MEAN_INTENSITY, defaults.minMeanIntensity), 
+                    ProcessorSettingsIO.indexOrDefault(settings, prefix + SETTING_COLOR, colorNames, defaults.color));
+        }
+
+        /**
+         * Stores the settings under the prefix. 
+         * 
+         * @param settings 
+         * @param prefix prefix of the keys for this channel e.g. "spotdetection.ch1."
+         */
+        public void save( Properties settings, String prefix ) {
+            settings.setProperty(prefix + SETTING_DETECTOR, COMBO_DETECTOR_NAMES[detector]);
+            settings.setProperty(prefix + SETTING_SPOT_DIAMETER, Double.toString(spotDiameter));
+            settings.setProperty(prefix + SETTING_MAX_SPOT_DIAMETER, Double.toString(maxSpotDiameter));
+            settings.setProperty(prefix + SETTING_SCALES, Integer.toString(scales));
+            settings.setProperty(prefix + SETTING_THRESHOLD, Double.toString(threshold));
+            settings.setProperty(prefix + SETTING_SEGMENTATION, segmentation == SpotDetectorCommon.INTENSITY_BASED_WATERSHED_SEGMENTATION ? SEGMENTATION_WATERSHED : SEGMENTATION_CONNECTED_COMPONENTS);
+            settings.setProperty(prefix + SETTING_MIN_AREA, Double.toString(minArea));
+            settings.setProperty(prefix + SETTING_MIN_CIRCULARITY, Double.toString(minCircularity));
+            settings.setProperty(prefix + SETTING_MIN_MEAN_INTENSITY, Double.toString(minMeanIntensity));
+            settings.setProperty(prefix + SETTING_COLOR, colorNames[color]);
+        }
+
+        public int getDetector() {
+            return detector;
+        }
+
+        public double getSpotDiameter() {
+            return spotDiameter;
+        }
+
+        public double getMaxSpotDiameter() {
+            return maxSpotDiameter;
+        }
+
+        public int getScales() {
+            return scales;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        public int getSegmentation() {
+            return segmentation;
+        }
+
+        public double getMinArea() {
+            return minArea;
+        }
+
+        public double getMinCircularity() {
+            return minCircularity;
+        }
+
+        public double getMinMeanIntensity() {
+            return minMeanIntensity;
+        }
+
+        public int getColor() {
+            return color;
+        }
+
+    }
+
 }
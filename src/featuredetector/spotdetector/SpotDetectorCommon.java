@@ -59,5 +59,13 @@ public class SpotDetectorCommon {
     
     public static final String SPOT_ID = "SPOT_ID";
     
+    /**
+     * The diameter, in pixels, of the scale the spot was detected at, twice 
+     * the sigma of the LoG. The scale with the strongest response within the 
+     * spot for the {@link MultiScaleLoGSpotDetector2D}, not a number for 
+     * detectors without a scale. 
+     */
+    public static final String SPOT_BEST_SCALE = "SPOT_BEST_SCALE";
+    
     
 }
@@ -22,18 +22,25 @@ import featureobjects.FeatureOps;
 import featureobjects.ParentFeature;
 import gui.CellAnalyserGUIModel;
 import gui.GUI;
+import gui.TextFieldGetTextOps;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.PolygonRoi;
 import ij.measure.ResultsTable;
-import ij.plugin.ChannelSplitter;
 import io.FeaturesAndParentFeaturesToResultsTable;
+import io.ProcessorSettingsIO;
+import io.StreamingResultsSink;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.swing.JButton;
 import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
+import javax.swing.JTextField;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import rapidsimpleguibuilder.FastJComponents;
@@ -52,14 +59,24 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
 
     private SpotDetectorChannelProcessor[] channelDetectors;
 
-    private ImagePlus imp;
-
-    private ArrayList<ParentFeature> features;
-
     private int nChannels;
 
     private JButton jbtPreview;
 
+    private JTextField jtfParallelism;
+
+    /**
+     * The number of threads used to detect the spots in the {@link ParentFeature}s 
+     * of an image, or 0 to use the common pool. 
+     */
+    private volatile int parallelism = 0;
+
+    /**
+     * Pool shared by all the images and channels processed with the current settings, 
+     * when they are not processed on the common pool. 
+     */
+    private ForkJoinPool pool;
+
     public static String MEAN_EXT = "_MEAN";
 
     public static String MED_EXT = "_MED";
@@ -76,6 +93,24 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
 
     public static String NSPOTS = "NSPOTS";
 
+    /**
+     * Prefix of the settings file keys. The settings of each channel are 
+     * stored under "spotdetection.chN." where N is the channel number. 
+     */
+    public static final String SETTING_PREFIX = "spotdetection.ch";
+
+    /**
+     * Settings file key for the number of threads used per image. Defaults to 
+     * 0, which shares the common pool with the other images being processed, 
+     * rather than each image worker using a thread per core. 
+     */
+    public static final String SETTING_PARALLELISM = "spotdetection.parallelism";
+
+    /**
+     * The name of the spots found and their statistics, for {@link #getOutputs()}.
+     */
+    public static final String DATA_SPOTS = "spots";
+
     
     public SpotDetectorMultiChannelProcessor( CellAnalyserGUIModel model ) {
         super(model);
@@ -105,6 +140,7 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
 
         // add the preview button to the bottom of the JPanel. 
         jbtPreview = fc.jButton("Preview");
+        jtfParallelism = fc.jTextFeild("" + parallelism);
 //        JPanelSpeedyMultiColBased pan = new JPanelSpeedyMultiColBased();
 //        // add the tabbed pane and the 
 //        pan.addComponentDoubleColumnToEndRow(tabbedPane);
@@ -119,6 +155,7 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
         builder.packComponents();
         JPanel pan2 = new JPanel();
         builder = new RapidBuilderJPanel2Column(pan2, width, GUI.GUI_HEIGHT/10, GUI.SMALL_COMPONENT_HEIGHT, GUI.GUI_INSET_X, GUI.GUI_INSET_Y);
+        builder.addTwoComponentsToRow(fc.jLabel("Threads per image (0 = shared)"), jtfParallelism);
         builder.addTwoComponentsToRow(fc.blankSpace(),jbtPreview);  
         builder.packComponents();
         // combine the panels
@@ -134,19 +171,78 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
 
     @Override
     public void doProcess() {
+        super.doProcess();
+        model.updateOverlay();
+    }
+
+    @Override
+    public void readSettings() {
+        for (int i = 0; i < nChannels; i++) {
+            channelDetectors[i].readSettings();
+        }
+        parallelism = TextFieldGetTextOps.positiveIntegerOrDefault(jtfParallelism, parallelism);
+    }
+
+    /**
+     * @return the pool with the number of threads of the current settings, or 
+     * the common pool, which is also used to process the stages and frames of 
+     * the images at once, so that the images processed at once share its 
+     * threads rather than each using as many as there are cores. 
+     */
+    private synchronized ForkJoinPool getPool() {
+        if (parallelism == 0) {
+            close();
+            return ForkJoinPool.commonPool();
+        }
+        if (pool == null || pool.getParallelism() != parallelism) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
 
-        // Get the data and the parent features for this set. 
-        imp = model.getCurrentImageDataSet();
-        features = model.getCurrentImageSetParentFeatures();
+    @Override
+    public void doProcess( final ImagePlus imp, final ArrayList<ParentFeature> features ) {
 
-        ImagePlus[] impChannels = ChannelSplitter.split(imp);
+        // the channels are read in place rather than split from the image. 
+        final ForkJoinPool pool = getPool();
 
-        // process each channel 
+        if (pool == null || pool.getParallelism() == 1) {
+            // process each channel in turn
+            for (int i = 0; i < nChannels; i++) {
+                channelDetectors[i].detect(imp, i + 1, features, i, pool);
+            }
+            return;
+        }
+
+        // process the channels at once, the features of each channel are in 
+        // turn processed in parallel on the same pool. 
+        final ArrayList<RecursiveAction> channelTasks = new ArrayList<>();
         for (int i = 0; i < nChannels; i++) {
-            channelDetectors[i].setData(impChannels[i], features, i);
-            channelDetectors[i].run();
-            model.updateOverlay();
+            final int channel = i;
+            channelTasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    channelDetectors[channel].detect(imp, channel + 1, features, channel, pool);
+                }
+            });
         }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(channelTasks);
+            }
+        });
 
     }
 
@@ -155,11 +251,69 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
         return NAME;
     }
 
+    @Override
+    public void loadSettings( Properties settings ) {
+        parallelism = ProcessorSettingsIO.positiveIntegerOrDefault(settings, SETTING_PARALLELISM, parallelism);
+        if (jtfParallelism != null) {
+            jtfParallelism.setText("" + parallelism);
+        }
+        for (int i = 0; i < nChannels; i++) {
+            channelDetectors[i].loadSettings(settings, SETTING_PREFIX + (i + 1) + ".");
+        }
+    }
+
+    @Override
+    public void saveSettings( Properties settings ) {
+        settings.setProperty(SETTING_PARALLELISM, Integer.toString(parallelism));
+        for (int i = 0; i < nChannels; i++) {
+            channelDetectors[i].saveSettings(settings, SETTING_PREFIX + (i + 1) + ".");
+        }
+    }
+
+    /**
+     * @return the names of the numerical properties of the spots which are 
+     * saved, with the scale of each spot if any channel uses the multi-scale 
+     * detector, so that the columns of the other runs are unchanged. 
+     */
+    private String[] getSpotFeatureNumericPropertyNames() {
+        for (int i = 0; i < nChannels; i++) {
+            if (channelDetectors[i].getSettings().getDetector() == SpotDetectorChannelProcessor.DETECTOR_MULTI_SCALE_LOG) {
+                return SpotDetectorChannelProcessor.SPOT_FEATURE_NUMERIC_PROPERTY_NAMES_MULTI_SCALE;
+            }
+        }
+        return SpotDetectorChannelProcessor.SPOT_FEATURE_NUMERIC_PROPERTY_NAMES;
+    }
+
+    @Override
+    public String[] getInputs() {
+        return new String[]{DATA_IMAGE};
+    }
+
+    @Override
+    public String[] getOutputs() {
+        return new String[]{DATA_SPOTS};
+    }
+
+    @Override
+    public boolean isFrameIndependent() {
+        // each cell is processed on its own.
+        return true;
+    }
+
+    @Override
+    public void saveResultSettings( Properties settings ) {
+        saveSettings(settings);
+        // the number of threads does not change the results.
+        settings.remove(SETTING_PARALLELISM);
+    }
+
     @Override
     public void actionPerformed(ActionEvent ae) {
         // this will run a preview without doing the full series of processes. 
         if (ae.getSource() == jbtPreview) {
+            readSettings();
             doProcess();
+            ImagePlus imp = model.getCurrentImageDataSet();
             int selectedPanel = tabbedPane.getSelectedIndex();
             imp.setC(selectedPanel + 1);
             IJ.resetMinAndMax(imp);
@@ -172,7 +326,7 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
         // The name of the list of features we want to save for each channel. 
         String featureNames = SpotDetectorChannelProcessor.SPOT_FEATURE_NAME;
         // The names of the things we want to save for each of the features 
-        String[] detectedFeatureIDs = SpotDetectorChannelProcessor.SPOT_FEATURE_NUMERIC_PROPERTY_NAMES;
+        String[] detectedFeatureIDs = getSpotFeatureNumericPropertyNames();
 
         // Check if we have used Feature2FeatureDistanceProcessor in the analysis chain. 
         // If so we will want to store the NND from this. 
@@ -186,25 +340,50 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
         }
 
         ResultsTable rt = FeaturesAndParentFeaturesToResultsTable.parentFeatureSpecifiedFeatureList2stats2ResultsTable(model, featureNames, detectedFeatureIDs);
-        rt.show("Spot features");
+        if (!model.isHeadless()) {
+            rt.show("Spot features");
+        }
 
         try {
-            rt.save(model.getSaveFileDirectory() + "\\" + "Spot_features.csv");
+            rt.save(model.getSaveFileDirectory() + File.separator + "Spot_features.csv");
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
 
         ResultsTable rt2 = computeSpotStatsForAllParentFeaturesToResultsTable(model, featureNames, detectedFeatureIDs);
-        rt2.show("Spot features stats");
+        if (!model.isHeadless()) {
+            rt2.show("Spot features stats");
+        }
 
         try {
-            rt2.save(model.getSaveFileDirectory() + "\\" + "Spot_features_stats.csv");
+            rt2.save(model.getSaveFileDirectory() + File.separator + "Spot_features_stats.csv");
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
 
     }
 
+    @Override
+    public void streamResults(StreamingResultsSink sink, int imageIndex, String imageName, ArrayList<ParentFeature> features) {
+
+        String featureNames = SpotDetectorChannelProcessor.SPOT_FEATURE_NAME;
+        String[] detectedFeatureIDs = getSpotFeatureNumericPropertyNames();
+        int nchannels = model.getNchannels();
+
+        ResultsTable rt = new ResultsTable();
+        FeaturesAndParentFeaturesToResultsTable.addSpecifiedFeatureListRows(rt, imageName, features, nchannels, featureNames, detectedFeatureIDs);
+        sink.addResults(imageIndex, "Spot_features.csv", rt);
+
+        ResultsTable rt2 = new ResultsTable();
+        addSpotStatsRows(rt2, imageName, features, nchannels, featureNames, detectedFeatureIDs);
+        sink.addResults(imageIndex, "Spot_features_stats.csv", rt2);
+    }
+
+    @Override
+    public boolean resultsAreStreamed() {
+        return true;
+    }
+
     /**
      * A method which computes the following statistics: mean, standard
      * deviation, median, min, and max. For the spot features in each of the
@@ -223,80 +402,97 @@ public class SpotDetectorMultiChannelProcessor extends AbstractParentFeatureProc
         int nSets = model.getNImages();
         // names of all of the image data sets. 
         String[] imageNames = model.getImageNames();
-        // list of the parent features found in each data set. 
-        ArrayList<ParentFeature> parentFeatures;
+        // results table we will be writing to. 
+        ResultsTable rt = new ResultsTable();
+
+        int nchannels = model.getNchannels();
+
+        // for all image data sets. 
+        for (int s = 0; s < nSets; s++) {
+            // get all of the features for this data set. 
+            addSpotStatsRows(rt, imageNames[s], model.getFeatures(imageNames[s]), nchannels, featureListID, featureIDs);
+        }
+
+        return rt;
+    }
+
+    /**
+     * Adds the rows of spot statistics for the {@link ParentFeature}s of a single 
+     * image data set, as for {@link #computeSpotStatsForAllParentFeaturesToResultsTable(gui.CellAnalyserGUIModel, java.lang.String, java.lang.String[])}.
+     *
+     * @param rt the table the rows are added to.
+     * @param imageName the name of the image data set.
+     * @param parentFeatures the {@link ParentFeature}s of the image data set.
+     * @param nchannels
+     * @param featureListID the name of the list used to store a specific set of
+     * features.
+     * @param featureIDs the names of the numerical attributes stored within the
+     * {@link Feature}s. e.g. COM_X, COM_Y etc...
+     */
+    public static void addSpotStatsRows(ResultsTable rt, String imageName, ArrayList<ParentFeature> parentFeatures, int nchannels, String featureListID, String[] featureIDs) {
+
         // list of features 
         ArrayList<Feature> featuresList;
 
         ParentFeature pf;
-        // results table we will be writing to. 
-        ResultsTable rt = new ResultsTable();
 
         int nfeatureIDs = featureIDs.length;
-        int nchannels = model.getNchannels();
 
         double[] values;
         double mean, stdev, median, min, max, totalArea, pixelSize, density, nspots, sum;
         String sid;
         PolygonRoi proi;
         Median m = new Median();
-        // for all image data sets. 
-        for (int s = 0; s < nSets; s++) {
-            // get all of the features for this data set. 
-            parentFeatures = model.getFeatures(imageNames[s]);
-
-            // extract the relevant variables from each of the parent features 
-            for (int i = 0; i < parentFeatures.size(); i++) {
-                // get the current feature. 
-                pf = parentFeatures.get(i);
-                proi = pf.getFeatureBoundsOriginalImage();
-                pixelSize = pf.getPixelXYsize();
-                totalArea = proi.getContainedPoints().length * (pixelSize * pixelSize);
-                // get the features stored in each channel. 
-                for (int c = 0; c < nchannels; c++) {
-                    // list of features for this channel. 
-                    featuresList = pf.getFeatures(c, featureListID);
-                    if (featuresList == null) {
-                        // Detection of features was not performed in this channel. 
-                        continue;
-                    }
-                    // compute all the stats for this feature in this channel. 
-                    rt.incrementCounter();
-                    rt.addValue("Image", imageNames[s]);
-                    rt.addValue("Feature", (i + 1));
-                    rt.addValue("Channel", (c + 1));
-
-                    for (int fid = 0; fid < nfeatureIDs; fid++) {
-                        sid = featureIDs[fid];
-                        values = FeatureOps.getSpecifiedFeatureAsArray(featuresList, sid);
-                        // extract the desired variables from the features feature map.
-                        // compute the stats
-                        mean = StatUtils.mean(values);
-                        stdev = Math.sqrt(StatUtils.variance(values));
-                        median = m.evaluate(values);
-                        min = StatUtils.min(values);
-                        max = StatUtils.max(values);
-                        sum = StatUtils.sum(values);
-                        // add to the table. 
-                        rt.addValue(sid + MEAN_EXT, mean);
-                        rt.addValue(sid + STD_EXT, stdev);
-                        rt.addValue(sid + MED_EXT, median);
-                        rt.addValue(sid + MIN_EXT, min);
-                        rt.addValue(sid + MAX_EXT, max);
-                        rt.addValue(sid + SUM_EXT, max);
-                    }
-                    // number of detected spots/ 
-                    nspots = (double) featuresList.size(); //
-                    rt.addValue(NSPOTS, nspots);
-                    // compute the density of features for this channel. 
-                    density = nspots / totalArea;
-                    // save the density. 
-                    rt.addValue(SPOT_DENSITY, density);
+
+        // extract the relevant variables from each of the parent features 
+        for (int i = 0; i < parentFeatures.size(); i++) {
+            // get the current feature. 
+            pf = parentFeatures.get(i);
+            proi = pf.getFeatureBoundsOriginalImage();
+            pixelSize = pf.getPixelXYsize();
+            totalArea = proi.getContainedPoints().length * (pixelSize * pixelSize);
+            // get the features stored in each channel. 
+            for (int c = 0; c < nchannels; c++) {
+                // list of features for this channel. 
+                featuresList = pf.getFeatures(c, featureListID);
+                if (featuresList == null) {
+                    // Detection of features was not performed in this channel. 
+                    continue;
                 }
+                // compute all the stats for this feature in this channel. 
+                rt.incrementCounter();
+                rt.addValue("Image", imageName);
+                rt.addValue("Feature", (i + 1));
+                rt.addValue("Channel", (c + 1));
+
+                for (int fid = 0; fid < nfeatureIDs; fid++) {
+                    sid = featureIDs[fid];
+                    values = FeatureOps.getSpecifiedFeatureAsArray(featuresList, sid);
+                    // extract the desired variables from the features feature map.
+                    // compute the stats
+                    mean = StatUtils.mean(values);
+                    stdev = Math.sqrt(StatUtils.variance(values));
+                    median = m.evaluate(values);
+                    min = StatUtils.min(values);
+                    max = StatUtils.max(values);
+                    sum = StatUtils.sum(values);
+                    // add to the table. 
+                    rt.addValue(sid + MEAN_EXT, mean);
+                    rt.addValue(sid + STD_EXT, stdev);
+                    rt.addValue(sid + MED_EXT, median);
+                    rt.addValue(sid + MIN_EXT, min);
+                    rt.addValue(sid + MAX_EXT, max);
+                    rt.addValue(sid + SUM_EXT, max);
+                }
+                // number of detected spots/ 
+                nspots = (double) featuresList.size(); //
+                rt.addValue(NSPOTS, nspots);
+                // compute the density of features for this channel. 
+                density = nspots / totalArea;
+                // save the density. 
+                rt.addValue(SPOT_DENSITY, density);
             }
         }
-
-        return rt;
     }
 
 }
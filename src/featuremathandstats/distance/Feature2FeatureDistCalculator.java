@@ -20,8 +20,8 @@ import arrayutil.NumericArrayListOps;
 import featureobjects.Feature;
 import featureobjects.FeatureOps;
 import featureobjects.ParentFeature;
-import ij.IJ;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -29,6 +29,8 @@ import java.util.Set;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import org.apache.commons.math3.stat.inference.TestUtils;
+import progress.ProgressBus;
+import timingutil.StageTimings;
 
 /**
  * Computes the actual distances between the features across channels.
@@ -151,6 +153,12 @@ public class Feature2FeatureDistCalculator implements Runnable {
 
     @Override
     public void run() {
+        StageTimings.Timer timer = StageTimings.start("Feature2FeatureDistCalculator", parentFeature.getImageName(), StageTimings.describe(parentFeature));
+        computeDistances();
+        StageTimings.stop(timer, timer == null ? 0 : StageTimings.countFeatures(parentFeature));
+    }
+
+    private void computeDistances() {
 
         //System.out.println(" dthresh " + threshdist);
         int nchannels = parentFeature.getNchannels();
@@ -237,7 +245,7 @@ public class Feature2FeatureDistCalculator implements Runnable {
                         continue;
                     }
                     // random seed number for the random number generation. 
-                    rand_seed = System.currentTimeMillis();
+                    rand_seed = randomisationSeed(i, c1, c2);
                     set2 = FeatureOps.randomizeFeaturePositions(parentFeature, parentFeature.getFeatures(c2, featureName2), rand_seed);
 
                     // The names used as keys within the Features numerical property may for the channel to channel distance. 
@@ -300,6 +308,32 @@ public class Feature2FeatureDistCalculator implements Runnable {
 
     }
 
+    /**
+     * The seed used for the random number generation in a single randomisation.
+     * It is derived from the parent feature rather than the clock, so that the
+     * results do not depend on when (or on which thread) the parent feature is
+     * processed, and two randomisations started in the same millisecond are not
+     * identical.
+     *
+     * @param iteration the randomisation number.
+     * @param c1 the channel kept fixed.
+     * @param c2 the channel randomised.
+     * @return the seed.
+     */
+    private long randomisationSeed( int iteration, int c1, int c2 ) {
+        Rectangle r = parentFeature.getBounds();
+        long seed = 17;
+        seed = 31 * seed + parentFeature.getFrame();
+        seed = 31 * seed + r.x;
+        seed = 31 * seed + r.y;
+        seed = 31 * seed + r.width;
+        seed = 31 * seed + r.height;
+        seed = 31 * seed + iteration;
+        seed = 31 * seed + c1;
+        seed = 31 * seed + c2;
+        return seed;
+    }
+
     /**
      * Computes the histogram maxima bins. e.g. bin 0 = binWidth, which
      * represents the interval [0,binWidth).
@@ -504,7 +538,7 @@ public class Feature2FeatureDistCalculator implements Runnable {
      * @param chCand a string name for this set (e.g. CH1) to be concatenated
      * with {@link DISTANCE_MAP}
      */
-    private void computePairedDistances(ArrayList<Feature> spotsCH1, ArrayList<Feature> spotsCH2, String chRef, String chCand) {
+    void computePairedDistances(ArrayList<Feature> spotsCH1, ArrayList<Feature> spotsCH2, String chRef, String chCand) {
 
         double dist;
         //double distThresh2 = dThresh * dThresh;
@@ -520,6 +554,11 @@ public class Feature2FeatureDistCalculator implements Runnable {
         int idEdgeClosest, idCentClosest;
         int nRefSpots = spotsCH1.size();
         int loopCounter = 0;
+        // the progress is only passed on to the GUI a few times a second, whatever the number of spots.
+        // each cell has its own progress, as several may be processed at once. 
+        String progressSource = "Performing distance calculations from " + chRef + " to " + chCand;
+        String cell = parentFeature.getImageName() + " " + StageTimings.describe(parentFeature);
+        String progressMessage = progressSource + " in " + cell;
 
         for (Feature refSpot : spotsCH1) {
 
@@ -575,8 +614,7 @@ public class Feature2FeatureDistCalculator implements Runnable {
             refSpot.addNumericFeature(NN_ID_CENT + C_EXT + "_" + chRef + "-" + chCand, (double) idCentClosest);
 
             loopCounter++;
-            IJ.showStatus("Performing distance calculations from " + chRef + " to " + chCand);
-            IJ.showProgress(loopCounter, nRefSpots - 1);
+            ProgressBus.publish(progressSource, cell, progressMessage, loopCounter, nRefSpots);
 
         }
 
@@ -600,7 +638,7 @@ public class Feature2FeatureDistCalculator implements Runnable {
      * @param points2
      * @return a double[]{d_min,nOverlap,p_overlap}
      */
-    private double[] closestEdgeDistance(Point[] points1, Point[] points2, double pixelScale) {
+    double[] closestEdgeDistance(Point[] points1, Point[] points2, double pixelScale) {
 
         double dMin = Double.POSITIVE_INFINITY;
         double d = dMin;
@@ -20,6 +20,7 @@ import gui.CellAnalyserGUIModel;
 import ij.IJ;
 import ij.gui.Plot;
 import ij.measure.ResultsTable;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -108,12 +109,14 @@ public class Feature2FeatureDistSummariser {
 //            meanAndSTDrands = Feature2FeatureDistHistogram.computeMeanAndStdevHistogram(randSet);
 
             //
-            Plot p = Feature2FeatureDistHistogram.compareTwoMeanHistogramsWithErrors(bins, meanAndSTDorg[0], meanAndSTDorg[1], meanAndSTDrands[0], meanAndSTDrands[1], "Mean Histograms: " + s, "Original", "Randomised");
-            p.show();
+            if (!model.isHeadless()) {
+                Plot p = Feature2FeatureDistHistogram.compareTwoMeanHistogramsWithErrors(bins, meanAndSTDorg[0], meanAndSTDorg[1], meanAndSTDrands[0], meanAndSTDrands[1], "Mean Histograms: " + s, "Original", "Randomised");
+                p.show();
+            }
 
             ResultsTable rt = means2ResultsTable(bins, meanAndSTDorg, meanAndSTDrands);
             try {
-                rt.save(model.getSaveFileDirectory() + "\\MeanDistHistos_" + s + ".csv");
+                rt.save(model.getSaveFileDirectory() + File.separator + "MeanDistHistos_" + s + ".csv");
             } catch (Exception e) {
                 IJ.log("Problem saving " + e.getMessage());
             }
@@ -150,7 +153,7 @@ public class Feature2FeatureDistSummariser {
         }
 
         try {
-            rt.save(model.getSaveFileDirectory() + "\\NNDall_" + setID + ".csv");
+            rt.save(model.getSaveFileDirectory() + File.separator + "NNDall_" + setID + ".csv");
         } catch (Exception e) {
             IJ.log("Problem saving " + e.getMessage());
         }
@@ -242,7 +245,7 @@ public class Feature2FeatureDistSummariser {
         }
 
         try {
-            rt.save(model.getSaveFileDirectory() + "\\" + "PFA_analysis.csv");
+            rt.save(model.getSaveFileDirectory() + File.separator + "PFA_analysis.csv");
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
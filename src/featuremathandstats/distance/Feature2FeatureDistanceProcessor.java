@@ -18,6 +18,7 @@ package featuremathandstats.distance;
 import abstractprocessors.AbstractParentFeatureProcessor;
 import featuredetector.spotdetector.SpotDetectorChannelProcessor;
 import featuredetector.spotdetector.SpotDetectorCommon;
+import featuredetector.spotdetector.SpotDetectorMultiChannelProcessor;
 import static featuremathandstats.distance.Feature2FeatureDistCalculator.D_NN_CENT;
 import static featuremathandstats.distance.Feature2FeatureDistCalculator.D_NN_EDGE;
 import static featuremathandstats.distance.Feature2FeatureDistCalculator.FRAC_NN;
@@ -34,9 +35,13 @@ import gui.CellAnalyserGUIModel;
 import gui.GUI;
 import gui.JPanelSpeedy2ColBased;
 import gui.TextFieldGetTextOps;
+import ij.ImagePlus;
 import ij.measure.ResultsTable;
 import io.FeaturesAndParentFeaturesToResultsTable;
+import io.ProcessorSettingsIO;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Properties;
 import javax.swing.JCheckBox;
 import javax.swing.JPanel;
 import javax.swing.JSeparator;
@@ -66,21 +71,34 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
     
     public static String NAME = "Feature Dist";
     
-    private double threshdist = 0.1d; 
+    /**
+     * Settings file keys.
+     */
+    public static final String SETTING_DO_PFA = "featuredist.doPFA";
     
-    private double maxHistDist = 2.0d, binwidth = 0.1d;
+    public static final String SETTING_CUT_OFF = "featuredist.cutOffDistance";
     
-    private JTextField jtfThreshDist, jtfDoRandomisaion, jtfBinWidth, jtfMaxDistance;
+    public static final String SETTING_MAX_DISTANCE = "featuredist.maxDistance";
+    
+    public static final String SETTING_BIN_WIDTH = "featuredist.binWidth";
     
-    private boolean edge2edgeDistance = true, doPfaAnalysis = true;
+    public static final String SETTING_N_RANDOMISATIONS = "featuredist.nRandomisations";
     
-    private int nfeatures;
+    /**
+     * The name of the distance measurements, for {@link #getOutputs()}.
+     */
+    public static final String DATA_DISTANCES = "distances";
     
-    private int nrandomisations = 3;
+    private JTextField jtfThreshDist, jtfDoRandomisaion, jtfBinWidth, jtfMaxDistance;
     
-    private int referenceChannel = 0;
+    /**
+     * The settings used for processing, taken from the settings panel by 
+     * {@link #readSettings()} or from a settings file by 
+     * {@link #loadSettings(java.util.Properties)}. 
+     */
+    private volatile Settings settings = new Settings(true, true, 3, 0.1d, 2.0d, 0.1d);
     
-    private ArrayList<ParentFeature> parentFeatures;
+    private int referenceChannel = 0;
     
 //    private JComboBox jComboChannel;
     
@@ -101,13 +119,14 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
         
         // Distance metric options
         //cbEuclideanDist = gc.jCheckBox("Centroid", hsiz);
+        Settings s = settings;
         chEdgeDistance = fc.jCheckBox("Edge to edge");
-        chEdgeDistance.setSelected(edge2edgeDistance);
+        chEdgeDistance.setSelected(s.isEdgeDistance());
         chEdgeDistance.setEnabled(false);
         
         // for comparing the properties of features that are close or far away from each other.
         chDoPFA = fc.jCheckBox("Do PFA");
-        chDoPFA.setSelected(doPfaAnalysis);
+        chDoPFA.setSelected(s.isDoPfa());
         
         //chUseCutOff = gc.jCheckBox("Use cut off distance", hsiz);
         
@@ -121,11 +140,11 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
 //        jComboChannel = gc.jComboBox(channels, hsiz);
         
         // text feild for cut off distance. 
-        jtfThreshDist = fc.jTextFeild(""+threshdist);
-        jtfDoRandomisaion = fc.jTextFeild(""+nrandomisations);
+        jtfThreshDist = fc.jTextFeild(""+s.getCutOffDistance());
+        jtfDoRandomisaion = fc.jTextFeild(""+s.getNRandomisations());
         
-        jtfBinWidth = fc.jTextFeild(""+binwidth);
-        jtfMaxDistance = fc.jTextFeild(""+maxHistDist);
+        jtfBinWidth = fc.jTextFeild(""+s.getBinWidth());
+        jtfMaxDistance = fc.jTextFeild(""+s.getMaxDistance());
         
 //        panel.addComponentDoubleColumn( gc.jLabel("Additional distance metrics", GUIcomponents.HALF_WIDTH_DIM) );
 //        //panel.addSingleComponentRHS(cbEuclideanDist);
@@ -149,16 +168,42 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
     }
 
     @Override
-    public void doProcess() {
+    public void readSettings() {
+        settings = getValues();
+    }
+
+    /**
+     * @return the settings used for processing. 
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @param settings the settings used for processing from now on, which are 
+     * also shown in the settings panel if it has been created. 
+     */
+    public void setSettings( Settings settings ) {
+        this.settings = settings;
+        if (chDoPFA != null) {
+            chEdgeDistance.setSelected(settings.isEdgeDistance());
+            chDoPFA.setSelected(settings.isDoPfa());
+            jtfThreshDist.setText(Double.toString(settings.getCutOffDistance()));
+            jtfMaxDistance.setText(Double.toString(settings.getMaxDistance()));
+            jtfBinWidth.setText(Double.toString(settings.getBinWidth()));
+            jtfDoRandomisaion.setText(Integer.toString(settings.getNRandomisations()));
+        }
+    }
+
+    @Override
+    public void doProcess( ImagePlus imp, ArrayList<ParentFeature> parentFeatures ) {
   
-        getValues();
-        // get the features for the current data set.
-        parentFeatures = model.getCurrentImageSetParentFeatures();
-        nfeatures = parentFeatures.size();
+        int nfeatures = parentFeatures.size();
                 
         ParentFeature pf;
-        double pixelSize = model.getCurrentImageDataSet().getCalibration().pixelWidth;
+        double pixelSize = imp.getCalibration().pixelWidth;
         Feature2FeatureDistCalculator f2fDist;
+        Settings s = settings;
               
         String[] pfaFeatures = new String[]{SpotDetectorCommon.SPOT_MEAN_VALUE, SpotDetectorCommon.SPOT_AREA, SpotDetectorCommon.SPOT_SUM_INTENSITY};//
         // Process the features. TODO. parallelize this in future. 
@@ -166,9 +211,9 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
            // get the process each feature. 
            pf = parentFeatures.get(i);
            // do the distance stats. 
-           f2fDist = new Feature2FeatureDistCalculator( pf, edge2edgeDistance, pixelSize, SpotDetectorChannelProcessor.SPOT_FEATURE_NAME, SpotDetectorChannelProcessor.SPOT_FEATURE_NAME, nrandomisations,  threshdist, maxHistDist, binwidth );
+           f2fDist = new Feature2FeatureDistCalculator( pf, s.isEdgeDistance(), pixelSize, SpotDetectorChannelProcessor.SPOT_FEATURE_NAME, SpotDetectorChannelProcessor.SPOT_FEATURE_NAME, s.getNRandomisations(), s.getCutOffDistance(), s.getMaxDistance(), s.getBinWidth() );
            // 
-           if(doPfaAnalysis){
+           if(s.isDoPfa()){
                f2fDist.setProximalFeatureAnalysisFeatures(pfaFeatures);
            }
            
@@ -179,14 +224,17 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
    
     /**
      * Get the values from the text boxes etc. 
+     * 
+     * @return the settings entered in the panel. 
      */
-    private void getValues(){
-        edge2edgeDistance = chEdgeDistance.isSelected();
-        nrandomisations = TextFieldGetTextOps.positiveIntegerOrDefault(jtfDoRandomisaion, nrandomisations);
+    private Settings getValues(){
+        Settings s = settings;
 //        referenceChannel = jComboChannel.getSelectedIndex();
-        threshdist = TextFieldGetTextOps.positiveDoubleOrDefault(jtfThreshDist, threshdist);
-        binwidth = TextFieldGetTextOps.positiveDoubleOrDefault(jtfBinWidth, binwidth);
-        maxHistDist = TextFieldGetTextOps.positiveDoubleOrDefault(jtfMaxDistance, maxHistDist);   
+        return new Settings(chEdgeDistance.isSelected(), chDoPFA.isSelected(), 
+                TextFieldGetTextOps.positiveIntegerOrDefault(jtfDoRandomisaion, s.getNRandomisations()), 
+                TextFieldGetTextOps.positiveDoubleOrDefault(jtfThreshDist, s.getCutOffDistance()), 
+                TextFieldGetTextOps.positiveDoubleOrDefault(jtfMaxDistance, s.getMaxDistance()), 
+                TextFieldGetTextOps.positiveDoubleOrDefault(jtfBinWidth, s.getBinWidth()));
     }
     
     @Override
@@ -194,6 +242,33 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
      return NAME;
     }
 
+    @Override
+    public String[] getInputs() {
+        return new String[]{SpotDetectorMultiChannelProcessor.DATA_SPOTS};
+    }
+
+    @Override
+    public String[] getOutputs() {
+        // the nearest neighbour distances are also added to each of the spots.
+        return new String[]{DATA_DISTANCES, SpotDetectorMultiChannelProcessor.DATA_SPOTS};
+    }
+
+    @Override
+    public boolean isFrameIndependent() {
+        // each cell is processed on its own.
+        return true;
+    }
+
+    @Override
+    public void loadSettings( Properties settings ) {
+        setSettings(Settings.load(settings, this.settings));
+    }
+
+    @Override
+    public void saveSettings( Properties settings ) {
+        this.settings.save(settings);
+    }
+
     @Override
     public void summariseAndSave() {
         
@@ -265,7 +340,7 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
         ResultsTable rt = FeaturesAndParentFeaturesToResultsTable.parentFeatureSpecifiedNumericalProperties2ResultsTable( model, names );
         //rt.show("Global NND results");
         try{
-            rt.save(model.getSaveFileDirectory()+"\\"+"NND_results.csv");
+            rt.save(model.getSaveFileDirectory() + File.separator + "NND_results.csv");
         }catch(Exception e){
             System.out.println(e.getMessage());
         }
@@ -281,10 +356,95 @@ public class Feature2FeatureDistanceProcessor extends AbstractParentFeatureProce
         Feature2FeatureDistSummariser ss = new Feature2FeatureDistSummariser(model);
         ss.summariseHistograms( binNnames, orgHistNames, randHistNames, ransHistSTDs );
         
-        if(doPfaAnalysis){
+        if(settings.isDoPfa()){
             ss.sumarisePFA(pfaAnalysisNames.toArray(new String[pfaAnalysisNames.size()]));
         }
  
     }
     
+    /**
+     * The settings of the distance calculations. Immutable, so that they can 
+     * be shared by all of the threads of a run. 
+     */
+    public static final class Settings {
+
+        private final boolean edgeDistance, doPfa;
+
+        private final int nRandomisations;
+
+        private final double cutOffDistance, maxDistance, binWidth;
+
+        /**
+         * @param edgeDistance whether the edge to edge distances are computed. 
+         * @param doPfa whether the proximal feature analysis is done. 
+         * @param nRandomisations the number of randomisation tests. 
+         * @param cutOffDistance the distance below which features are proximal. 
+         * @param maxDistance the maximum distance of the histograms. 
+         * @param binWidth the bin width of the histograms. 
+         */
+        public Settings( boolean edgeDistance, boolean doPfa, int nRandomisations, double cutOffDistance, double maxDistance, double binWidth ) {
+            this.edgeDistance = edgeDistance;
+            this.doPfa = doPfa;
+            this.nRandomisations = nRandomisations;
+            this.cutOffDistance = cutOffDistance;
+            this.maxDistance = maxDistance;
+            this.binWidth = binWidth;
+        }
+
+        /**
+         * Reads the settings. Any setting not found, or not valid, is taken 
+         * from the defaults. 
+         * 
+         * @param settings 
+         * @param defaults 
+         * @return the settings. 
+         */
+        public static Settings load( Properties settings, Settings defaults ) {
+            return new Settings(defaults.edgeDistance, 
+                    ProcessorSettingsIO.booleanOrDefault(settings, SETTING_DO_PFA, defaults.doPfa), 
+                    ProcessorSettingsIO.positiveIntegerOrDefault(settings, SETTING_N_RANDOMISATIONS, defaults.nRandomisations), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, SETTING_CUT_OFF, defaults.cutOffDistance), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, SETTING_MAX_DISTANCE, defaults.maxDistance), 
+                    ProcessorSettingsIO.positiveDoubleOrDefault(settings, SETTING_BIN_WIDTH, defaults.binWidth));
+        }
+
+        /**
+         * Stores the settings. 
+         * 
+         * @param settings 
+         */
+        public void save( Properties settings ) {
+            settings.setProperty(SETTING_DO_PFA, Boolean.toString(doPfa));
+            settings.setProperty(SETTING_CUT_OFF, Double.toString(cutOffDistance));
+            settings.setProperty(SETTING_MAX_DISTANCE, Double.toString(maxDistance));
+            settings.setProperty(SETTING_BIN_WIDTH, Double.toString(binWidth));
+            settings.setProperty(SETTING_N_RANDOMISATIONS, Integer.toString(nRandomisations));
+        }
+
+        public boolean isEdgeDistance() {
+            return edgeDistance;
+        }
+
+        public boolean isDoPfa() {
+            return doPfa;
+        }
+
+        public int getNRandomisations() {
+            return nRandomisations;
+        }
+
+        public double getCutOffDistance() {
+            return cutOffDistance;
+        }
+
+        public double getMaxDistance() {
+            return maxDistance;
+        }
+
+        public double getBinWidth() {
+            return binWidth;
+        }
+
+    }
+    
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package featureobjects;
+
+import ij.ImagePlus;
+import java.awt.Point;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import utilimageprocessor.PlaneView;
+
+/**
+ * The crops of the image data around each {@link ParentFeature}, and the pixels
+ * inside of their outlines, shared by all of the processors run on an image,
+ * rather than each processor extracting them again, e.g. the intensity
+ * measurements and the spot detection both read the same crop of each channel.
+ *
+ * There is one cache per image, stored as a property of the image, so that the
+ * images processed at the same time each have their own and the cache is
+ * dropped along with the image when the next image is opened. Processors which
+ * change the image data, see
+ * {@link abstractprocessors.AbstractParentFeatureProcessor#changesImage()},
+ * have to {@link #evict(ij.ImagePlus)} it afterwards.
+ *
+ * The crops kept are limited to the size of the pixel data of the image, so
+ * that the cache at most doubles the memory an image takes, see
+ * {@link batch.ImagePrefetcher}. Once full, the crops which do not fit are
+ * still made, but are not kept, e.g. for images without ROIs where each cell
+ * is a whole frame.
+ *
+ * The crops and points are shared between threads and must not be changed.
+ *
+ * @author mqbssep5
+ */
+public final class CropCache {
+
+    /**
+     * The key of the cache in the properties of the image.
+     */
+    public static final String PROPERTY = "CellFeatureAnalyser.CropCache";
+
+    private final ConcurrentHashMap<Key, PlaneView> crops = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Key, Point[]> points = new ConcurrentHashMap<>();
+
+    private final ImagePlus imp;
+
+    /**
+     * The bytes of the crops which may be kept, and of those kept.
+     */
+    private final long budget;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private CropCache( ImagePlus imp ) {
+        this.imp = imp;
+        this.budget = (long) imp.getWidth() * imp.getHeight() * imp.getStackSize() * imp.getBytesPerPixel();
+    }
+
+    /**
+     * @param imp
+     * @return the cache of the image, which is created if it does not have
+     * one.
+     */
+    public static CropCache of( ImagePlus imp ) {
+        synchronized (imp) {
+            Object cache = imp.getProperty(PROPERTY);
+            if (!(cache instanceof CropCache)) {
+                cache = new CropCache(imp);
+                imp.setProperty(PROPERTY, cache);
+            }
+            return (CropCache) cache;
+        }
+    }
+
+    /**
+     * Drops the cache of the image, e.g. once its pixels have been changed.
+     *
+     * @param imp
+     */
+    public static void evict( ImagePlus imp ) {
+        synchronized (imp) {
+            if (imp.getProperty(PROPERTY) != null) {
+                imp.getProperties().remove(PROPERTY);
+            }
+        }
+    }
+
+    /**
+     * @param pf
+     * @param channel the channel of the image, indexed from 1.
+     * @return a 32 bit copy of the pixels of the channel within the bounds of
+     * the feature, in the frame of the feature, clipped to the image, see
+     * {@link ParentFeatureOps#getLocalisedFeatureView(featureobjects.ParentFeature, ij.ImagePlus, int)}.
+     * The crop is only kept if it fits in what is left of the budget.
+     */
+    public PlaneView getCrop( ParentFeature pf, int channel ) {
+        Key key = new Key(pf, channel, pf.getFrame());
+        PlaneView crop = crops.get(key);
+        if (crop == null) {
+            crop = ParentFeatureOps.getLocalisedFeatureView(pf, imp, channel).toFloatView();
+            long bytes = 4L * crop.getWidth() * crop.getHeight();
+            if (used.addAndGet(bytes) > budget) {
+                used.addAndGet(-bytes);
+                return crop;
+            }
+            PlaneView other = crops.putIfAbsent(key, crop);
+            if (other != null) {
+                used.addAndGet(-bytes);
+                crop = other;
+            }
+        }
+        return crop;
+    }
+
+    /**
+     * @param pf
+     * @return the pixels inside of the outline of the feature, in the
+     * coordinates of the image, in the order of
+     * {@link ij.gui.Roi#getContainedPoints()}.
+     */
+    public Point[] getContainedPoints( ParentFeature pf ) {
+        return getPoints(pf, false);
+    }
+
+    /**
+     * @param pf
+     * @return the pixels inside of the outline of the feature, relative to its
+     * bounds, see {@link ParentFeature#getFeatureBoundsShifted()}.
+     */
+    public Point[] getContainedPointsShifted( ParentFeature pf ) {
+        return getPoints(pf, true);
+    }
+
+    private Point[] getPoints( ParentFeature pf, boolean shifted ) {
+        Key key = new Key(pf, shifted ? 1 : 0, pf.getFrame());
+        Point[] p = points.get(key);
+        if (p == null) {
+            p = shifted ? pf.getFeatureBoundsShifted().getContainedPoints() : pf.getFeatureBoundsOriginalImage().getContainedPoints();
+            Point[] other = points.putIfAbsent(key, p);
+            if (other != null) {
+                p = other;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * A feature, by identity, with a channel and frame.
+     */
+    private static final class Key {
+
+        private final ParentFeature pf;
+
+        private final int channel;
+
+        private final int frame;
+
+        Key( ParentFeature pf, int channel, int frame ) {
+            this.pf = pf;
+            this.channel = channel;
+            this.frame = frame;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return pf == k.pf && channel == k.channel && frame == k.frame;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(pf) * 31 + channel) * 31 + frame;
+        }
+
+    }
+
+}
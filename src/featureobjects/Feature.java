@@ -81,6 +81,14 @@ public class Feature {
         this.pixelIntensityValues = Arrays.copyOf(pixelIntensityValues, pixelIntensityValues.length);
     }
     
+    /**
+     * @return the intensity values at each pixel within the feature, or null 
+     * if they have not been set. 
+     */
+    public double[] getPixelValues() {
+        return pixelIntensityValues;
+    }
+    
     /**
      * Adds the specified feature to the properties map.
      *
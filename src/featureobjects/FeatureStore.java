@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package featureobjects;
+
+import ij.IJ;
+import io.ParentFeatureSerialiser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stores the {@link ParentFeature}s of each image data set, keeping the heap
+ * they use within a memory budget by writing the least recently used image
+ * data sets out to a cache file and reading them back in when they are next
+ * asked for.
+ *
+ * The features of an image are only written out whilst they are not held (see
+ * {@link #hold(java.lang.String)}), so anything that changes the features,
+ * such as processing the image, has to hold them until it has finished. The
+ * cache file is not re-written if the features have not been held since they
+ * were last read back in.
+ *
+ * With a budget of zero or less everything is kept in memory.
+ *
+ * @author mqbssep5
+ */
+public class FeatureStore {
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * The features in memory in the order they were last used, least recent
+     * first.
+     */
+    private final LinkedHashMap<String, Entry> resident = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long memoryBudget;
+
+    private long residentBytes = 0;
+
+    private File cacheDirectory;
+
+    private int nextFileID = 0;
+
+    /**
+     * Constructor
+     *
+     * @param memoryBudget the approximate number of bytes of heap the features
+     * not being held may use before they are written to disk.
+     */
+    public FeatureStore( long memoryBudget ) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the default memory budget, a quarter of the maximum heap.
+     */
+    public static long getDefaultMemoryBudget() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * @param memoryBudget the approximate number of bytes of heap the features
+     * may use, or zero or less to keep everything in memory.
+     */
+    public synchronized void setMemoryBudget( long memoryBudget ) {
+        this.memoryBudget = memoryBudget;
+        evict(null);
+    }
+
+    /**
+     * @return the memory budget in bytes.
+     */
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Replaces the features of an image data set.
+     *
+     * @param imageName
+     * @param features
+     */
+    public synchronized void put( String imageName, ArrayList<ParentFeature> features ) {
+        Entry e = entries.get(imageName);
+        if (e == null) {
+            e = new Entry();
+            entries.put(imageName, e);
+        } else if (e.features != null) {
+            residentBytes -= e.bytes;
+        }
+        e.features = features;
+        e.dirty = true;
+        e.bytes = ParentFeatureSerialiser.estimateBytes(features);
+        residentBytes += e.bytes;
+        resident.put(imageName, e);
+        evict(imageName);
+    }
+
+    /**
+     * Gets the features of an image data set, reading them back in if they
+     * have been written to disk.
+     *
+     * @param imageName
+     * @return the features, or null if there are none for the image.
+     */
+    public synchronized ArrayList<ParentFeature> get( String imageName ) {
+        Entry e = entries.get(imageName);
+        if (e == null) {
+            return null;
+        }
+        if (e.features == null) {
+            try {
+                e.features = ParentFeatureSerialiser.read(e.file);
+            } catch (IOException ex) {
+                // the features would be lost, so keep them in memory from now on.
+                IJ.log("Could not read the cached features of " + imageName + ": " + ex.getMessage());
+                e.features = new ArrayList<>();
+                e.dirty = true;
+            }
+            e.bytes = ParentFeatureSerialiser.estimateBytes(e.features);
+            residentBytes += e.bytes;
+            resident.put(imageName, e);
+            evict(imageName);
+        } else {
+            // updates the order of use.
+            resident.get(imageName);
+        }
+        return e.features;
+    }
+
+    /**
+     * Keeps the features of the image in memory until they are released, e.g.
+     * whilst they are being processed or displayed. Holds are counted, so each
+     * call has to be matched by a call to {@link #release(java.lang.String)}.
+     *
+     * @param imageName
+     */
+    public synchronized void hold( String imageName ) {
+        get(imageName);
+        Entry e = entries.get(imageName);
+        if (e != null) {
+            e.holds++;
+            e.dirty = true;
+        }
+    }
+
+    /**
+     * Releases a hold on the features of the image, so that they can be
+     * written to disk if the memory budget is exceeded.
+     *
+     * @param imageName
+     */
+    public synchronized void release( String imageName ) {
+        Entry e = entries.get(imageName);
+        if (e == null || e.holds == 0) {
+            return;
+        }
+        e.holds--;
+        if (e.features != null) {
+            // the features may have grown whilst they were held.
+            residentBytes -= e.bytes;
+            e.bytes = ParentFeatureSerialiser.estimateBytes(e.features);
+            residentBytes += e.bytes;
+        }
+        evict(null);
+    }
+
+    /**
+     * Deletes the cache files.
+     */
+    public synchronized void clear() {
+        for (Entry e : entries.values()) {
+            if (e.file != null) {
+                e.file.delete();
+            }
+        }
+        entries.clear();
+        resident.clear();
+        residentBytes = 0;
+        if (cacheDirectory != null) {
+            cacheDirectory.delete();
+            cacheDirectory = null;
+        }
+    }
+
+    /**
+     * Writes the least recently used features to disk until the rest fit
+     * within the memory budget.
+     *
+     * @param keep the image whose features must stay in memory, or null.
+     */
+    private void evict( String keep ) {
+        if (memoryBudget <= 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> it = resident.entrySet().iterator();
+        while (residentBytes > memoryBudget && it.hasNext()) {
+            Map.Entry<String, Entry> me = it.next();
+            Entry e = me.getValue();
+            if (e.holds > 0 || me.getKey().equals(keep)) {
+                continue;
+            }
+            if (e.dirty || e.file == null) {
+                try {
+                    if (e.file == null) {
+                        e.file = new File(getCacheDirectory(), (nextFileID++) + ".features");
+                        e.file.deleteOnExit();
+                    }
+                    ParentFeatureSerialiser.write(e.file, e.features);
+                } catch (IOException ex) {
+                    IJ.log("Could not cache the features of " + me.getKey() + ": " + ex.getMessage());
+                    // leave it in memory.
+                    continue;
+                }
+                e.dirty = false;
+            }
+            e.features = null;
+            residentBytes -= e.bytes;
+            it.remove();
+        }
+    }
+
+    private File getCacheDirectory() throws IOException {
+        if (cacheDirectory == null) {
+            cacheDirectory = Files.createTempDirectory("CellFeatureAnalyser").toFile();
+            cacheDirectory.deleteOnExit();
+        }
+        return cacheDirectory;
+    }
+
+    /**
+     * The features of a single image data set.
+     */
+    private static class Entry {
+
+        ArrayList<ParentFeature> features;
+
+        File file;
+
+        long bytes;
+
+        int holds;
+
+        /**
+         * True if the features in memory may differ from those in the file.
+         */
+        boolean dirty;
+
+    }
+
+}
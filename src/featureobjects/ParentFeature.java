@@ -25,6 +25,9 @@ import roiutil.RoiUtil;
  * The parent class for a main feature found in a microscopy image which will 
  * contain its own set of {@link Feature}s such as spots/particles in the image. 
  * 
+ * The methods adding and getting features and properties are synchronized, so 
+ * that different channels of a {@link ParentFeature} can be processed at once. 
+ * 
  * @author mqbssep5
  */
 public class ParentFeature {
@@ -99,7 +102,7 @@ public class ParentFeature {
      * @param key the key ID for this for this feature. 
      * @param features the list of specific features. 
      */
-    public void addFeatures( int channel, String key, ArrayList<Feature> features ) {
+    public synchronized void addFeatures( int channel, String key, ArrayList<Feature> features ) {
         if (channelFeatures == null) {
             channelFeatures = new FeatureMapObj[nchannels];
             for (int i = 0; i < nchannels; i++) {
@@ -119,7 +122,7 @@ public class ParentFeature {
      * @param key the string ID that this set of features.
      * @return 
      */
-    public ArrayList<Feature> getFeatures( int channel, String key ){
+    public synchronized ArrayList<Feature> getFeatures( int channel, String key ){
         return channelFeatures[channel].get(key);
     }
     
@@ -128,7 +131,7 @@ public class ParentFeature {
      * @param key
      * @return the value assigned to this feature. 
      */
-    public double getNumericPropertyValue( String key ){
+    public synchronized double getNumericPropertyValue( String key ){
         return numericalProperties.get(key);
     }
     
@@ -138,7 +141,7 @@ public class ParentFeature {
      * @param name An informative name for the feature
      * @param value the value for the
      */
-    public void addNumericProperty( String name, Double value ) {
+    public synchronized void addNumericProperty( String name, Double value ) {
         numericalProperties.put(name, value);
     }    
     
@@ -147,7 +150,7 @@ public class ParentFeature {
      * @param key
      * @return the value assigned to this feature. 
      */
-    public Object getObjectPropertyValue( String key ){
+    public synchronized Object getObjectPropertyValue( String key ){
         return objectProperties.get(key);
     }
     
@@ -157,14 +160,14 @@ public class ParentFeature {
      * @param name An informative name for the Object
      * @param object the value for the
      */
-    public void addObjectProperty( String name, Object object ) {
+    public synchronized void addObjectProperty( String name, Object object ) {
         objectProperties.put(name, object);
     }        
     
     /**
      * @return the box bounds of this feature.
      */
-    public Rectangle getBounds(){
+    public synchronized Rectangle getBounds(){
         bounds = roi.getBounds();
         x0 = bounds.x;
         y0 = bounds.y;
@@ -175,7 +178,7 @@ public class ParentFeature {
      * @return the origin of the rectangle of the box which bounds the outline 
      * this feature. Used for cropping of images which may contain multiple {@link ParentFeature}s.
      */
-    public int get_x0(){
+    public synchronized int get_x0(){
         if(bounds == null){
             getBounds();
         }
@@ -186,7 +189,7 @@ public class ParentFeature {
      * @return the origin of the rectangle of the box which bounds the outline 
      * this feature. Used for cropping of images which may contain multiple {@link ParentFeature}s.
      */    
-    public int get_y0(){
+    public synchronized int get_y0(){
         if(bounds == null){
             getBounds();
         }
@@ -208,6 +211,27 @@ public class ParentFeature {
         return nchannels;
     }
     
+    /**
+     * @return the file name of the image that this feature was detected in.
+     */
+    public String getImageName(){
+        return imagename;
+    }
+    
+    /**
+     * @return the full map of numerical properties. 
+     */
+    public synchronized HashMap< String, Double > getNumericProperties(){
+        return numericalProperties;
+    }
+    
+    /**
+     * @return the full map of object properties. 
+     */
+    public synchronized HashMap< String, Object > getObjectProperties(){
+        return objectProperties;
+    }
+    
     /**
      * @return The outline of this {@link ParentFeature} in the original images 
      * coordinates. 
@@ -221,7 +245,7 @@ public class ParentFeature {
      * so that surrounds the feature when the image data has been cropped for 
      * speed of processing. 
      */
-    public PolygonRoi getFeatureBoundsShifted(){
+    public synchronized PolygonRoi getFeatureBoundsShifted(){
         if( shiftedRoi == null ){
             if( bounds == null ){
                 // compute the bounds and also x0, y0.
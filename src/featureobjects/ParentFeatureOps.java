@@ -21,6 +21,7 @@ import ij.ImagePlus;
 import ij.measure.ResultsTable;
 import ij.plugin.Duplicator;
 import java.util.ArrayList;
+import utilimageprocessor.PlaneView;
 
 /**
  * A class of static functions which can be used within other functions for
@@ -72,6 +73,25 @@ public class ParentFeatureOps {
         return impOut;
     }
 
+    /**
+     * A view of the image data in the rectangle box of the {@link ParentFeature},
+     * for the first z-slice of the feature's frame in the specified channel.
+     *
+     * Nothing is copied, and unlike
+     * {@link #getLocalisedFeatureImageData(featureobjects.ParentFeature, ij.ImagePlus)}
+     * the ROI of the image is not used, so it can be called for different
+     * features of the same image from several threads at once.
+     *
+     * @param pf the feature
+     * @param imp a reference to the original data set that this feature was
+     * located in.
+     * @param channel the channel, indexed from 1.
+     * @return a view of the image data within the bounds of this feature.
+     */
+    public static PlaneView getLocalisedFeatureView(ParentFeature pf, ImagePlus imp, int channel) {
+        return PlaneView.of(imp, channel, 1, pf.getFrame()).crop(pf.getBounds());
+    }
+
     /**
      * Extracts the image data in the rectangle box which this
      * {@link ParentFeature} for the specified frame.
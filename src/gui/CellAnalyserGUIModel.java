@@ -15,6 +15,7 @@
  */
 package gui;
 
+import featureobjects.FeatureStore;
 import featureobjects.ParentFeature;
 import roiandoverlays.ParentFeatureTotalROI;
 import ij.IJ;
@@ -23,13 +24,16 @@ import ij.gui.Overlay;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import io.ParentFeature_ROI;
+import io.RoiTiffReader;
+import java.awt.Rectangle;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import main.CellFeatureAnalyser_;
 import abstractprocessors.AbstractParentFeatureProcessor;
 import drawoutline.ROIdrawAndSave2_;
 import ij.ImageListener;
 import java.io.File;
+import java.io.IOException;
 import java.util.HashSet;
 
 /**
@@ -49,10 +53,17 @@ import java.util.HashSet;
 public final class CellAnalyserGUIModel implements ImageListener {// extends HashMap<String,Object>
 
     /**
-     * A Map used to store the {@link ParentFeature}s for each of the image data
-     * sets.
+     * Used to store the {@link ParentFeature}s for each of the image data
+     * sets. Image data sets which are not in use are written to disk if they 
+     * do not fit in the memory budget. 
      */
-    private final HashMap< String, ArrayList<ParentFeature> > featureStore = new HashMap< String, ArrayList<ParentFeature>>();
+    private final FeatureStore featureStore = new FeatureStore(FeatureStore.getDefaultMemoryBudget());
+
+    /**
+     * The name of the image whose features are held in memory because it is 
+     * the current image. 
+     */
+    private String heldImageName;
     
     /**
      * A set which is used to store the name of every process which has been run 
@@ -72,9 +83,10 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
     private ImagePlus imp;
 
     /**
-     * The image file names to be analysed.
+     * The image file names to be analysed. The array is replaced, never
+     * changed, when images are added.
      */
-    private final String[] imageFileNames;
+    private volatile String[] imageFileNames;
 
     /**
      * File directory containing all of the images to be processed.
@@ -99,6 +111,24 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
 
     private boolean currentWasClosed = false;
 
+    /**
+     * If true the images are never shown and no overlays are drawn, e.g. when
+     * running in batch mode on a machine without a display.
+     */
+    private boolean headless = false;
+
+    /**
+     * If true {@link #loadImage(int)} only reads the part of the images
+     * covered by their ROIs, see {@link RoiTiffReader}.
+     */
+    private volatile boolean roiOnlyReading = false;
+
+    /**
+     * The number of pixels read around the ROIs, for the processors which
+     * look a little beyond them, e.g. to correct a chromatic shift.
+     */
+    private volatile int roiReadMargin = 16;
+
     /**
      * Constructor.
      *
@@ -122,6 +152,68 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
         this.nchannels = nchannels;
     }
 
+    /**
+     * @param headless if true the images will not be displayed when opened and
+     * the overlays will not be updated.
+     */
+    public void setHeadless( boolean headless ) {
+        this.headless = headless;
+    }
+
+    /**
+     * @return true if this model is being used without displaying any images.
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * @param roiOnlyReading if true the images loaded for processing only
+     * have the pixels covered by their ROIs read in, the rest being zero.
+     * Images without ROIs, and those which cannot be read this way, are read
+     * in full.
+     * @param margin the number of pixels around the ROIs which are read too.
+     */
+    public void setRoiOnlyReading( boolean roiOnlyReading, int margin ) {
+        this.roiOnlyReading = roiOnlyReading;
+        this.roiReadMargin = Math.max(0, margin);
+    }
+
+    /**
+     * @param bytes the approximate heap the {@link ParentFeature}s of the 
+     * images not in use may take up before they are written to disk, or zero 
+     * or less to keep them all in memory.
+     */
+    public void setFeatureMemoryBudget( long bytes ) {
+        featureStore.setMemoryBudget(bytes);
+    }
+
+    /**
+     * Keeps the features of the image in memory, so that they can be changed, 
+     * until {@link #releaseFeatures(int)} is called. 
+     *
+     * @param index
+     */
+    public void holdFeatures( int index ) {
+        featureStore.hold(imageFileNames[index]);
+    }
+
+    /**
+     * Lets the features of the image be written to disk again. 
+     *
+     * @param index
+     */
+    public void releaseFeatures( int index ) {
+        featureStore.release(imageFileNames[index]);
+    }
+
+    /**
+     * Deletes any features written to disk. 
+     */
+    public void clearFeatureCache() {
+        featureStore.clear();
+    }
+
     /**
      * @return the number of channels in these data.
      */
@@ -199,6 +291,25 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
         featureStore.put(imageSetName, features);
     }
 
+    /**
+     * Adds images which have appeared in the image directory since the model
+     * was created, e.g. whilst watching an acquisition folder. The indices of
+     * the images already in the model are unchanged.
+     *
+     * @param imageNames the file names of the new images.
+     * @return the index of the first of the new images.
+     */
+    public synchronized int addImages( String[] imageNames ) {
+        String[] names = Arrays.copyOf(imageFileNames, imageFileNames.length + imageNames.length);
+        System.arraycopy(imageNames, 0, names, imageFileNames.length, imageNames.length);
+        for (String name : imageNames) {
+            featureStore.put(name, new ArrayList<>());
+        }
+        int first = imageFileNames.length;
+        imageFileNames = names;
+        return first;
+    }
+
     /**
      * @return number of image data sets.
      */
@@ -243,20 +354,114 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
             imp = null;
         }
 
-        imp = IJ.openImage(imageFileDirectory + "\\" + imageFileNames[currentImageIndex]);
-        imp.show();
+        imp = IJ.openImage(new File(imageFileDirectory, imageFileNames[currentImageIndex]).getPath());
+        if (!headless) {
+            imp.show();
+        }
 
         // remove any pre existing overlays or ROIs. 
         imp.killRoi();
         imp.setOverlay(new Overlay());
-        IJ.resetMinAndMax(imp);
+        if (!headless) {
+            IJ.resetMinAndMax(imp);
+        }
         imp.addImageListener(this);
         // 
         nchannels = imp.getNChannels();
 
+        initialiseFeatures(imp, imageFileNames[currentImageIndex]);
+
+        // the features of the current image are kept in memory.
+        featureStore.hold(imageFileNames[currentImageIndex]);
+        if (heldImageName != null) {
+            featureStore.release(heldImageName);
+        }
+        heldImageName = imageFileNames[currentImageIndex];
+
+        updateOverlay();
+    }
+
+    /**
+     * Opens an image in the input list of image names without displaying it 
+     * and without changing the current image, e.g. for processing several 
+     * images at the same time. The {@link ParentFeature}s of the image are 
+     * initialised if they have not been already. 
+     * 
+     * Can be called from several threads at once for different images. 
+     *
+     * @param imageIndex
+     * @return the image data set. 
+     * @throws IOException if the image could not be opened. 
+     */
+    public ImagePlus loadImage( int imageIndex ) throws IOException {
+        String imageName = imageFileNames[imageIndex];
+        ImagePlus impT = null;
+        if (roiOnlyReading) {
+            impT = loadRoiRegion(imageName);
+        }
+        if (impT == null) {
+            impT = IJ.openImage(new File(imageFileDirectory, imageName).getPath());
+        }
+        if (impT == null) {
+            throw new IOException("Could not open " + imageName);
+        }
+        impT.killRoi();
+        initialiseFeatures(impT, imageName);
+        return impT;
+    }
+
+    /**
+     * Reads the part of the image covered by its ROIs, in the frames they are
+     * in.
+     *
+     * @param imageName
+     * @return the image, or null if it has no ROIs or has to be read in full.
+     * @throws IOException
+     */
+    private ImagePlus loadRoiRegion( String imageName ) throws IOException {
+        ArrayList<Roi> rois = readRois(imageName);
+        if (rois.isEmpty()) {
+            return null;
+        }
+        Rectangle region = null;
+        int maxFrame = 1;
+        for (Roi roi : rois) {
+            region = region == null ? roi.getBounds() : region.union(roi.getBounds());
+            maxFrame = Math.max(maxFrame, roi.getTPosition());
+        }
+        boolean[] frames = new boolean[maxFrame + 1];
+        for (Roi roi : rois) {
+            // a ROI without a frame is in the first.
+            frames[Math.max(1, roi.getTPosition())] = true;
+        }
+        region.grow(roiReadMargin, roiReadMargin);
+        return RoiTiffReader.open(new File(imageFileDirectory, imageName), region, frames);
+    }
+
+    /**
+     * @param imageIndex
+     * @return the ROI files the {@link ParentFeature}s of the image are 
+     * initialised from, or an empty array if it has none. 
+     */
+    public File[] getRoiFiles( int imageIndex ) {
+        String imageName = imageFileNames[imageIndex];
+        if (new File(imageFileDirectory + ROIdrawAndSave2_.ROI_FOLDER_NAME).exists()) {
+            return new ParentFeature_ROI(imageFileDirectory + ROIdrawAndSave2_.ROI_FOLDER_NAME).getROIFiles2(imageName);
+        }
+        return new ParentFeature_ROI(imageFileDirectory + CellFeatureAnalyser_.ROI_FOLDER_NAME).getROIFiles(imageName);
+    }
+
+    /**
+     * Initialises the {@link ParentFeature}s for the image from its ROIs, 
+     * unless they have already been read in. 
+     *
+     * @param imp
+     * @param imageName
+     */
+    private void initialiseFeatures( ImagePlus imp, String imageName ) {
+
         // don't replace the features if we have already read them in. 
-        if (!featureStore.get(imageFileNames[currentImageIndex]).isEmpty()) {
-            updateOverlay();
+        if (!featureStore.get(imageName).isEmpty()) {
             return;
         }
 
@@ -264,37 +469,32 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
         // for this data set. If their are no ROIs for this data set then we will 
         // assume that the whole feild of view is a Feature.
         // check which version of ROI saving we did 
-        File f2 = new File(imageFileDirectory + CellFeatureAnalyser_.ROI_FOLDER_NAME);
-        File f3 = new File(imageFileDirectory + ROIdrawAndSave2_.ROI_FOLDER_NAME);
-        String roiPath;
-
-        ParentFeature_ROI pfa;
-        ArrayList<Roi> rois = new ArrayList<>();
-        if (f3.exists()) {
-            // Now initialise the ParentFeature list for this data set if they have not yet been initialised yet. 
-            roiPath = imageFileDirectory + ROIdrawAndSave2_.ROI_FOLDER_NAME;
-            pfa = new ParentFeature_ROI(roiPath);
-            rois = pfa.getROIs2(imageFileNames[currentImageIndex]);    
-        } else {
-            roiPath = imageFileDirectory + CellFeatureAnalyser_.ROI_FOLDER_NAME;
-            pfa = new ParentFeature_ROI(roiPath);
-            rois = pfa.getROIs(imageFileNames[currentImageIndex]);            
-        }
+        ArrayList<Roi> rois = readRois(imageName);
 
         ArrayList<ParentFeature> features;
         double pixelscale = imp.getCalibration().pixelWidth;
         //
         if (!rois.isEmpty()) {
             // create the features from the ROIs.
-            features = initialiseParentFeaturesFromROIs(rois, nchannels, imageFileNames[currentImageIndex], pixelscale);
+            features = initialiseParentFeaturesFromROIs(rois, imp.getNChannels(), imageName, pixelscale);
         } else {
             // Assume we want to use the entire image. 
-            features = initialiseParentFeaturesImageSize(imp, imageFileNames[currentImageIndex], pixelscale);
+            features = initialiseParentFeaturesImageSize(imp, imageName, pixelscale);
         }
         // Assign the features to this image name. 
-        setFeatures(imageFileNames[currentImageIndex], features);
+        setFeatures(imageName, features);
+    }
 
-        updateOverlay();
+    /**
+     * @param imageName
+     * @return the ROIs saved for the image, by either version of ROI saving.
+     */
+    private ArrayList<Roi> readRois( String imageName ) {
+        File f3 = new File(imageFileDirectory + ROIdrawAndSave2_.ROI_FOLDER_NAME);
+        if (f3.exists()) {
+            return new ParentFeature_ROI(imageFileDirectory + ROIdrawAndSave2_.ROI_FOLDER_NAME).getROIs2(imageName);
+        }
+        return new ParentFeature_ROI(imageFileDirectory + CellFeatureAnalyser_.ROI_FOLDER_NAME).getROIs(imageName);
     }
 
     /**
@@ -353,7 +553,7 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
      * @param s the name of the {@link AbstractParentFeatureProcessor} that has 
      * been run on the data within this {@link CellAnalyserGUIModel}. 
      */
-    public void addProcessorNameToList( String s ){
+    public synchronized void addProcessorNameToList( String s ){
         featureProcessorNames.add(s);
     }
     
@@ -384,6 +584,9 @@ public final class CellAnalyserGUIModel implements ImageListener {// extends Has
      * Updates the overlay for this image set.
      */
     public void updateOverlay() {
+        if (headless || imp == null) {
+            return;
+        }
         Overlay overlay = new Overlay();
         ParentFeatureTotalROI roi = new ParentFeatureTotalROI(imp, featureStore.get(imageFileNames[currentImageIndex]));
         overlay.add(roi);
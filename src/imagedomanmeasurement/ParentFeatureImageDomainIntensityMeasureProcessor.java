@@ -7,6 +7,7 @@ package imagedomanmeasurement;
 
 import abstractprocessors.AbstractParentFeatureProcessor;
 import colocalisation.FeatureColocaliszer2D;
+import featureobjects.CropCache;
 import featureobjects.ParentFeature;
 import gui.CellAnalyserGUIModel;
 import gui.GUI;
@@ -14,14 +15,16 @@ import gui.JPanelSpeedy2ColBasedDefinedSize;
 import ij.ImagePlus;
 import ij.gui.PolygonRoi;
 import ij.measure.ResultsTable;
-import ij.process.ImageProcessor;
 import io.FeaturesAndParentFeaturesToResultsTable;
+import io.StreamingResultsSink;
 import java.awt.Point;
+import java.io.File;
 import java.util.ArrayList;
 import javax.swing.JPanel;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import roiutil.RoiUtil;
+import utilimageprocessor.PlaneView;
 
 /**
  * A class which just takes measurements of the intensity etc. inside the ROI 
@@ -55,6 +58,11 @@ public class ParentFeatureImageDomainIntensityMeasureProcessor extends AbstractP
     
     public static String[] STAT_NAMES = new String[]{CELL_MEAN,CELL_STD,CELL_MED,CELL_MIN,CELL_MAX};
     
+    /**
+     * The name of the measurements of each cell, for {@link #getOutputs()}.
+     */
+    public static final String DATA_CELL_MEASUREMENTS = "cell measurements";
+    
     
     public ParentFeatureImageDomainIntensityMeasureProcessor(CellAnalyserGUIModel model) {
         super(model);
@@ -83,12 +91,8 @@ public class ParentFeatureImageDomainIntensityMeasureProcessor extends AbstractP
     }
 
     @Override
-    public void doProcess() {
+    public void doProcess( ImagePlus imp, ArrayList<ParentFeature> features ) {
         
-        ImagePlus imp = model.getCurrentImageDataSet();
-        
-        ArrayList<ParentFeature> features;
-        features = model.getCurrentImageSetParentFeatures();
         int nFeatures = features.size(); 
         
         ParentFeature pf;
@@ -110,19 +114,25 @@ public class ParentFeatureImageDomainIntensityMeasureProcessor extends AbstractP
         
         PolygonRoi proi = pf.getFeatureBoundsOriginalImage();
         
-        int nchannels = model.getNchannels();
+        int nchannels = imp.getNChannels();
         double[] pixels;
-        ImageProcessor ip;
+        PlaneView crop;
+        // the crops and the pixels in the outline are shared with the other processors. 
+        CropCache cache = CropCache.of(imp);
+        Point[] points = cache.getContainedPoints(pf);
         
         double mean, stdev, median, min, max,pixelScale;
         String chanPrefix; 
-        pixelScale = model.getCurrentImageDataSet().getCalibration().pixelHeight;
+        pixelScale = imp.getCalibration().pixelHeight;
         // get the pixels for each of the channels in the image and compute the stats
         for( int ch = 0; ch < nchannels; ch++ ){
             //
-            ip = imp.getStack().getProcessor(imp.getStackIndex(ch+1, 1, pf.getFrame()));
+            crop = cache.getCrop(pf, ch+1);
             // extract the pixels. 
-            pixels = roiutil.RoiUtil.getPixelsAsDoubles(proi, ip);
+            pixels = new double[points.length];
+            for (int i = 0; i < points.length; i++) {
+                pixels[i] = crop.getf(points[i].x - crop.getX(), points[i].y - crop.getY());
+            }
             // compute the stats
             mean = StatUtils.mean(pixels);
             stdev = Math.sqrt(StatUtils.variance(pixels));
@@ -155,10 +165,60 @@ public class ParentFeatureImageDomainIntensityMeasureProcessor extends AbstractP
     public String getName() {
         return NAME;
     }
+    
+    @Override
+    public String[] getInputs() {
+        return new String[]{DATA_IMAGE};
+    }
+    
+    @Override
+    public String[] getOutputs() {
+        return new String[]{DATA_CELL_MEASUREMENTS};
+    }
+
+    @Override
+    public boolean isFrameIndependent() {
+        // each cell is processed on its own.
+        return true;
+    }
 
     @Override
     public void summariseAndSave() {
         
+        String[] names = getResultNames();
+     
+        // Now extract the values for a results table. 
+        ResultsTable rt = FeaturesAndParentFeaturesToResultsTable.parentFeatureSpecifiedNumericalProperties2ResultsTable( model ,  names );
+        if (!model.isHeadless()) {
+            rt.show("Cell_stats");
+        }
+        
+        try{
+            rt.save(model.getSaveFileDirectory() + File.separator + "Cell_Intensity_stats.csv");
+        }catch( Exception e ){
+            System.out.println(e.getMessage());
+        }          
+        
+    }
+    
+    @Override
+    public void streamResults( StreamingResultsSink sink, int imageIndex, String imageName, ArrayList<ParentFeature> features ) {
+        ResultsTable rt = new ResultsTable();
+        FeaturesAndParentFeaturesToResultsTable.addSpecifiedNumericalPropertiesRows(rt, imageName, features, getResultNames());
+        sink.addResults(imageIndex, "Cell_Intensity_stats.csv", rt);
+    }
+    
+    @Override
+    public boolean resultsAreStreamed() {
+        return true;
+    }
+    
+    /**
+     * @return the names of the stats computed for each channel, followed by 
+     * the non-channel specific ones. 
+     */
+    private String[] getResultNames(){
+        
         // compute the names of the stats computed. 
         ArrayList<String> tempList = new ArrayList<>();
         int nchannels = model.getNchannels();
@@ -174,19 +234,7 @@ public class ParentFeatureImageDomainIntensityMeasureProcessor extends AbstractP
         tempList.add(CELL_PRIM);
         tempList.add(CELL_CIRC);
         
-        String[] names;
-        names = tempList.toArray(new String[tempList.size()]);
-     
-        // Now extract the values for a results table. 
-        ResultsTable rt = FeaturesAndParentFeaturesToResultsTable.parentFeatureSpecifiedNumericalProperties2ResultsTable( model ,  names );
-        rt.show("Cell_stats");    
-        
-        try{
-            rt.save(model.getSaveFileDirectory()+ "\\" + "Cell_Intensity_stats.csv");
-        }catch( Exception e ){
-            System.out.println(e.getMessage());
-        }          
-        
+        return tempList.toArray(new String[tempList.size()]);
     }
     
 }
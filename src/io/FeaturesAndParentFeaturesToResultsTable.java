@@ -51,52 +51,70 @@ public class FeaturesAndParentFeaturesToResultsTable {
         int nSets = model.getNImages();
         // names of all of the image data sets. 
         String[] imageNames = model.getImageNames();
-        // list of the parent features found in each data set. 
-        ArrayList<ParentFeature> parentFeatures;
-        // list of features 
-        ArrayList<Feature> featuresList;
-
-        ParentFeature pf;
         // results table we will be writing to. 
         ResultsTable rt = new ResultsTable();
 
-        int nfeatureIDs = featureIDs.length;
         int nchannels = model.getNchannels();
 
         // for all image data sets. 
         for (int s = 0; s < nSets; s++) {
             // get all of the features for this data set. 
-            parentFeatures = model.getFeatures(imageNames[s]);
-            // extract the relevant variables from each of the parent features 
-            for (int i = 0; i < parentFeatures.size(); i++) {
-                // get the current feature. 
-                pf = parentFeatures.get(i);
-                // get the features stored in each channel. 
-                for (int c = 0; c < nchannels; c++) {
-                    // list of features for this channel. 
-                    featuresList = pf.getFeatures(c, featureListID);
-                    if (featuresList == null) {
-                        // Detection of features was not performed in this channel. 
-                        continue;
-                    }
-                    // all features in the list. 
-                    for (Feature f : featuresList) {
-                        // extract the desired variables from the parent features feature map.
-                        // add to the table.
-                        rt.incrementCounter();
-                        rt.addValue("Image", imageNames[s]);
-                        rt.addValue("Feature", (i + 1));
-                        rt.addValue("Channel", (c + 1));
-                        for (int fid = 0; fid < nfeatureIDs; fid++) {
-                            //System.out.println(" " + featureIDs[fid]);
-                            rt.addValue(featureIDs[fid], f.getNumericFeature(featureIDs[fid]));
-                        }
+            addSpecifiedFeatureListRows(rt, imageNames[s], model.getFeatures(imageNames[s]), nchannels, featureListID, featureIDs);
+        }
+
+        return rt;
+    }
+
+    /**
+     * Adds a row to the table for every {@link Feature} with the specified
+     * featureListID in the {@link ParentFeature}s of a single image data set,
+     * as for {@link #parentFeatureSpecifiedFeatureList2stats2ResultsTable(gui.CellAnalyserGUIModel, java.lang.String, java.lang.String[])}.
+     *
+     * @param rt the table the rows are added to.
+     * @param imageName the name of the image data set.
+     * @param parentFeatures the {@link ParentFeature}s of the image data set.
+     * @param nchannels
+     * @param featureListID the name of the list used to store a specific set of
+     * features.
+     * @param featureIDs the names of the numerical attributes stored within the
+     * {@link Feature}s. e.g. COM_X, COM_Y etc...
+     */
+    public static void addSpecifiedFeatureListRows(ResultsTable rt, String imageName, ArrayList<ParentFeature> parentFeatures, int nchannels, String featureListID, String[] featureIDs) {
+
+        // list of features 
+        ArrayList<Feature> featuresList;
+
+        ParentFeature pf;
+
+        int nfeatureIDs = featureIDs.length;
+
+        // extract the relevant variables from each of the parent features 
+        for (int i = 0; i < parentFeatures.size(); i++) {
+            // get the current feature. 
+            pf = parentFeatures.get(i);
+            // get the features stored in each channel. 
+            for (int c = 0; c < nchannels; c++) {
+                // list of features for this channel. 
+                featuresList = pf.getFeatures(c, featureListID);
+                if (featuresList == null) {
+                    // Detection of features was not performed in this channel. 
+                    continue;
+                }
+                // all features in the list. 
+                for (Feature f : featuresList) {
+                    // extract the desired variables from the parent features feature map.
+                    // add to the table.
+                    rt.incrementCounter();
+                    rt.addValue("Image", imageName);
+                    rt.addValue("Feature", (i + 1));
+                    rt.addValue("Channel", (c + 1));
+                    for (int fid = 0; fid < nfeatureIDs; fid++) {
+                        //System.out.println(" " + featureIDs[fid]);
+                        rt.addValue(featureIDs[fid], f.getNumericFeature(featureIDs[fid]));
                     }
                 }
             }
         }
-
-        return rt;
     }
 
     /**
@@ -195,32 +213,44 @@ public class FeaturesAndParentFeaturesToResultsTable {
 
         // names of all of the image data sets. 
         String[] imageNames = model.getImageNames();
-        // list of the parent features found in each data set. 
-        ArrayList<ParentFeature> parentFeatures;
-
-        ParentFeature pf;
         // results table we will be writing to. 
         ResultsTable rt = new ResultsTable();
 
-        int nfeatureIDs = featureIDs.length;
         for (int s = 0; s < nSets; s++) {
             // get all of the features for this data set. 
-            parentFeatures = model.getFeatures(imageNames[s]);
-            // extract the relevant variables from each of the parent features 
-            for (int i = 0; i < parentFeatures.size(); i++) {
-                // get the current feature. 
-                pf = parentFeatures.get(i);
-                rt.incrementCounter();
-                rt.addValue("Image", imageNames[s]);
-                rt.addValue("Feature", (i + 1));
-                // extract the desired variables from the parent features feature map.
-                for (int f = 0; f < nfeatureIDs; f++) {
-                    rt.addValue(featureIDs[f], pf.getNumericPropertyValue(featureIDs[f]));
-                }
-            }
+            addSpecifiedNumericalPropertiesRows(rt, imageNames[s], model.getFeatures(imageNames[s]), featureIDs);
         }
 
         return rt;
     }
 
+    /**
+     * Adds a row to the table for each of the {@link ParentFeature}s of a
+     * single image data set, as for {@link #parentFeatureSpecifiedNumericalProperties2ResultsTable(gui.CellAnalyserGUIModel, java.lang.String[])}.
+     *
+     * @param rt the table the rows are added to.
+     * @param imageName the name of the image data set.
+     * @param parentFeatures the {@link ParentFeature}s of the image data set.
+     * @param featureIDs the string key IDs used to name specific features
+     * stored in the {@link ParentFeature}s numerical property map.
+     */
+    public static void addSpecifiedNumericalPropertiesRows(ResultsTable rt, String imageName, ArrayList<ParentFeature> parentFeatures, String[] featureIDs) {
+
+        ParentFeature pf;
+
+        int nfeatureIDs = featureIDs.length;
+        // extract the relevant variables from each of the parent features 
+        for (int i = 0; i < parentFeatures.size(); i++) {
+            // get the current feature. 
+            pf = parentFeatures.get(i);
+            rt.incrementCounter();
+            rt.addValue("Image", imageName);
+            rt.addValue("Feature", (i + 1));
+            // extract the desired variables from the parent features feature map.
+            for (int f = 0; f < nfeatureIDs; f++) {
+                rt.addValue(featureIDs[f], pf.getNumericPropertyValue(featureIDs[f]));
+            }
+        }
+    }
+
 }
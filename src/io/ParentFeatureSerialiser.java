@@ -0,0 +1,471 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io;
+
+import featureobjects.Feature;
+import featureobjects.ParentFeature;
+import ij.gui.PolygonRoi;
+import ij.process.FloatPolygon;
+import java.awt.Color;
+import java.awt.Polygon;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A class of static methods for writing the {@link ParentFeature}s of an image
+ * data set, with all of their {@link Feature}s and properties, to a compact
+ * binary file and reading them back in again.
+ *
+ * The object properties can be arrays of doubles, ints or floats, Strings,
+ * Doubles, Integers or maps of String to Double, which covers everything the
+ * processors store. Any other type of object cannot be written.
+ *
+ * @author mqbssep5
+ */
+public class ParentFeatureSerialiser {
+
+    /**
+     * Written at the start of every file so that files of a different format
+     * are not read.
+     */
+    private static final int FORMAT = 0x50460001;
+
+    private static final byte NULL = 0;
+    private static final byte DOUBLE_ARRAY = 1;
+    private static final byte INT_ARRAY = 2;
+    private static final byte FLOAT_ARRAY = 3;
+    private static final byte STRING = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte INTEGER = 6;
+    private static final byte DOUBLE_MAP = 7;
+
+    /**
+     * Writes the {@link ParentFeature}s to the file, replacing it if it exists.
+     *
+     * @param file
+     * @param features
+     * @throws IOException if the file could not be written or one of the
+     * object properties cannot be stored.
+     */
+    public static void write( File file, ArrayList<ParentFeature> features ) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            write(out, features);
+        }
+    }
+
+    /**
+     * Reads the {@link ParentFeature}s written by
+     * {@link #write(java.io.File, java.util.ArrayList)}.
+     *
+     * @param file
+     * @return the features.
+     * @throws IOException if the file could not be read.
+     */
+    public static ArrayList<ParentFeature> read( File file ) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Writes the {@link ParentFeature}s to the stream.
+     *
+     * @param out
+     * @param features
+     * @throws IOException
+     */
+    public static void write( DataOutputStream out, ArrayList<ParentFeature> features ) throws IOException {
+        out.writeInt(FORMAT);
+        out.writeInt(features.size());
+        for (ParentFeature pf : features) {
+            writeParentFeature(out, pf);
+        }
+    }
+
+    /**
+     * Reads the {@link ParentFeature}s from the stream.
+     *
+     * @param in
+     * @return the features.
+     * @throws IOException
+     */
+    public static ArrayList<ParentFeature> read( DataInputStream in ) throws IOException {
+        if (in.readInt() != FORMAT) {
+            throw new IOException("Not a feature file");
+        }
+        int n = in.readInt();
+        ArrayList<ParentFeature> features = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            features.add(readParentFeature(in));
+        }
+        return features;
+    }
+
+    /**
+     * A rough estimate of the heap used by the {@link ParentFeature}s, for
+     * deciding when to write them out to disk.
+     *
+     * @param features
+     * @return the estimated size in bytes.
+     */
+    public static long estimateBytes( ArrayList<ParentFeature> features ) {
+        long bytes = 64;
+        for (ParentFeature pf : features) {
+            synchronized (pf) {
+                bytes += 256 + roiBytes(pf.getFeatureBoundsOriginalImage());
+                bytes += 64L * pf.getNumericProperties().size();
+                for (Object o : pf.getObjectProperties().values()) {
+                    bytes += 64 + objectBytes(o);
+                }
+                for (int c = 0; c < pf.getNchannels(); c++) {
+                    for (ArrayList<Feature> list : pf.getAllFeaturesForChannel(c).values()) {
+                        for (Feature f : list) {
+                            bytes += featureBytes(f);
+                        }
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static void writeParentFeature( DataOutputStream out, ParentFeature pf ) throws IOException {
+        synchronized (pf) {
+            out.writeInt(pf.getFrame());
+            out.writeInt(pf.getNchannels());
+            writeString(out, pf.getImageName());
+            out.writeDouble(pf.getPixelXYsize());
+            writeRoi(out, pf.getFeatureBoundsOriginalImage());
+            writeNumericMap(out, pf.getNumericProperties());
+            writeObjectMap(out, pf.getObjectProperties());
+            for (int c = 0; c < pf.getNchannels(); c++) {
+                HashMap<String, ArrayList<Feature>> channelFeatures = pf.getAllFeaturesForChannel(c);
+                out.writeInt(channelFeatures.size());
+                for (Map.Entry<String, ArrayList<Feature>> e : channelFeatures.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    ArrayList<Feature> list = e.getValue();
+                    if (list == null) {
+                        out.writeInt(-1);
+                        continue;
+                    }
+                    out.writeInt(list.size());
+                    for (Feature f : list) {
+                        writeFeature(out, f);
+                    }
+                }
+            }
+        }
+    }
+
+    private static ParentFeature readParentFeature( DataInputStream in ) throws IOException {
+        int frame = in.readInt();
+        int nchannels = in.readInt();
+        String imageName = readString(in);
+        double pixelscale = in.readDouble();
+        PolygonRoi roi = readRoi(in);
+        ParentFeature pf = new ParentFeature(frame, nchannels, imageName, roi, pixelscale);
+        pf.getNumericProperties().putAll(readNumericMap(in));
+        pf.getObjectProperties().putAll(readObjectMap(in));
+        for (int c = 0; c < nchannels; c++) {
+            int nLists = in.readInt();
+            for (int l = 0; l < nLists; l++) {
+                String key = in.readUTF();
+                int n = in.readInt();
+                ArrayList<Feature> list = null;
+                if (n >= 0) {
+                    list = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        list.add(readFeature(in));
+                    }
+                }
+                pf.addFeatures(c, key, list);
+            }
+        }
+        return pf;
+    }
+
+    private static void writeFeature( DataOutputStream out, Feature f ) throws IOException {
+        out.writeInt(f.getID());
+        out.writeDouble(f.getXpix());
+        out.writeDouble(f.getYpix());
+        out.writeInt(f.getColor().getRGB());
+        writeRoi(out, f.getOutLine());
+        writeObject(out, f.getPixelValues());
+        writeNumericMap(out, f.getNumericFeatures());
+        writeObjectMap(out, f.getObjects());
+    }
+
+    private static Feature readFeature( DataInputStream in ) throws IOException {
+        int id = in.readInt();
+        double x = in.readDouble();
+        double y = in.readDouble();
+        Color color = new Color(in.readInt(), true);
+        Feature f = new Feature(id, readRoi(in), x, y);
+        f.setDrawColour(color);
+        double[] pixels = (double[]) readObject(in);
+        if (pixels != null) {
+            f.setPixelValues(pixels);
+        }
+        f.getNumericFeatures().putAll(readNumericMap(in));
+        f.getObjects().putAll(readObjectMap(in));
+        return f;
+    }
+
+    /**
+     * Writes the outline, keeping the sub-pixel coordinates if it has them.
+     */
+    private static void writeRoi( DataOutputStream out, PolygonRoi roi ) throws IOException {
+        if (roi == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        boolean subPixel = roi.subPixelResolution();
+        out.writeByte(subPixel ? FLOAT_ARRAY : INT_ARRAY);
+        out.writeInt(roi.getType());
+        out.writeInt(roi.getPosition());
+        out.writeInt(roi.getCPosition());
+        out.writeInt(roi.getZPosition());
+        out.writeInt(roi.getTPosition());
+        if (subPixel) {
+            FloatPolygon fp = roi.getFloatPolygon();
+            out.writeInt(fp.npoints);
+            for (int i = 0; i < fp.npoints; i++) {
+                out.writeFloat(fp.xpoints[i]);
+                out.writeFloat(fp.ypoints[i]);
+            }
+        } else {
+            Polygon p = roi.getPolygon();
+            out.writeInt(p.npoints);
+            for (int i = 0; i < p.npoints; i++) {
+                out.writeInt(p.xpoints[i]);
+                out.writeInt(p.ypoints[i]);
+            }
+        }
+    }
+
+    private static PolygonRoi readRoi( DataInputStream in ) throws IOException {
+        byte kind = in.readByte();
+        if (kind == NULL) {
+            return null;
+        }
+        int type = in.readInt();
+        int position = in.readInt();
+        int c = in.readInt();
+        int z = in.readInt();
+        int t = in.readInt();
+        int n = in.readInt();
+        PolygonRoi roi;
+        if (kind == FLOAT_ARRAY) {
+            float[] xp = new float[n];
+            float[] yp = new float[n];
+            for (int i = 0; i < n; i++) {
+                xp[i] = in.readFloat();
+                yp[i] = in.readFloat();
+            }
+            roi = new PolygonRoi(new FloatPolygon(xp, yp, n), type);
+        } else {
+            int[] xp = new int[n];
+            int[] yp = new int[n];
+            for (int i = 0; i < n; i++) {
+                xp[i] = in.readInt();
+                yp[i] = in.readInt();
+            }
+            roi = new PolygonRoi(xp, yp, n, type);
+        }
+        if (c > 0 || z > 0 || t > 0) {
+            roi.setPosition(c, z, t);
+        } else {
+            roi.setPosition(position);
+        }
+        return roi;
+    }
+
+    private static void writeNumericMap( DataOutputStream out, HashMap<String, Double> map ) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, Double> e : map.entrySet()) {
+            out.writeUTF(e.getKey());
+            writeObject(out, e.getValue());
+        }
+    }
+
+    private static HashMap<String, Double> readNumericMap( DataInputStream in ) throws IOException {
+        int n = in.readInt();
+        HashMap<String, Double> map = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            String key = in.readUTF();
+            map.put(key, (Double) readObject(in));
+        }
+        return map;
+    }
+
+    private static void writeObjectMap( DataOutputStream out, HashMap<String, Object> map ) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+            out.writeUTF(e.getKey());
+            writeObject(out, e.getValue());
+        }
+    }
+
+    private static HashMap<String, Object> readObjectMap( DataInputStream in ) throws IOException {
+        int n = in.readInt();
+        HashMap<String, Object> map = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            String key = in.readUTF();
+            map.put(key, readObject(in));
+        }
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeObject( DataOutputStream out, Object o ) throws IOException {
+        if (o == null) {
+            out.writeByte(NULL);
+        } else if (o instanceof double[]) {
+            double[] a = (double[]) o;
+            out.writeByte(DOUBLE_ARRAY);
+            out.writeInt(a.length);
+            for (double d : a) {
+                out.writeDouble(d);
+            }
+        } else if (o instanceof int[]) {
+            int[] a = (int[]) o;
+            out.writeByte(INT_ARRAY);
+            out.writeInt(a.length);
+            for (int d : a) {
+                out.writeInt(d);
+            }
+        } else if (o instanceof float[]) {
+            float[] a = (float[]) o;
+            out.writeByte(FLOAT_ARRAY);
+            out.writeInt(a.length);
+            for (float d : a) {
+                out.writeFloat(d);
+            }
+        } else if (o instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) o);
+        } else if (o instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) o);
+        } else if (o instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) o);
+        } else if (o instanceof Map) {
+            out.writeByte(DOUBLE_MAP);
+            Map<String, Double> map = (Map<String, Double>) o;
+            out.writeInt(map.size());
+            for (Map.Entry<String, Double> e : map.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeObject(out, e.getValue());
+            }
+        } else {
+            throw new IOException("Cannot store objects of type " + o.getClass().getName());
+        }
+    }
+
+    private static Object readObject( DataInputStream in ) throws IOException {
+        byte kind = in.readByte();
+        int n;
+        switch (kind) {
+            case NULL:
+                return null;
+            case DOUBLE_ARRAY:
+                n = in.readInt();
+                double[] da = new double[n];
+                for (int i = 0; i < n; i++) {
+                    da[i] = in.readDouble();
+                }
+                return da;
+            case INT_ARRAY:
+                n = in.readInt();
+                int[] ia = new int[n];
+                for (int i = 0; i < n; i++) {
+                    ia[i] = in.readInt();
+                }
+                return ia;
+            case FLOAT_ARRAY:
+                n = in.readInt();
+                float[] fa = new float[n];
+                for (int i = 0; i < n; i++) {
+                    fa[i] = in.readFloat();
+                }
+                return fa;
+            case STRING:
+                return readString(in);
+            case DOUBLE:
+                return in.readDouble();
+            case INTEGER:
+                return in.readInt();
+            case DOUBLE_MAP:
+                n = in.readInt();
+                HashMap<String, Double> map = new HashMap<>();
+                for (int i = 0; i < n; i++) {
+                    String key = in.readUTF();
+                    map.put(key, (Double) readObject(in));
+                }
+                return map;
+            default:
+                throw new IOException("Unknown object type " + kind);
+        }
+    }
+
+    private static void writeString( DataOutputStream out, String s ) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString( DataInputStream in ) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static long featureBytes( Feature f ) {
+        long bytes = 160 + roiBytes(f.getOutLine()) + objectBytes(f.getPixelValues());
+        bytes += 64L * f.getNumericFeatures().size();
+        for (Object o : f.getObjects().values()) {
+            bytes += 64 + objectBytes(o);
+        }
+        return bytes;
+    }
+
+    private static long roiBytes( PolygonRoi roi ) {
+        return roi == null ? 0 : 200 + 16L * roi.getNCoordinates();
+    }
+
+    private static long objectBytes( Object o ) {
+        if (o instanceof double[]) {
+            return 16 + 8L * ((double[]) o).length;
+        } else if (o instanceof int[]) {
+            return 16 + 4L * ((int[]) o).length;
+        } else if (o instanceof float[]) {
+            return 16 + 4L * ((float[]) o).length;
+        } else if (o instanceof Map) {
+            return 64 + 64L * ((Map) o).size();
+        }
+        return 32;
+    }
+
+}
@@ -51,7 +51,7 @@ public class ParentFeature_ROI {
 
         ArrayList<Roi> output = new ArrayList<>();
 
-        RoiDecoder rd = new RoiDecoder( filePath + "\\" + imageName + ".roi" );
+        RoiDecoder rd = new RoiDecoder( filePath + File.separator + imageName + ".roi" );
         Roi roi = null;
         try {
             roi = rd.getRoi();
@@ -68,6 +68,36 @@ public class ParentFeature_ROI {
         return output;
     }
 
+    /**
+     * @param imageName
+     * @return the ROI file read by {@link #getROIs(java.lang.String)}, or an 
+     * empty array if there is none. 
+     */
+    public File[] getROIFiles( String imageName ) {
+        File f = new File( filePath + File.separator + imageName + ".roi" );
+        return f.exists() ? new File[]{f} : new File[0];
+    }
+
+    /**
+     * @param imageName
+     * @return the ROI files read by {@link #getROIs2(java.lang.String)}, in 
+     * the order they are read. 
+     */
+    public File[] getROIFiles2( String imageName ) {
+        File[] fl = new File(filePath + File.separator + imageName).listFiles();
+        if (fl == null) {
+            return new File[0];
+        }
+        Arrays.sort(fl);
+        ArrayList<File> output = new ArrayList<>();
+        for (File f : fl) {
+            if (f.getName().endsWith(".roi")) {
+                output.add(f);
+            }
+        }
+        return output.toArray(new File[output.size()]);
+    }
+
     /**
      * Reads in the ROIs associated with the specific image name in the folder 
      * specified in the constructor. This may read in several ROIs if they were saved
@@ -87,7 +117,7 @@ public class ParentFeature_ROI {
         File f2;
 
         ArrayList<Roi> output = new ArrayList<>();
-        String path = filePath + "\\" + imageName;
+        String path = filePath + File.separator + imageName;
         f2 = new File(path);
         if (!f2.exists()) {
            // return an empty list 
@@ -105,7 +135,7 @@ public class ParentFeature_ROI {
             //System.out.println(s);
             if (s.endsWith(".roi")) {
                 try {
-                    rd = new RoiDecoder( path + "\\" + s );
+                    rd = new RoiDecoder( path + File.separator + s );
                     Roi roi = rd.getRoi();
                     output.add(roi);
                 } catch (IOException ex) {
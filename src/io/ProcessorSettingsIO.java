@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import javax.swing.AbstractButton;
+import javax.swing.JComboBox;
+import javax.swing.JTextField;
+
+/**
+ * A class of static methods for reading and writing the settings of the
+ * {@link AbstractParentFeatureProcessor}s to and from a settings file. The
+ * settings are stored as key/value pairs in a {@link Properties} file.
+ *
+ * @author mqbssep5
+ */
+public class ProcessorSettingsIO {
+
+    /**
+     * Reads in the settings file.
+     *
+     * @param filePath the path to the settings file.
+     * @return the settings stored in the file.
+     * @throws IOException if the file could not be read.
+     */
+    public static Properties loadSettings( String filePath ) throws IOException {
+        Properties settings = new Properties();
+        try (InputStream in = new FileInputStream(filePath)) {
+            settings.load(in);
+        }
+        return settings;
+    }
+
+    /**
+     * Writes the settings to the file.
+     *
+     * @param settings
+     * @param filePath the path to the settings file.
+     * @param comment a comment written at the top of the file.
+     * @throws IOException if the file could not be written.
+     */
+    public static void saveSettings( Properties settings, String filePath, String comment ) throws IOException {
+        try (OutputStream out = new FileOutputStream(filePath)) {
+            settings.store(out, comment);
+        }
+    }
+
+    /**
+     * Sets the text of the text field to the value stored under the key. The
+     * text field is left as it is if the key is not in the settings.
+     *
+     * @param jtf
+     * @param settings
+     * @param key
+     */
+    public static void setTextIfPresent( JTextField jtf, Properties settings, String key ) {
+        String value = settings.getProperty(key);
+        if (value != null) {
+            jtf.setText(value.trim());
+        }
+    }
+
+    /**
+     * Selects/de-selects the button (check box, radio button) depending on the
+     * boolean value stored under the key. The button is left as it is if the
+     * key is not in the settings.
+     *
+     * @param button
+     * @param settings
+     * @param key
+     */
+    public static void setSelectedIfPresent( AbstractButton button, Properties settings, String key ) {
+        String value = settings.getProperty(key);
+        if (value != null) {
+            button.setSelected(Boolean.parseBoolean(value.trim()));
+        }
+    }
+
+    /**
+     * Selects the item in the combo box with the same name as the value stored
+     * under the key. The selection is left as it is if the key is not in the
+     * settings or if no item matches the value.
+     *
+     * @param combo
+     * @param settings
+     * @param key
+     */
+    public static void setSelectedItemIfPresent( JComboBox<?> combo, Properties settings, String key ) {
+        String value = settings.getProperty(key);
+        if (value == null) {
+            return;
+        }
+        value = value.trim();
+        for (int i = 0; i < combo.getItemCount(); i++) {
+            if (value.equalsIgnoreCase(combo.getItemAt(i).toString())) {
+                combo.setSelectedIndex(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The same as {@link gui.TextFieldGetTextOps#doubleOrDefault(javax.swing.JTextField, double)}
+     * for a value stored in the settings.
+     *
+     * @param settings
+     * @param key
+     * @param defaultValue returned if the key is not in the settings or its
+     * value is not a number.
+     * @return the value stored under the key.
+     */
+    public static double doubleOrDefault( Properties settings, String key, double defaultValue ) {
+        String value = settings.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * The same as {@link gui.TextFieldGetTextOps#positiveDoubleOrDefault(javax.swing.JTextField, double)}
+     * for a value stored in the settings.
+     *
+     * @param settings
+     * @param key
+     * @param defaultValue returned if the key is not in the settings or its
+     * value is not a number or is negative.
+     * @return the value stored under the key.
+     */
+    public static double positiveDoubleOrDefault( Properties settings, String key, double defaultValue ) {
+        double value = doubleOrDefault(settings, key, defaultValue);
+        return value < 0 ? defaultValue : value;
+    }
+
+    /**
+     * The same as {@link gui.TextFieldGetTextOps#positiveIntegerOrDefault(javax.swing.JTextField, int)}
+     * for a value stored in the settings.
+     *
+     * @param settings
+     * @param key
+     * @param defaultValue returned if the key is not in the settings or its
+     * value is not an integer or is negative.
+     * @return the value stored under the key.
+     */
+    public static int positiveIntegerOrDefault( Properties settings, String key, int defaultValue ) {
+        String value = settings.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int i = Integer.parseInt(value.trim());
+            return i < 0 ? defaultValue : i;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param settings
+     * @param key
+     * @param defaultValue returned if the key is not in the settings.
+     * @return the boolean value stored under the key.
+     */
+    public static boolean booleanOrDefault( Properties settings, String key, boolean defaultValue ) {
+        String value = settings.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * @param settings
+     * @param key
+     * @param items the names of the items, e.g. of a combo box.
+     * @param defaultIndex returned if the key is not in the settings or no item
+     * matches its value.
+     * @return the index of the item with the same name as the value stored
+     * under the key, ignoring case.
+     */
+    public static int indexOrDefault( Properties settings, String key, String[] items, int defaultIndex ) {
+        String value = settings.getProperty(key);
+        if (value == null) {
+            return defaultIndex;
+        }
+        value = value.trim();
+        for (int i = 0; i < items.length; i++) {
+            if (value.equalsIgnoreCase(items[i])) {
+                return i;
+            }
+        }
+        return defaultIndex;
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Reads only the part of a TIFF image that is used, e.g. the bounds of the
+ * ROIs of the cells, rather than decoding every plane of the file.
+ *
+ * Only uncompressed, single sample 8, 16 and 32 bit TIFFs whose planes are
+ * stored in one piece can be read, which includes those saved by ImageJ. The
+ * file is memory mapped, so only the pages holding the rows of the region are
+ * read from the disk. The image is the full size of the file, so that the
+ * coordinates of the ROIs and of the results are unchanged, with the pixels
+ * outside the region, and all of the pixels of the frames which are not used,
+ * left at zero. The planes which are not read at all share one array of
+ * zeros, so that they take no memory of their own; they are only changed by
+ * processors which move the pixels, e.g. the chromatic correction, which
+ * leave them at zero.
+ *
+ * @author mqbssep5
+ */
+public class RoiTiffReader {
+
+    /**
+     * Opens the region of the image.
+     *
+     * @param file the TIFF file.
+     * @param region the region to read, which is clipped to the image.
+     * @param frames the frames to read, indexed from 1, or null to read all of
+     * them.
+     * @return the image, or null if the file cannot be read this way and has
+     * to be opened in full.
+     * @throws IOException if the file could not be read.
+     */
+    public static ImagePlus open( File file, Rectangle region, boolean[] frames ) throws IOException {
+        file = file.getAbsoluteFile();
+        FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+        if (info == null || info.length == 0) {
+            return null;
+        }
+        FileInfo fi = info[0];
+        if (!isSupported(info)) {
+            return null;
+        }
+        // sets the unit and the hyperstack dimensions, as when opened by ImageJ.
+        Properties props = new FileOpener(fi).decodeDescriptionString(fi);
+
+        int width = fi.width;
+        int height = fi.height;
+        int nPlanes = info.length > 1 ? info.length : Math.max(1, fi.nImages);
+        int nChannels = getInt(props, "channels", 1);
+        int nSlices = getInt(props, "slices", 1);
+        int nFrames = getInt(props, "frames", 1);
+        if (nChannels * nSlices * nFrames != nPlanes) {
+            nChannels = 1;
+            nSlices = nPlanes;
+            nFrames = 1;
+        }
+        Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+        int bytesPerPixel = fi.getBytesPerPixel();
+        long planeBytes = (long) width * height * bytesPerPixel;
+        ByteOrder order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        ImageStack stack = new ImageStack(width, height);
+        // shared by the planes which are not read.
+        Object zeros = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            for (int p = 0; p < nPlanes; p++) {
+                Object pixels;
+                int frame = p / (nChannels * nSlices) + 1;
+                boolean used = frames == null || (frame < frames.length && frames[frame]);
+                if (!used || r.isEmpty()) {
+                    if (zeros == null) {
+                        zeros = createPixels(fi.fileType, width * height);
+                    }
+                    pixels = zeros;
+                } else {
+                    pixels = createPixels(fi.fileType, width * height);
+                    long offset = info.length > 1
+                            ? info[p].getOffset()
+                            : fi.getOffset() + p * (planeBytes + fi.gapBetweenImages);
+                    long start = offset + (long) r.y * width * bytesPerPixel;
+                    long length = (long) r.height * width * bytesPerPixel;
+                    if (start + length > channel.size()) {
+                        throw new IOException(file.getName() + " is shorter than its header says");
+                    }
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                    buffer.order(order);
+                    readRegion(buffer, pixels, width, r);
+                }
+                stack.addSlice(null, pixels);
+            }
+        }
+
+        ImagePlus imp = new ImagePlus(file.getName(), stack);
+        imp.setDimensions(nChannels, nSlices, nFrames);
+        if (nChannels > 1 || nFrames > 1) {
+            imp.setOpenAsHyperStack(true);
+        }
+        imp.setCalibration(getCalibration(fi, props));
+        imp.setFileInfo(fi);
+        String modeName = props == null ? null : props.getProperty("mode");
+        // ImageJ only opens the images saved as composites as composites.
+        if (nChannels > 1 && modeName != null) {
+            int mode = CompositeImage.COMPOSITE;
+            if ("color".equals(modeName)) {
+                mode = CompositeImage.COLOR;
+            } else if ("gray".equals(modeName) || "grayscale".equals(modeName)) {
+                mode = CompositeImage.GRAYSCALE;
+            }
+            imp = new CompositeImage(imp, mode);
+        }
+        return imp;
+    }
+
+    /**
+     * @param info the headers of each image in the file.
+     * @return true if the planes can be read directly from the file.
+     */
+    private static boolean isSupported( FileInfo[] info ) {
+        for (FileInfo fi : info) {
+            if (fi.compression != FileInfo.COMPRESSION_NONE) {
+                return false;
+            }
+            if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED && fi.fileType != FileInfo.GRAY32_FLOAT) {
+                return false;
+            }
+            if (fi.samplesPerPixel > 1 || fi.width != info[0].width || fi.height != info[0].height || fi.fileType != info[0].fileType) {
+                return false;
+            }
+            // the strips of a plane have to follow each other.
+            if (fi.stripOffsets != null && fi.stripLengths != null) {
+                for (int i = 1; i < fi.stripOffsets.length; i++) {
+                    if ((fi.stripOffsets[i] & 0xffffffffL) != (fi.stripOffsets[i - 1] & 0xffffffffL) + (fi.stripLengths[i - 1] & 0xffffffffL)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Object createPixels( int fileType, int n ) {
+        switch (fileType) {
+            case FileInfo.GRAY8:
+                return new byte[n];
+            case FileInfo.GRAY16_UNSIGNED:
+                return new short[n];
+            default:
+                return new float[n];
+        }
+    }
+
+    /**
+     * Copies the region from the rows of the file.
+     *
+     * @param buffer the rows of the region.
+     * @param pixels the pixels of the plane.
+     * @param width the width of the plane.
+     * @param r the region.
+     */
+    private static void readRegion( ByteBuffer buffer, Object pixels, int width, Rectangle r ) {
+        for (int y = 0; y < r.height; y++) {
+            int index = (r.y + y) * width + r.x;
+            int position = y * width + r.x;
+            if (pixels instanceof byte[]) {
+                buffer.position(position);
+                buffer.get((byte[]) pixels, index, r.width);
+            } else if (pixels instanceof short[]) {
+                buffer.position(position * 2);
+                buffer.asShortBuffer().get((short[]) pixels, index, r.width);
+            } else {
+                buffer.position(position * 4);
+                buffer.asFloatBuffer().get((float[]) pixels, index, r.width);
+            }
+        }
+    }
+
+    /**
+     * @param fi the header, once the description has been decoded.
+     * @param props the properties in the description, or null.
+     * @return the calibration the image would have if opened by ImageJ.
+     */
+    private static Calibration getCalibration( FileInfo fi, Properties props ) {
+        Calibration cal = new Calibration();
+        if (fi.pixelWidth > 0 && fi.unit != null) {
+            cal.pixelWidth = fi.pixelWidth;
+            cal.pixelHeight = fi.pixelHeight;
+            cal.pixelDepth = fi.pixelDepth;
+            cal.setUnit(fi.unit);
+        }
+        if (props != null && props.getProperty("finterval") != null) {
+            try {
+                cal.frameInterval = Double.parseDouble(props.getProperty("finterval"));
+            } catch (NumberFormatException e) {
+                // left unset, as ImageJ does.
+            }
+        }
+        return cal;
+    }
+
+    private static int getInt( Properties props, String key, int defaultValue ) {
+        if (props == null || props.getProperty(key) == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(props.getProperty(key).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io;
+
+import abstractprocessors.AbstractParentFeatureProcessor;
+import ij.IJ;
+import ij.measure.ResultsTable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Writes the results of each image to the CSV results files as soon as the
+ * image has been processed, rather than building a {@link ResultsTable} of
+ * every image at the end of the run, so that the results of a large data set
+ * never have to be held in memory at once.
+ *
+ * The {@link AbstractParentFeatureProcessor}s add a small {@link ResultsTable}
+ * per image and file. The rows are written in the order of the images (not
+ * the order they finish in) so the files have the same layout as those saved
+ * by {@link AbstractParentFeatureProcessor#summariseAndSave()}: a row number
+ * column followed by the columns of the first table added to the file. Any
+ * column of a later table which is not in the first is not written, which is
+ * logged. The numbers are formatted per image, so an integer valued column may
+ * be written without decimal places in some images and with them in others.
+ *
+ * @author mqbssep5
+ */
+public class StreamingResultsSink {
+
+    private final String directory;
+
+    /**
+     * The open files, by file name.
+     */
+    private final HashMap<String, CsvFile> files = new HashMap<>();
+
+    /**
+     * Tables waiting to be written, by position of the image in the order.
+     */
+    private final HashMap<Integer, LinkedHashMap<String, ArrayList<ResultsTable>>> pending = new HashMap<>();
+
+    private final HashSet<Integer> finished = new HashSet<>();
+
+    private final HashMap<Integer, Integer> positions = new HashMap<>();
+
+    private int nextPosition = 0;
+
+    private boolean append = false;
+
+    /**
+     * Constructor
+     *
+     * @param directory the directory the files are written to.
+     */
+    public StreamingResultsSink( String directory ) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param append if true rows are added to the end of existing files,
+     * otherwise existing files are replaced.
+     */
+    public synchronized void setAppend( boolean append ) {
+        this.append = append;
+    }
+
+    /**
+     * Sets the order the images will be written in. Must be called before any
+     * results are added.
+     *
+     * @param imageIndices the indices of the images in the order they are to
+     * be written.
+     */
+    public synchronized void setImageOrder( int[] imageIndices ) {
+        positions.clear();
+        pending.clear();
+        finished.clear();
+        nextPosition = 0;
+        for (int i = 0; i < imageIndices.length; i++) {
+            positions.put(imageIndices[i], i);
+        }
+    }
+
+    /**
+     * Adds the rows for an image. They are written once the image and all the
+     * images before it have finished.
+     *
+     * @param imageIndex index of the image in the model.
+     * @param fileName name of the CSV file e.g. "Spot_features.csv".
+     * @param rt the rows for this image only.
+     */
+    public synchronized void addResults( int imageIndex, String fileName, ResultsTable rt ) {
+        Integer pos = positions.get(imageIndex);
+        if (pos == null) {
+            return;
+        }
+        LinkedHashMap<String, ArrayList<ResultsTable>> tables = pending.get(pos);
+        if (tables == null) {
+            tables = new LinkedHashMap<>();
+            pending.put(pos, tables);
+        }
+        ArrayList<ResultsTable> list = tables.get(fileName);
+        if (list == null) {
+            list = new ArrayList<>();
+            tables.put(fileName, list);
+        }
+        list.add(rt);
+    }
+
+    /**
+     * Marks the results of an image as complete, writing them (and those of
+     * any later images waiting for it) to the files.
+     *
+     * @param imageIndex index of the image in the model.
+     */
+    public synchronized void imageFinished( int imageIndex ) {
+        Integer pos = positions.get(imageIndex);
+        if (pos == null) {
+            return;
+        }
+        finished.add(pos);
+        while (finished.contains(nextPosition)) {
+            write(pending.remove(nextPosition));
+            finished.remove(nextPosition);
+            nextPosition++;
+        }
+    }
+
+    /**
+     * Drops any results added for an image which could not be processed, so
+     * that it does not hold up the images after it.
+     *
+     * @param imageIndex index of the image in the model.
+     */
+    public synchronized void imageFailed( int imageIndex ) {
+        Integer pos = positions.get(imageIndex);
+        if (pos != null) {
+            pending.remove(pos);
+        }
+        imageFinished(imageIndex);
+    }
+
+    /**
+     * @param fileName
+     * @return true if rows have been written to the file.
+     */
+    public synchronized boolean hasWritten( String fileName ) {
+        return files.containsKey(fileName);
+    }
+
+    /**
+     * Writes the results of the finished images still waiting for an earlier
+     * image, and closes the files. The results of the images which did not
+     * finish, e.g. as the run was cancelled, are incomplete and are dropped.
+     */
+    public synchronized void close() {
+        TreeSet<Integer> waiting = new TreeSet<>(pending.keySet());
+        waiting.addAll(finished);
+        int dropped = 0;
+        for (int pos : waiting) {
+            LinkedHashMap<String, ArrayList<ResultsTable>> tables = pending.remove(pos);
+            if (finished.contains(pos)) {
+                write(tables);
+            } else {
+                dropped++;
+            }
+        }
+        finished.clear();
+        if (dropped > 0) {
+            IJ.log("The results of " + dropped + (dropped == 1 ? " image" : " images") + " which did not finish were not written.");
+        }
+        for (CsvFile f : files.values()) {
+            f.close();
+        }
+        files.clear();
+    }
+
+    /**
+     * Writes the tables of a single image.
+     *
+     * @param tables
+     */
+    private void write( LinkedHashMap<String, ArrayList<ResultsTable>> tables ) {
+        if (tables == null) {
+            return;
+        }
+        for (Map.Entry<String, ArrayList<ResultsTable>> e : tables.entrySet()) {
+            CsvFile f = files.get(e.getKey());
+            for (ResultsTable rt : e.getValue()) {
+                if (rt.size() == 0) {
+                    continue;
+                }
+                try {
+                    if (f == null) {
+                        f = new CsvFile(new File(directory, e.getKey()), rt.getHeadings(), append);
+                        files.put(e.getKey(), f);
+                    }
+                    f.write(rt);
+                } catch (IOException ex) {
+                    IJ.log("Could not write " + e.getKey() + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A single CSV file being written.
+     */
+    private static class CsvFile {
+
+        private final BufferedWriter writer;
+
+        private final File file;
+
+        private final String[] headings;
+
+        /**
+         * The columns which are not written, as they are not in the headings.
+         */
+        private final HashSet<String> dropped = new HashSet<>();
+
+        private int row;
+
+        CsvFile( File file, String[] headings, boolean append ) throws IOException {
+            this.file = file;
+            file.getParentFile().mkdirs();
+            boolean writeHeader = !append || !file.exists() || file.length() == 0;
+            this.row = append && !writeHeader ? countRows(file) : 0;
+            this.writer = new BufferedWriter(new FileWriter(file, !writeHeader));
+            this.headings = headings;
+            if (writeHeader) {
+                writer.write(" ");
+                for (String h : headings) {
+                    writer.write(",");
+                    writer.write(h);
+                }
+                writer.newLine();
+            }
+        }
+
+        void write( ResultsTable rt ) throws IOException {
+            for (String h : rt.getHeadings()) {
+                if (!rt.columnExists(h) || dropped.contains(h)) {
+                    continue;
+                }
+                if (!Arrays.asList(headings).contains(h)) {
+                    dropped.add(h);
+                    IJ.log("The column " + h + " is not in the first rows of " + file.getName() + " and is not written.");
+                }
+            }
+            int n = rt.size();
+            for (int i = 0; i < n; i++) {
+                row++;
+                writer.write(Integer.toString(row));
+                for (String h : headings) {
+                    writer.write(",");
+                    if (rt.columnExists(h)) {
+                        writer.write(rt.getStringValue(h, i));
+                    }
+                }
+                writer.newLine();
+            }
+            writer.flush();
+        }
+
+        void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                IJ.log(e.getMessage());
+            }
+        }
+
+        /**
+         * @param file
+         * @return the number of rows already in the file, not counting the
+         * header.
+         */
+        private static int countRows( File file ) throws IOException {
+            int n = -1;
+            try (java.io.BufferedReader r = new java.io.BufferedReader(new java.io.FileReader(file))) {
+                while (r.readLine() != null) {
+                    n++;
+                }
+            }
+            return Math.max(0, n);
+        }
+
+    }
+
+}
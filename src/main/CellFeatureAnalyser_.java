@@ -25,11 +25,19 @@ import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
 import javax.swing.UIManager;
 import abstractprocessors.AbstractParentFeatureProcessor;
+import batch.BatchRunner;
+import batch.ImageSetListener;
+import batch.ImageSetRunner;
+import batch.ResultCache;
+import batch.RunCheckpoint;
+import batch.RunConfiguration;
 import drawoutline.ROIdrawAndSave2_;
+import featureobjects.CropCache;
 import gui.CellAnalyserGUIModel;
 import ij.IJ;
 import ij.ImagePlus;
@@ -37,6 +45,7 @@ import ij.io.DirectoryChooser;
 import ij.plugin.frame.PlugInFrame;
 import io.ImageIOutils;
 import io.ParentFeature_ROI;
+import io.StreamingResultsSink;
 import java.awt.BorderLayout;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
@@ -45,15 +54,24 @@ import java.awt.event.MouseListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JComboBox;
 import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.table.DefaultTableModel;
 import pluginmanager.PluginLoaderV1;
+import progress.ProgressBus;
+import progress.ProgressEvent;
+import progress.ProgressListener;
+import timingutil.StageTimings;
 
 /**
  * This is the actual ImageJ PlugIn class for the {@link CellFeatureAnalyser_}
@@ -74,7 +92,13 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
 
     private JButton jbtRunOne, jbtRunAll;
 
-    public static String ROI_FOLDER_NAME = "\\ROI\\";
+    /**
+     * Whether "Run all" reuses the results of stages whose inputs have not
+     * changed since an earlier run, see {@link ResultCache}.
+     */
+    private JCheckBox jcbResultCache;
+
+    public static String ROI_FOLDER_NAME = File.separator + "ROI" + File.separator;
 
     private AbstractParentFeatureProcessor[] processors;
 
@@ -116,10 +140,23 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
 
     private SwingWorker workerThread;
 
+    /**
+     * The maximum number of images processed at once by "Run all".
+     */
+    private int nThreads = ImageSetRunner.getDefaultNumberOfThreads();
+
     /**
      * The supported file types.
      */
-    private static final String[] ACCEPTED_FILE_TYPES = new String[]{".tif", ".tiff"};
+    public static final String[] ACCEPTED_FILE_TYPES = new String[]{".tif", ".tiff"};
+
+    /**
+     * The {@link ProgressBus} sources of the progress bar and status, and of
+     * the status and number of features columns of each row of the table.
+     */
+    private static final String PROGRESS_RUN = "CellFeatureAnalyser run";
+    private static final String PROGRESS_ROW_STATUS = "CellFeatureAnalyser status";
+    private static final String PROGRESS_ROW_FEATURES = "CellFeatureAnalyser features";
 
 //    /**
 //     * @param args the command line arguments
@@ -182,6 +219,8 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
         // set these as non active until the user has selected a analysis plugin. 
         jbtRunOne.setEnabled(true);
         jbtRunAll.setEnabled(true);
+        jcbResultCache = gc.jCheckBox("Reuse earlier results", GUI.HALF_WIDTH_DIM);
+        jcbResultCache.setToolTipText("Reuse the results of the stages whose image, ROIs and settings have not changed since an earlier run");
 
         // Panel used to prepare the analysis stream
         jComboAnalysisPackage = gc.jComboBox(pluginLoader.getAnalysisSreamNames(), GUI.HALF_WIDTH_DIM);
@@ -197,6 +236,7 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
         pan2.addTwoComponentsToRow(jbChangePackage, jComboAnalysisPackage);
         pan2.addComponentDoubleColumn(tabbedPane);
         pan2.addTwoComponentsToRow(jbtRunAll, jbtRunOne);
+        pan2.addSingleComponentLHS(jcbResultCache);
 
         // construct a JPanel to put everything on. 
         JPanel totalPanel = new JPanel(new GridBagLayout());
@@ -473,6 +513,50 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
         jtfStatus.setText("Status: " + status);
     }
 
+    /**
+     * Creates the listener which shows the progress published by the worker
+     * thread and the processors. The updates arrive a few times a second
+     * however often they are published, and are passed to the event dispatch
+     * thread together.
+     *
+     * @return the listener, to add to the {@link ProgressBus} for the length
+     * of a run.
+     */
+    private ProgressListener createProgressListener() {
+        return new ProgressListener() {
+            @Override
+            public void progressUpdated( final List<ProgressEvent> events ) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        // only the latest of the processors is shown in the ImageJ status bar.
+                        ProgressEvent latest = null;
+                        for (ProgressEvent e : events) {
+                            if (e.getSource().equals(PROGRESS_RUN)) {
+                                if (e.getTotal() != progressBarMax) {
+                                    resetProgressBarAndGUIstatus((int) e.getTotal(), e.getMessage());
+                                }
+                                setProgressBarAndGUIstatus((int) e.getDone(), e.getMessage());
+                            } else if (e.getSource().equals(PROGRESS_ROW_STATUS)) {
+                                setStatusCellInTable(e.getItem(), e.getMessage());
+                            } else if (e.getSource().equals(PROGRESS_ROW_FEATURES)) {
+                                tableModel.setValueAt(e.getMessage(), e.getItem(), 1);
+                            } else {
+                                latest = e;
+                            }
+                        }
+                        if (latest != null) {
+                            IJ.showStatus(latest.getMessage());
+                            if (latest.getTotal() > 0) {
+                                IJ.showProgress((int) latest.getDone(), (int) latest.getTotal());
+                            }
+                        }
+                    }
+                });
+            }
+        };
+    }
+
     /**
      * Initialises all of the processes that will be applied to the datasets and
      * the
@@ -504,26 +588,40 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
             return;
         }
         int nProcesses = processors.length;
+        // the settings are taken here, on the event dispatch thread, rather than by the worker thread. 
+        for (AbstractParentFeatureProcessor p : processors) {
+            p.readSettings();
+        }
         resetProgressBarAndGUIstatus(nProcesses, "Running all on single data set.");
         // initilaise the worker thread to do the processing outside of the GUIs event dispactch thread.
         workerThread = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                // check if the image data has been modified by faffing around. 
-                if (model.getCurrentImageDataSet().changes == true) {
-                    // if so then re-load the data. 
-                    model.refreshCurrentImage();
-                }
-                // Then lets process the current through all processes.    
-                for (int i = 0; i < nProcesses; i++) {
-                    setStatusCellInTable(model.getCurrentImageIndex(), "Processing " + (i + 1) + "/" + (nProcesses));
-                    setProgressBarAndGUIstatus((i + 1), "Processing set " + (model.getCurrentImageIndex() + 1) + " with process " + (i + 1));
-                    processors[i].doProcess();
-                    // store this as we may need to access this for sumarising the data later. 
-                    model.addProcessorNameToList(processors[i].getName());
+                ProgressListener progress = createProgressListener();
+                ProgressBus.addListener(progress);
+                try {
+                    // check if the image data has been modified by faffing around. 
+                    if (model.getCurrentImageDataSet().changes == true) {
+                        // if so then re-load the data. 
+                        model.refreshCurrentImage();
+                    }
+                    // the features may have been read in again since the last run. 
+                    CropCache.evict(model.getCurrentImageDataSet());
+                    // Then lets process the current through all processes.    
+                    int index = model.getCurrentImageIndex();
+                    for (int i = 0; i < nProcesses; i++) {
+                        ProgressBus.publish(PROGRESS_ROW_STATUS, index, "Processing " + (i + 1) + "/" + (nProcesses));
+                        ProgressBus.publish(PROGRESS_RUN, -1, "Processing set " + (index + 1) + " with process " + (i + 1), i + 1, nProcesses);
+                        processors[i].doProcess();
+                        // store this as we may need to access this for sumarising the data later. 
+                        model.addProcessorNameToList(processors[i].getName());
+                    }
+                    ProgressBus.publish(PROGRESS_ROW_STATUS, index, "Complete");
+                    ProgressBus.publish(PROGRESS_RUN, -1, "Idle", 0, 1);
+                } finally {
+                    ProgressBus.flush();
+                    ProgressBus.removeListener(progress);
                 }
-                setStatusCellInTable(model.getCurrentImageIndex(), "Complete");
-                resetProgressBarAndGUIstatus(1, "Idle");
                 return null;
             }
         };
@@ -545,49 +643,111 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
         int nDataSets;
         nDataSets = model.getNImages();
 
-        resetProgressBarAndGUIstatus(nProcesses * nDataSets, "Running all processes");
+        // the settings are taken here, on the event dispatch thread, rather than by the worker threads. 
+        for (AbstractParentFeatureProcessor p : processors) {
+            p.readSettings();
+        }
+        Properties options = new Properties();
+        options.setProperty(BatchRunner.SETTING_THREADS, "" + nThreads);
+        final boolean reuseResults = jcbResultCache.isSelected();
+        options.setProperty(BatchRunner.SETTING_RESULT_CACHE, "" + reuseResults);
+        final RunConfiguration configuration = RunConfiguration.capture(pluginOption, processors, options);
+        resetProgressBarAndGUIstatus(nDataSets, "Running all processes");
         // initialise a new worker thread for processing outside of the event dispatch thread.
         workerThread = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() throws Exception {
-                boolean dirmade;
-
-                int counter = 1;
-                String s;
-                // Run all the processes on all of the images. 
-                for (int i = 0; i < nDataSets; i++) {
-                    model.openImage(i);
-                    // set the number of features in the table if it has been modifed at all.
-                    tableModel.setValueAt("" + model.getCurrentImageSetParentFeatures().size(), i, 1);
-                    highlightTableRow(i);
-                    //setStatusCellInTable( i, "Processing" );
+                ProgressListener progress = createProgressListener();
+                ProgressBus.addListener(progress);
+                try {
+                    boolean dirmade;
+
+                    final AtomicInteger counter = new AtomicInteger();
+                    final AtomicInteger failures = new AtomicInteger();
+                    // the results of each image are written as soon as it has been processed.
+                    dirmade = new File(model.getSaveFileDirectory()).mkdirs();
+                    StreamingResultsSink sink = new StreamingResultsSink(model.getSaveFileDirectory());
+                    // Run all the processes on all of the images, several images at once. 
+                    ImageSetRunner runner = new ImageSetRunner(model, processors, nThreads);
+                    runner.setResultsSink(sink);
+                    // the results of stages whose inputs have not changed since an earlier run are reused, if wanted. 
+                    if (reuseResults) {
+                        runner.setResultCache(new ResultCache(new File(model.getSaveFileDirectory(), ResultCache.FOLDER_NAME), ResultCache.DEFAULT_MAX_SIZE_MB));
+                    }
+                    // the features of each image are saved so that the run can be resumed if it is stopped. 
+                    RunCheckpoint checkpoint = new RunCheckpoint(model.getSaveFileDirectory(), RunCheckpoint.createManifest(pluginOption, processors));
+                    try {
+                        checkpoint.open();
+                        runner.setCheckpoint(checkpoint);
+                    } catch (IOException e) {
+                        IJ.log("Could not create the checkpoint, the run cannot be resumed: " + e.getMessage());
+                        checkpoint = null;
+                    }
+                    // the time taken by each stage is written to a report. 
+                    StageTimings timings = new StageTimings();
+                    runner.setStageTimings(timings);
+                    runner.addImageSetListener(new ImageSetListener() {
+                        @Override
+                        public void imageStarted( int imageIndex ) {
+                            ProgressBus.publish(PROGRESS_ROW_STATUS, imageIndex, "Processing");
+                        }
+
+                        @Override
+                        public void imageCompleted( int imageIndex ) {
+                            // set the number of features in the table if it has been modifed at all.
+                            ProgressBus.publish(PROGRESS_ROW_FEATURES, imageIndex, "" + model.getFeatures(imageIndex).size());
+                            ProgressBus.publish(PROGRESS_ROW_STATUS, imageIndex, "Complete");
+                            int done = counter.incrementAndGet();
+                            ProgressBus.publish(PROGRESS_RUN, -1, "Processed data set " + done + "/" + nDataSets, done, nDataSets);
+                        }
+
+                        @Override
+                        public void imageFailed( int imageIndex, Throwable t ) {
+                            failures.incrementAndGet();
+                            ProgressBus.publish(PROGRESS_ROW_STATUS, imageIndex, "Failed");
+                            int done = counter.incrementAndGet();
+                            ProgressBus.publish(PROGRESS_RUN, -1, "Processed data set " + done + "/" + nDataSets, done, nDataSets);
+                        }
+                    });
+                    try {
+                        runner.run();
+                    } finally {
+                        sink.close();
+                    }
+                    // show the features found in the image currently displayed.
+                    model.updateOverlay();
+                    System.gc();
+                    // now sumarise the data not already written. 
+                    ProgressBus.publish(PROGRESS_RUN, -1, "Summarizing all data", 0, nProcesses);
                     // Then lets process the current through all processes.    
                     for (int p = 0; p < nProcesses; p++) {
-                        // update the status bars.
-                        setStatusCellInTable(i, "Processing " + (p + 1) + "/" + (nProcesses));
-                        setProgressBarAndGUIstatus(counter, "Processing data set " + (i + 1) + "/" + nDataSets + " with process " + (p + 1) + "/" + nProcesses);
-                        processors[p].doProcess();
-                        if (i == 0) {
-                            // store this as we may need to access this for sumarising the data later from across different processors. 
-                            model.addProcessorNameToList(processors[p].getName());
+                        if (processors[p].resultsAreStreamed()) {
+                            continue;
                         }
-                        counter++;
+                        ProgressBus.publish(PROGRESS_RUN, -1, "Summarizing process " + (p + 1) + ": " + processors[p].getName(), p + 1, nProcesses);
+                        processors[p].summariseAndSave();
                     }
-                    setStatusCellInTable(i, "Complete");
-                }
-                System.gc();
-                // now sumarise the data. 
-                dirmade = new File(model.getSaveFileDirectory()).mkdirs();
-                resetProgressBarAndGUIstatus(nProcesses, "Summarizing all data");
-                // Then lets process the current through all processes.    
-                for (int p = 0; p < nProcesses; p++) {
-                    IJ.showProgress(p + 1, nProcesses);
-                    IJ.showStatus("Summarising " + processors[p].getName());
-                    setProgressBarAndGUIstatus(p + 1, "Summarizing process " + (p + 1));
-                    processors[p].summariseAndSave();
+                    try {
+                        timings.writeReport(model.getSaveFileDirectory(), StageTimings.REPORT_NAME);
+                    } catch (IOException e) {
+                        IJ.log("Could not write the timing report: " + e.getMessage());
+                    }
+                    // the run can be repeated by passing the configuration to the BatchRunner. 
+                    try {
+                        configuration.save(new File(model.getSaveFileDirectory(), RunConfiguration.FILE_NAME).getPath());
+                    } catch (IOException e) {
+                        IJ.log("Could not write the run configuration: " + e.getMessage());
+                    }
+                    // keep the checkpoint if any images failed so that only they are run again. 
+                    if (checkpoint != null && failures.get() == 0) {
+                        checkpoint.delete();
+                    }
+                    IJ.showProgress(1, 1);
+                    ProgressBus.publish(PROGRESS_RUN, -1, "Complete", 0, 1);
+                } finally {
+                    ProgressBus.flush();
+                    ProgressBus.removeListener(progress);
                 }
-                IJ.showProgress(1, 1);
-                resetProgressBarAndGUIstatus(1, "Complete");
                 return null;
             }
         };
@@ -616,7 +776,12 @@ public class CellFeatureAnalyser_ extends PlugInFrame implements PlugIn, ActionL
                 // last run. 
 //                return;
             }
-            //
+            // the threads of the processors being replaced are released. 
+            if (processors != null) {
+                for (AbstractParentFeatureProcessor p : processors) {
+                    p.close();
+                }
+            }
             processors = pluginLoader.getProcessingStream(model, selected);
             pluginOption = selected;
             // update the GUI.
@@ -15,6 +15,9 @@
  */
 package main;
 
+import batch.BatchRunner;
+import batch.FolderWatcher;
+import batch.JobServer;
 import ij.ImageJ;
 import ij.plugin.PlugIn;
 
@@ -25,10 +28,29 @@ import ij.plugin.PlugIn;
 public class Main {
     
      /**
-     * @param args the command line arguments
+     * @param args the command line arguments. If an image folder and a 
+     * settings file are given the analysis is run in batch mode without the GUI
+     * (see {@link BatchRunner}). If the first argument is one of server,
+     * submit, status or shutdown the job server, or its client, is run instead
+     * (see {@link JobServer}), and if it is watch the folder is processed as
+     * the images are written (see {@link FolderWatcher}).
      */
     public static void main( String[] args ) {
         
+        if (args.length > 0) {
+            String mode = args[0].toLowerCase();
+            if (mode.equals("server") || mode.equals("submit") || mode.equals("status") || mode.equals("shutdown")) {
+                JobServer.main(args);
+                return;
+            }
+            if (mode.equals("watch")) {
+                FolderWatcher.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+                return;
+            }
+            BatchRunner.main(args);
+            return;
+        }
+        
         ImageJ ij = new ImageJ();
         ij.setVisible(true);
 //        
@@ -35,12 +35,6 @@ import javax.swing.JPanel;
  */
 public class FirstTestProcessor extends AbstractParentFeatureProcessor{
 
-    private ImagePlus imp;
-    
-    private ArrayList<ParentFeature> features;
-    
-    private int nFeatures;
-
     public FirstTestProcessor( CellAnalyserGUIModel model ) {
         super(model);
     }
@@ -64,21 +58,16 @@ public class FirstTestProcessor extends AbstractParentFeatureProcessor{
     }
 
     @Override
-    public void doProcess( ) {
+    public void doProcess( ImagePlus imp, ArrayList<ParentFeature> features ) {
              
-        // Get reference to the current image which we will extract the features from. 
-        imp = model.getCurrentImageDataSet();
-        features = model.getCurrentImageSetParentFeatures();
-        
-        nFeatures = features.size();
- 
         // Test some shit. 
-        testFeatureCropper();
+        testFeatureCropper(imp, features);
         
     }
     
-    private void testFeatureCropper(){
+    private void testFeatureCropper( ImagePlus imp, ArrayList<ParentFeature> features ){
         
+        int nFeatures = features.size();
         ImagePlus impLocal;
         for( int i = 0; i < nFeatures; i++ ){
             impLocal = ParentFeatureOps.getLocalisedFeatureImageDataAllChannels(features.get(i), imp);
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package progress;
+
+import ij.IJ;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes the progress to the ImageJ log, for runs without a GUI. So that the
+ * log is readable each source is written at most once per interval, as many
+ * cells may be making progress at once under the same source.
+ *
+ * @author mqbssep5
+ */
+public class LogProgressListener implements ProgressListener {
+
+    private final long intervalMs;
+
+    /**
+     * The time each source was last written.
+     */
+    private final HashMap<String, Long> lastWritten = new HashMap<>();
+
+    /**
+     * @param intervalMs the minimum time between writing the progress of a
+     * source, in ms.
+     */
+    public LogProgressListener( long intervalMs ) {
+        this.intervalMs = intervalMs;
+    }
+
+    @Override
+    public void progressUpdated( List<ProgressEvent> events ) {
+        long now = System.currentTimeMillis();
+        for (ProgressEvent e : events) {
+            Long last = lastWritten.get(e.getSource());
+            if (last == null || now - last >= intervalMs) {
+                IJ.log(e.toString());
+                lastWritten.put(e.getSource(), now);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package progress;
+
+import ij.IJ;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes the progress of the processing to the GUI or the log without the
+ * processing having to wait for them.
+ *
+ * The processors {@link #publish(java.lang.String, int, java.lang.String, long, long)}
+ * their progress as often as they like, e.g. once per spot, which only records
+ * it. Only the latest event of each source (and item, or part) is kept, and the
+ * {@link ProgressListener}s are given the events which have changed at most
+ * every {@link #REFRESH_MS} ms, on the thread of the bus. Whilst there are no
+ * listeners nothing is recorded at all.
+ *
+ * @author mqbssep5
+ */
+public class ProgressBus {
+
+    /**
+     * The time between the updates of the listeners, in ms.
+     */
+    public static final long REFRESH_MS = 100;
+
+    private static final CopyOnWriteArrayList<ProgressListener> listeners = new CopyOnWriteArrayList<>();
+
+    private static final ConcurrentHashMap<String, ProgressEvent> pending = new ConcurrentHashMap<>();
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static final Object lock = new Object();
+
+    private static Timer timer;
+
+    /**
+     * @param listener given the events from now on, see {@link ProgressListener}.
+     */
+    public static void addListener( ProgressListener listener ) {
+        synchronized (lock) {
+            listeners.add(listener);
+            if (timer == null) {
+                timer = new Timer("progress", true);
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, REFRESH_MS, REFRESH_MS);
+            }
+        }
+    }
+
+    /**
+     * @param listener no longer given the events. The events published before
+     * should be {@link #flush()}ed first if it needs them.
+     */
+    public static void removeListener( ProgressListener listener ) {
+        synchronized (lock) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                if (timer != null) {
+                    timer.cancel();
+                    timer = null;
+                }
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * @return true if there are any listeners, so that a caller can skip
+     * building the message of an event if there are not.
+     */
+    public static boolean isActive() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Records the progress of a source, replacing the last event of the source
+     * and item not yet given to the listeners.
+     *
+     * @param source what is making progress, e.g. the name of a stage.
+     * @param item the index of the item the event is about, e.g. an image, or
+     * -1 if it is about the source as a whole.
+     * @param message
+     * @param done the amount of work done.
+     * @param total the total amount of work, or 0 if not known.
+     */
+    public static void publish( String source, int item, String message, long done, long total ) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        String key = item < 0 ? source : source + '#' + item;
+        pending.put(key, new ProgressEvent(source, item, message, done, total, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Records the progress of one of the parts of a source which progress at
+     * once, e.g. the cells of a stage, replacing only the last event of the
+     * same part.
+     *
+     * @param source what is making progress, e.g. the name of a stage.
+     * @param part what the event is about within the source, e.g. the image
+     * and cell.
+     * @param message
+     * @param done the amount of work done on the part.
+     * @param total the total amount of work of the part, or 0 if not known.
+     */
+    public static void publish( String source, String part, String message, long done, long total ) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        pending.put(source + '@' + part, new ProgressEvent(source, -1, message, done, total, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Records a message of a source with no amount of work.
+     *
+     * @param source
+     * @param item
+     * @param message
+     */
+    public static void publish( String source, int item, String message ) {
+        publish(source, item, message, 0, 0);
+    }
+
+    /**
+     * Gives the listeners the events published since the last update, on the
+     * calling thread. Called by the bus every {@link #REFRESH_MS} ms, and at
+     * the end of a run so that the listeners see the last events.
+     */
+    public static void flush() {
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            ArrayList<ProgressEvent> events = new ArrayList<>(pending.size());
+            Iterator<Map.Entry<String, ProgressEvent>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ProgressEvent> e = it.next();
+                events.add(e.getValue());
+                // a newer event published meanwhile is kept for the next update.
+                pending.remove(e.getKey(), e.getValue());
+            }
+            // in the order they were published.
+            Collections.sort(events, new Comparator<ProgressEvent>() {
+                @Override
+                public int compare( ProgressEvent o1, ProgressEvent o2 ) {
+                    return Long.compare(o1.getSequence(), o2.getSequence());
+                }
+            });
+            for (ProgressListener l : listeners) {
+                try {
+                    l.progressUpdated(events);
+                } catch (RuntimeException e) {
+                    // a broken listener must not stop the others, or the bus.
+                    IJ.log("Progress listener failed: " + e);
+                }
+            }
+        }
+    }
+
+}
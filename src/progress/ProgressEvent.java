@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package progress;
+
+/**
+ * The progress of a source at some point, see
+ * {@link ProgressBus#publish(java.lang.String, int, java.lang.String, long, long)}.
+ *
+ * @author mqbssep5
+ */
+public class ProgressEvent {
+
+    private final String source;
+
+    private final int item;
+
+    private final String message;
+
+    private final long done;
+
+    private final long total;
+
+    private final long sequence;
+
+    ProgressEvent( String source, int item, String message, long done, long total, long sequence ) {
+        this.source = source;
+        this.item = item;
+        this.message = message;
+        this.done = done;
+        this.total = total;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return what is making progress.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the index of the item the event is about, or -1.
+     */
+    public int getItem() {
+        return item;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the amount of work done.
+     */
+    public long getDone() {
+        return done;
+    }
+
+    /**
+     * @return the total amount of work, or 0 if not known.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return true if all of the work is done.
+     */
+    public boolean isComplete() {
+        return total > 0 && done >= total;
+    }
+
+    /**
+     * @return the order the event was published in.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return total > 0 ? message + " (" + done + "/" + total + ")" : message;
+    }
+
+}
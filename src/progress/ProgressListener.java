@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package progress;
+
+import java.util.List;
+
+/**
+ * Listener for the progress published to the {@link ProgressBus}. It is
+ * called from the thread of the bus, or of whoever flushes it, never from the
+ * event dispatch thread, so GUI updates have to be passed to it.
+ *
+ * @author mqbssep5
+ */
+public interface ProgressListener {
+
+    /**
+     * Called with the latest event of each source and item which has changed
+     * since the last call.
+     *
+     * @param events in the order they were published.
+     */
+    public void progressUpdated( List<ProgressEvent> events );
+
+}
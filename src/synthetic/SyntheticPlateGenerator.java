@@ -0,0 +1,560 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package synthetic;
+
+import chromaticcorrection.ChromaticCorrection2Dprocessor;
+import drawoutline.ROIdrawAndSave2_;
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import io.ProcessorSettingsIO;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import main.CellFeatureAnalyser_;
+
+/**
+ * Writes a folder of synthetic multi-channel images (a "plate") with known
+ * spots, so that the throughput and detection accuracy of the analysis can be
+ * measured for any number and size of images without real data.
+ *
+ * Each image contains a grid of round cells, each containing Gaussian spots
+ * at random positions on a noisy background. The spots of every channel after
+ * the first are drawn displaced by a known chromatic offset. The cells are
+ * written as ROIs in either of the layouts read by the analysis: a single ROI
+ * per image in the {@link CellFeatureAnalyser_#ROI_FOLDER_NAME} folder, or a
+ * folder of ROIs per image in the {@link ROIdrawAndSave2_#ROI_FOLDER_NAME}
+ * folder. The true position of every spot is written to
+ * {@link #GROUND_TRUTH_NAME}, and the settings used, along with the chromatic
+ * correction settings which undo the offset, to {@link #PLATE_SETTINGS_NAME}.
+ *
+ * The same seed always gives the same plate.
+ *
+ * @author mqbssep5
+ */
+public class SyntheticPlateGenerator {
+
+    /**
+     * The ROIs are not written, so the whole of each image is analysed.
+     */
+    public static final String ROI_LAYOUT_NONE = "none";
+
+    /**
+     * A single ROI, covering a single cell, per image.
+     */
+    public static final String ROI_LAYOUT_SINGLE = "single";
+
+    /**
+     * A folder of ROIs per image, one for each cell.
+     */
+    public static final String ROI_LAYOUT_PER_IMAGE = "perImage";
+
+    /**
+     * The name of the ground truth spot table written to the plate folder. The
+     * positions are in pixels with the centre of each pixel at its indices, as
+     * the spot detectors report them.
+     */
+    public static final String GROUND_TRUTH_NAME = "Ground_truth_spots.csv";
+
+    /**
+     * The name of the settings file written to the plate folder.
+     */
+    public static final String PLATE_SETTINGS_NAME = "plate.properties";
+
+    /**
+     * Settings file keys, see the setters for their meaning.
+     */
+    public static final String SETTING_IMAGES = "plate.images";
+    public static final String SETTING_WIDTH = "plate.width";
+    public static final String SETTING_HEIGHT = "plate.height";
+    public static final String SETTING_CHANNELS = "plate.channels";
+    public static final String SETTING_FRAMES = "plate.frames";
+    public static final String SETTING_CELLS = "plate.cells";
+    public static final String SETTING_SPOTS = "plate.spotsPerCell";
+    public static final String SETTING_COLOCALISED = "plate.colocalisedFraction";
+    public static final String SETTING_SPOT_SIGMA = "plate.spotSigma";
+    public static final String SETTING_AMPLITUDE = "plate.spotAmplitude";
+    public static final String SETTING_BACKGROUND = "plate.background";
+    public static final String SETTING_NOISE = "plate.noise";
+    public static final String SETTING_OFFSET_X = "plate.chromaticOffsetX";
+    public static final String SETTING_OFFSET_Y = "plate.chromaticOffsetY";
+    public static final String SETTING_PIXEL_WIDTH = "plate.pixelWidth";
+    public static final String SETTING_ROI_LAYOUT = "plate.roiLayout";
+    public static final String SETTING_SEED = "plate.seed";
+
+    private int nImages = 10;
+
+    private int width = 512;
+
+    private int height = 512;
+
+    private int nChannels = 2;
+
+    private int nFrames = 1;
+
+    private int cellsPerImage = 16;
+
+    private int spotsPerCell = 10;
+
+    private double colocalisedFraction = 0.5;
+
+    private double spotSigma = 1.5;
+
+    private double spotAmplitude = 500;
+
+    private double background = 100;
+
+    private double noise = 10;
+
+    private double chromaticOffsetX = 2;
+
+    private double chromaticOffsetY = -1;
+
+    private double pixelWidth = 0.1;
+
+    private String roiLayout = ROI_LAYOUT_PER_IMAGE;
+
+    private long seed = 1;
+
+    /**
+     * @param nImages the number of images in the plate.
+     */
+    public void setNumberOfImages( int nImages ) {
+        this.nImages = Math.max(1, nImages);
+    }
+
+    /**
+     * @param width the width of the images, in pixels.
+     * @param height the height of the images, in pixels.
+     */
+    public void setImageSize( int width, int height ) {
+        this.width = Math.max(16, width);
+        this.height = Math.max(16, height);
+    }
+
+    /**
+     * @param nChannels the number of channels, the chromatic correction only
+     * supports 2.
+     */
+    public void setNumberOfChannels( int nChannels ) {
+        this.nChannels = Math.max(1, nChannels);
+    }
+
+    /**
+     * @param nFrames the number of time points, the cells and spots are the
+     * same in each.
+     */
+    public void setNumberOfFrames( int nFrames ) {
+        this.nFrames = Math.max(1, nFrames);
+    }
+
+    /**
+     * @param cellsPerImage the number of cells in each image, laid out in a
+     * grid. Always 1 for the single ROI layout.
+     */
+    public void setCellsPerImage( int cellsPerImage ) {
+        this.cellsPerImage = Math.max(1, cellsPerImage);
+    }
+
+    /**
+     * @param spotsPerCell the number of spots in each channel of each cell.
+     */
+    public void setSpotsPerCell( int spotsPerCell ) {
+        this.spotsPerCell = Math.max(0, spotsPerCell);
+    }
+
+    /**
+     * @param colocalisedFraction the fraction of the spots of each channel
+     * after the first which are at the same true position as a spot of the
+     * first channel.
+     */
+    public void setColocalisedFraction( double colocalisedFraction ) {
+        this.colocalisedFraction = Math.max(0, Math.min(1, colocalisedFraction));
+    }
+
+    /**
+     * @param spotSigma the standard deviation of the spots, in pixels.
+     * @param spotAmplitude the peak value of the spots above the background.
+     */
+    public void setSpotShape( double spotSigma, double spotAmplitude ) {
+        this.spotSigma = spotSigma;
+        this.spotAmplitude = spotAmplitude;
+    }
+
+    /**
+     * @param background the mean background value.
+     * @param noise the standard deviation of the Gaussian noise.
+     */
+    public void setBackground( double background, double noise ) {
+        this.background = background;
+        this.noise = noise;
+    }
+
+    /**
+     * @param dx the displacement, in pixels, of the spots of the channels
+     * after the first from their true positions.
+     * @param dy
+     */
+    public void setChromaticOffset( double dx, double dy ) {
+        this.chromaticOffsetX = dx;
+        this.chromaticOffsetY = dy;
+    }
+
+    /**
+     * @param pixelWidth the calibration of the images, in microns.
+     */
+    public void setPixelWidth( double pixelWidth ) {
+        this.pixelWidth = pixelWidth;
+    }
+
+    /**
+     * @param roiLayout one of {@link #ROI_LAYOUT_NONE},
+     * {@link #ROI_LAYOUT_SINGLE} or {@link #ROI_LAYOUT_PER_IMAGE}.
+     */
+    public void setRoiLayout( String roiLayout ) {
+        if (!roiLayout.equals(ROI_LAYOUT_NONE) && !roiLayout.equals(ROI_LAYOUT_SINGLE) && !roiLayout.equals(ROI_LAYOUT_PER_IMAGE)) {
+            throw new IllegalArgumentException("Unknown ROI layout: " + roiLayout);
+        }
+        this.roiLayout = roiLayout;
+    }
+
+    /**
+     * @param seed the seed of the random cells, spots and noise.
+     */
+    public void setSeed( long seed ) {
+        this.seed = seed;
+    }
+
+    /**
+     * Applies any of the settings present.
+     *
+     * @param settings
+     * @throws NumberFormatException if a value is not a valid number.
+     */
+    public void loadSettings( Properties settings ) {
+        setNumberOfImages(Integer.parseInt(settings.getProperty(SETTING_IMAGES, "" + nImages).trim()));
+        setImageSize(Integer.parseInt(settings.getProperty(SETTING_WIDTH, "" + width).trim()),
+                Integer.parseInt(settings.getProperty(SETTING_HEIGHT, "" + height).trim()));
+        setNumberOfChannels(Integer.parseInt(settings.getProperty(SETTING_CHANNELS, "" + nChannels).trim()));
+        setNumberOfFrames(Integer.parseInt(settings.getProperty(SETTING_FRAMES, "" + nFrames).trim()));
+        setCellsPerImage(Integer.parseInt(settings.getProperty(SETTING_CELLS, "" + cellsPerImage).trim()));
+        setSpotsPerCell(Integer.parseInt(settings.getProperty(SETTING_SPOTS, "" + spotsPerCell).trim()));
+        setColocalisedFraction(Double.parseDouble(settings.getProperty(SETTING_COLOCALISED, "" + colocalisedFraction).trim()));
+        setSpotShape(Double.parseDouble(settings.getProperty(SETTING_SPOT_SIGMA, "" + spotSigma).trim()),
+                Double.parseDouble(settings.getProperty(SETTING_AMPLITUDE, "" + spotAmplitude).trim()));
+        setBackground(Double.parseDouble(settings.getProperty(SETTING_BACKGROUND, "" + background).trim()),
+                Double.parseDouble(settings.getProperty(SETTING_NOISE, "" + noise).trim()));
+        setChromaticOffset(Double.parseDouble(settings.getProperty(SETTING_OFFSET_X, "" + chromaticOffsetX).trim()),
+                Double.parseDouble(settings.getProperty(SETTING_OFFSET_Y, "" + chromaticOffsetY).trim()));
+        setPixelWidth(Double.parseDouble(settings.getProperty(SETTING_PIXEL_WIDTH, "" + pixelWidth).trim()));
+        setRoiLayout(settings.getProperty(SETTING_ROI_LAYOUT, roiLayout).trim());
+        setSeed(Long.parseLong(settings.getProperty(SETTING_SEED, "" + seed).trim()));
+    }
+
+    /**
+     * @param settings the settings the plate is generated with are added to
+     * this, along with the chromatic correction settings which undo the
+     * chromatic offset.
+     */
+    public void saveSettings( Properties settings ) {
+        settings.setProperty(SETTING_IMAGES, "" + nImages);
+        settings.setProperty(SETTING_WIDTH, "" + width);
+        settings.setProperty(SETTING_HEIGHT, "" + height);
+        settings.setProperty(SETTING_CHANNELS, "" + nChannels);
+        settings.setProperty(SETTING_FRAMES, "" + nFrames);
+        settings.setProperty(SETTING_CELLS, "" + cellsPerImage);
+        settings.setProperty(SETTING_SPOTS, "" + spotsPerCell);
+        settings.setProperty(SETTING_COLOCALISED, "" + colocalisedFraction);
+        settings.setProperty(SETTING_SPOT_SIGMA, "" + spotSigma);
+        settings.setProperty(SETTING_AMPLITUDE, "" + spotAmplitude);
+        settings.setProperty(SETTING_BACKGROUND, "" + background);
+        settings.setProperty(SETTING_NOISE, "" + noise);
+        settings.setProperty(SETTING_OFFSET_X, "" + chromaticOffsetX);
+        settings.setProperty(SETTING_OFFSET_Y, "" + chromaticOffsetY);
+        settings.setProperty(SETTING_PIXEL_WIDTH, "" + pixelWidth);
+        settings.setProperty(SETTING_ROI_LAYOUT, roiLayout);
+        settings.setProperty(SETTING_SEED, "" + seed);
+        // the correction is in the calibrated units and moves the channels back.
+        settings.setProperty(ChromaticCorrection2Dprocessor.SETTING_SHIFT_X, "" + (-chromaticOffsetX * pixelWidth));
+        settings.setProperty(ChromaticCorrection2Dprocessor.SETTING_SHIFT_Y, "" + (-chromaticOffsetY * pixelWidth));
+    }
+
+    /**
+     * Writes the plate.
+     *
+     * @param directory the folder the images, ROIs, ground truth and settings
+     * are written to.
+     * @throws IOException if any of the files could not be written.
+     */
+    public void generate( String directory ) throws IOException {
+        File dir = new File(directory);
+        dir.mkdirs();
+        Random random = new Random(seed);
+        int nDigits = Integer.toString(nImages - 1).length();
+
+        try (PrintWriter truth = new PrintWriter(new File(dir, GROUND_TRUTH_NAME), "UTF-8")) {
+            truth.println("Image,Frame,Cell,Channel,Spot,X_pix,Y_pix,X_image_pix,Y_image_pix,Colocalised_with");
+            for (int i = 0; i < nImages; i++) {
+                String name = String.format("plate_%0" + nDigits + "d.tif", i);
+                ArrayList<PolygonRoi> cells = createCells();
+                ArrayList<Spot> spots = createSpots(cells, random);
+
+                ImageStack stack = new ImageStack(width, height);
+                for (int t = 0; t < nFrames; t++) {
+                    for (int c = 0; c < nChannels; c++) {
+                        stack.addSlice(renderChannel(spots, c, random));
+                    }
+                }
+                ImagePlus imp = new ImagePlus(name, stack);
+                imp.setDimensions(nChannels, 1, nFrames);
+                Calibration cal = imp.getCalibration();
+                cal.pixelWidth = pixelWidth;
+                cal.pixelHeight = pixelWidth;
+                cal.setUnit("micron");
+                if (nChannels > 1) {
+                    imp = new CompositeImage(imp, CompositeImage.COLOR);
+                }
+                if (!IJ.saveAsTiff(imp, new File(dir, name).getPath())) {
+                    throw new IOException("Could not write " + name);
+                }
+                writeRois(dir, name, cells);
+
+                for (int t = 1; t <= nFrames; t++) {
+                    for (Spot s : spots) {
+                        truth.println(name + "," + t + "," + (s.cell + 1) + "," + (s.channel + 1) + "," + s.id + ","
+                                + format(s.x) + "," + format(s.y) + ","
+                                + format(s.x + offsetX(s.channel)) + "," + format(s.y + offsetY(s.channel)) + ","
+                                + s.colocalisedWith);
+                    }
+                }
+                IJ.log("Written " + name + " (" + (i + 1) + "/" + nImages + ")");
+            }
+        }
+
+        Properties settings = new Properties();
+        saveSettings(settings);
+        ProcessorSettingsIO.saveSettings(settings, new File(dir, PLATE_SETTINGS_NAME).getPath(), "Synthetic plate");
+    }
+
+    /**
+     * @return the outlines of the cells, a grid of circles, or a single
+     * circle for the single ROI layout.
+     */
+    private ArrayList<PolygonRoi> createCells() {
+        int n = roiLayout.equals(ROI_LAYOUT_SINGLE) ? 1 : cellsPerImage;
+        int cols = (int) Math.ceil(Math.sqrt(n));
+        int rows = (int) Math.ceil(n / (double) cols);
+        int cellW = width / cols;
+        int cellH = height / rows;
+        // a small gap between the cells.
+        int margin = Math.max(1, Math.min(cellW, cellH) / 16);
+        ArrayList<PolygonRoi> cells = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) {
+            int x0 = (k % cols) * cellW;
+            int y0 = (k / cols) * cellH;
+            OvalRoi oval = new OvalRoi(x0 + margin, y0 + margin, cellW - 2 * margin, cellH - 2 * margin);
+            PolygonRoi roi = new PolygonRoi(oval.getPolygon(), Roi.POLYGON);
+            roi.setPosition(1, 1, 1);
+            cells.add(roi);
+        }
+        return cells;
+    }
+
+    /**
+     * Places the spots of every channel within the cells, far enough from the
+     * edges that none of a spot, or of its displaced copy, is cut off.
+     */
+    private ArrayList<Spot> createSpots( ArrayList<PolygonRoi> cells, Random random ) {
+        ArrayList<Spot> spots = new ArrayList<>();
+        double edge = 3 * spotSigma + Math.max(Math.abs(chromaticOffsetX), Math.abs(chromaticOffsetY)) + 1;
+        for (int k = 0; k < cells.size(); k++) {
+            PolygonRoi cell = cells.get(k);
+            ArrayList<Spot> reference = new ArrayList<>();
+            for (int c = 0; c < nChannels; c++) {
+                for (int s = 0; s < spotsPerCell; s++) {
+                    Spot spot;
+                    if (c > 0 && !reference.isEmpty() && random.nextDouble() < colocalisedFraction) {
+                        Spot ref = reference.get(random.nextInt(reference.size()));
+                        spot = new Spot(k, c, s + 1, ref.x, ref.y, ref.id);
+                    } else {
+                        double[] p = randomPointInside(cell, edge, random);
+                        if (p == null) {
+                            break;
+                        }
+                        spot = new Spot(k, c, s + 1, p[0], p[1], 0);
+                    }
+                    spots.add(spot);
+                    if (c == 0) {
+                        reference.add(spot);
+                    }
+                }
+            }
+        }
+        return spots;
+    }
+
+    /**
+     * @return a random point inside the cell at least the distance from its
+     * edge, or null if one could not be found.
+     */
+    private static double[] randomPointInside( PolygonRoi cell, double edge, Random random ) {
+        java.awt.Rectangle b = cell.getBounds();
+        for (int attempt = 0; attempt < 1000; attempt++) {
+            double x = b.x + random.nextDouble() * b.width;
+            double y = b.y + random.nextDouble() * b.height;
+            if (inside(cell, x, y) && inside(cell, x - edge, y) && inside(cell, x + edge, y)
+                    && inside(cell, x, y - edge) && inside(cell, x, y + edge)) {
+                return new double[]{x, y};
+            }
+        }
+        return null;
+    }
+
+    private static boolean inside( PolygonRoi cell, double x, double y ) {
+        return cell.contains((int) Math.floor(x), (int) Math.floor(y));
+    }
+
+    /**
+     * Draws the spots of a channel on a noisy background.
+     */
+    private ShortProcessor renderChannel( ArrayList<Spot> spots, int channel, Random random ) {
+        float[] values = new float[width * height];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) (background + random.nextGaussian() * noise);
+        }
+        int r = (int) Math.ceil(4 * spotSigma);
+        double twoSigmaSq = 2 * spotSigma * spotSigma;
+        for (Spot s : spots) {
+            if (s.channel != channel) {
+                continue;
+            }
+            double cx = s.x + offsetX(channel);
+            double cy = s.y + offsetY(channel);
+            for (int y = Math.max(0, (int) cy - r); y <= Math.min(height - 1, (int) cy + r); y++) {
+                for (int x = Math.max(0, (int) cx - r); x <= Math.min(width - 1, (int) cx + r); x++) {
+                    // the centre of pixel (x, y) is at (x, y), as the spot
+                    // detectors give the centre of mass of the pixel indices.
+                    double d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                    values[y * width + x] += spotAmplitude * Math.exp(-d2 / twoSigmaSq);
+                }
+            }
+        }
+        ShortProcessor sp = new ShortProcessor(width, height);
+        for (int i = 0; i < values.length; i++) {
+            sp.set(i, Math.max(0, Math.min(65535, Math.round(values[i]))));
+        }
+        return sp;
+    }
+
+    /**
+     * Writes the ROIs of the cells of an image in the chosen layout.
+     */
+    private void writeRois( File dir, String imageName, ArrayList<PolygonRoi> cells ) throws IOException {
+        if (roiLayout.equals(ROI_LAYOUT_SINGLE)) {
+            File roiDir = new File(dir, CellFeatureAnalyser_.ROI_FOLDER_NAME);
+            roiDir.mkdirs();
+            save(cells.get(0), new File(roiDir, imageName + ".roi"));
+        } else if (roiLayout.equals(ROI_LAYOUT_PER_IMAGE)) {
+            File roiDir = new File(new File(dir, ROIdrawAndSave2_.ROI_FOLDER_NAME), imageName);
+            roiDir.mkdirs();
+            // zero padded, as the files are read in name order.
+            int nDigits = Integer.toString(cells.size() - 1).length();
+            for (int k = 0; k < cells.size(); k++) {
+                save(cells.get(k), new File(roiDir, String.format("roi_%0" + nDigits + "d.roi", k)));
+            }
+        }
+    }
+
+    private static void save( Roi roi, File f ) throws IOException {
+        if (!RoiEncoder.save(roi, f.getPath())) {
+            throw new IOException("Could not write " + f);
+        }
+    }
+
+    private double offsetX( int channel ) {
+        return channel == 0 ? 0 : chromaticOffsetX;
+    }
+
+    private double offsetY( int channel ) {
+        return channel == 0 ? 0 : chromaticOffsetY;
+    }
+
+    private static String format( double d ) {
+        return String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    /**
+     * A spot at its true position, before the chromatic offset.
+     */
+    private static class Spot {
+
+        final int cell, channel, id;
+
+        final double x, y;
+
+        /**
+         * The ID of the spot of the first channel at the same true position,
+         * or 0.
+         */
+        final int colocalisedWith;
+
+        Spot( int cell, int channel, int id, double x, double y, int colocalisedWith ) {
+            this.cell = cell;
+            this.channel = channel;
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.colocalisedWith = colocalisedWith;
+        }
+
+    }
+
+    /**
+     * Writes a plate.
+     *
+     * @param args the output folder and, optionally, a settings file.
+     */
+    public static void main( String[] args ) {
+        if (args.length < 1) {
+            System.out.println("Usage: SyntheticPlateGenerator <output folder> [settings file]");
+            System.exit(1);
+        }
+        System.setProperty("java.awt.headless", "true");
+        SyntheticPlateGenerator generator = new SyntheticPlateGenerator();
+        try {
+            if (args.length > 1) {
+                generator.loadSettings(ProcessorSettingsIO.loadSettings(args[1]));
+            }
+            generator.generate(args[0]);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not write the plate: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+}
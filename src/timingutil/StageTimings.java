@@ -0,0 +1,405 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package timingutil;
+
+import featureobjects.Feature;
+import featureobjects.ParentFeature;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records the wall time, number of spots and bytes allocated of each stage of
+ * a run, e.g. each processor on each image and the detection within each
+ * cell, and writes them to a report so that the slow stages and cells can be
+ * found.
+ *
+ * The stages are timed with {@link #start(java.lang.String, java.lang.String, java.lang.String)}
+ * and {@link #stop(timingutil.StageTimings.Timer, long)}, which record into
+ * the current timings set by {@link #setCurrent(timingutil.StageTimings)} and
+ * do nothing whilst there are none, so the code timed does not need to know
+ * whether a report is wanted. The bytes allocated are those of the thread
+ * which timed the stage, so do not include the work it handed to other
+ * threads (e.g. the per-cell detection of the spot detection stage), and are
+ * -1 if the JVM cannot measure them.
+ *
+ * @author mqbssep5
+ */
+public class StageTimings {
+
+    /**
+     * The name of the report files written by default, without the extension.
+     */
+    public static final String REPORT_NAME = "Stage_timings";
+
+    private static volatile StageTimings current;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final ConcurrentLinkedQueue<Record> records = new ConcurrentLinkedQueue<>();
+
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * @param timings the timings the stages are recorded into from now on, or
+     * null to stop recording.
+     */
+    public static void setCurrent( StageTimings timings ) {
+        current = timings;
+    }
+
+    /**
+     * @return the timings the stages are recorded into, or null.
+     */
+    public static StageTimings getCurrent() {
+        return current;
+    }
+
+    /**
+     * Starts timing a stage on the calling thread.
+     *
+     * @param stage the name of the stage.
+     * @param image the name of the image, or an empty string.
+     * @param cell where the cell is, see {@link #describe(featureobjects.ParentFeature)},
+     * or an empty string if the stage is for the whole image.
+     * @return the timer to stop, or null if no timings are being recorded.
+     */
+    public static Timer start( String stage, String image, String cell ) {
+        StageTimings timings = current;
+        if (timings == null) {
+            return null;
+        }
+        return new Timer(timings, stage, image, cell);
+    }
+
+    /**
+     * Stops timing a stage and records it.
+     *
+     * @param timer the timer returned by {@link #start(java.lang.String, java.lang.String, java.lang.String)},
+     * may be null.
+     * @param nSpots the number of spots the stage produced or worked on.
+     */
+    public static void stop( Timer timer, long nSpots ) {
+        stop(timer, nSpots, null);
+    }
+
+    /**
+     * Starts adding up the parts of a stage which are timed separately, e.g.
+     * a processor on each of the frames of an image processed at once, so
+     * that they are recorded as a single stage.
+     *
+     * @param stage the name of the stage.
+     * @param image the name of the image, or an empty string.
+     * @param cell see {@link #start(java.lang.String, java.lang.String, java.lang.String)}.
+     * @return the total to add the parts to, or null if no timings are being
+     * recorded.
+     */
+    public static Total startTotal( String stage, String image, String cell ) {
+        StageTimings timings = current;
+        if (timings == null) {
+            return null;
+        }
+        return new Total(timings, stage, image, cell);
+    }
+
+    /**
+     * Stops timing a part of a stage and adds it to the total of the stage.
+     *
+     * @param timer may be null.
+     * @param nSpots the number of spots the part produced or worked on.
+     * @param total the total of the stage, or null to record the part as a
+     * stage of its own.
+     */
+    public static void stop( Timer timer, long nSpots, Total total ) {
+        if (timer == null) {
+            return;
+        }
+        Record r = timer.stop(nSpots);
+        if (total != null) {
+            total.add(r);
+        } else {
+            timer.timings.records.add(r);
+        }
+    }
+
+    /**
+     * Records the total of a stage once all of its parts have been stopped,
+     * its wall time being the sum of those of its parts.
+     *
+     * @param total may be null.
+     */
+    public static void stop( Total total ) {
+        if (total != null) {
+            total.stop();
+        }
+    }
+
+    /**
+     * @param pf
+     * @return where the cell is in the image, to tell the cells apart in the
+     * report.
+     */
+    public static String describe( ParentFeature pf ) {
+        return "x=" + pf.get_x0() + " y=" + pf.get_y0() + " t=" + pf.getFrame();
+    }
+
+    /**
+     * @param pf
+     * @return the number of {@link Feature}s in all of the channels of the
+     * cell.
+     */
+    public static long countFeatures( ParentFeature pf ) {
+        long n = 0;
+        for (int c = 0; c < pf.getNchannels(); c++) {
+            HashMap<String, ArrayList<Feature>> map = pf.getAllFeaturesForChannel(c);
+            if (map == null) {
+                continue;
+            }
+            for (ArrayList<Feature> features : map.values()) {
+                n += features.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @param features
+     * @return the number of {@link Feature}s in all of the cells.
+     */
+    public static long countFeatures( ArrayList<ParentFeature> features ) {
+        long n = 0;
+        for (ParentFeature pf : features) {
+            n += countFeatures(pf);
+        }
+        return n;
+    }
+
+    /**
+     * Writes every stage recorded to a CSV file and a summary of each kind of
+     * stage to a JSON file.
+     *
+     * @param directory the folder the files are written to.
+     * @param name the name of the files, without the extension.
+     * @throws IOException if they could not be written.
+     */
+    public void writeReport( String directory, String name ) throws IOException {
+        ArrayList<Record> all = new ArrayList<>(records);
+
+        try (PrintWriter out = new PrintWriter(new File(directory, name + ".csv"), "UTF-8")) {
+            out.println("Stage,Image,Cell,Thread,Wall_ms,Spots,Spots_per_s,Allocated_bytes");
+            for (Record r : all) {
+                out.println(csv(r.stage) + "," + csv(r.image) + "," + csv(r.cell) + "," + csv(r.thread) + ","
+                        + format(r.wallNanos / 1e6) + "," + r.nSpots + "," + format(spotsPerSecond(r.nSpots, r.wallNanos)) + ","
+                        + r.allocatedBytes);
+            }
+        }
+
+        // summarise each stage, in the order they were first recorded.
+        LinkedHashMap<String, Summary> summaries = new LinkedHashMap<>();
+        for (Record r : all) {
+            Summary s = summaries.get(r.stage);
+            if (s == null) {
+                s = new Summary();
+                summaries.put(r.stage, s);
+            }
+            s.add(r);
+        }
+        try (PrintWriter out = new PrintWriter(new File(directory, name + ".json"), "UTF-8")) {
+            out.println("{");
+            out.println("  \"runWallMs\": " + (System.currentTimeMillis() - startTime) + ",");
+            out.println("  \"stages\": [");
+            int i = 0;
+            for (String stage : summaries.keySet()) {
+                Summary s = summaries.get(stage);
+                out.println("    {");
+                out.println("      \"stage\": " + quote(stage) + ",");
+                out.println("      \"count\": " + s.count + ",");
+                out.println("      \"totalMs\": " + format(s.wallNanos / 1e6) + ",");
+                out.println("      \"meanMs\": " + format(s.wallNanos / 1e6 / s.count) + ",");
+                out.println("      \"maxMs\": " + format(s.slowest.wallNanos / 1e6) + ",");
+                out.println("      \"slowestImage\": " + quote(s.slowest.image) + ",");
+                out.println("      \"slowestCell\": " + quote(s.slowest.cell) + ",");
+                out.println("      \"spots\": " + s.nSpots + ",");
+                out.println("      \"spotsPerSecond\": " + format(spotsPerSecond(s.nSpots, s.wallNanos)) + ",");
+                out.println("      \"allocatedBytes\": " + s.allocatedBytes);
+                out.println(++i < summaries.size() ? "    }," : "    }");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    private static double spotsPerSecond( long nSpots, long wallNanos ) {
+        return wallNanos > 0 ? nSpots / (wallNanos / 1e9) : 0;
+    }
+
+    private static String format( double d ) {
+        return String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    /**
+     * @return the field quoted, with its quotes doubled, if it contains a
+     * comma, quote or line break, as image names may.
+     */
+    private static String csv( String s ) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String quote( String s ) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * @return the bytes allocated by the calling thread so far, or -1 if they
+     * cannot be measured.
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Times a single stage, see {@link StageTimings#start(java.lang.String, java.lang.String, java.lang.String)}.
+     */
+    public static class Timer {
+
+        private final StageTimings timings;
+
+        private final String stage;
+
+        private final String image;
+
+        private final String cell;
+
+        private final long startNanos;
+
+        private final long startBytes;
+
+        private Timer( StageTimings timings, String stage, String image, String cell ) {
+            this.timings = timings;
+            this.stage = stage;
+            this.image = image;
+            this.cell = cell;
+            this.startBytes = allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        private Record stop( long nSpots ) {
+            long wall = System.nanoTime() - startNanos;
+            long bytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+            return new Record(stage, image, cell, Thread.currentThread().getName(), wall, nSpots, bytes);
+        }
+
+    }
+
+    /**
+     * The total of the parts of a stage, see {@link StageTimings#startTotal(java.lang.String, java.lang.String, java.lang.String)}.
+     */
+    public static class Total {
+
+        private final StageTimings timings;
+
+        private final String stage;
+
+        private final String image;
+
+        private final String cell;
+
+        private final Summary parts = new Summary();
+
+        private Total( StageTimings timings, String stage, String image, String cell ) {
+            this.timings = timings;
+            this.stage = stage;
+            this.image = image;
+            this.cell = cell;
+        }
+
+        private synchronized void add( Record r ) {
+            parts.add(r);
+        }
+
+        private synchronized void stop() {
+            if (parts.count > 0) {
+                timings.records.add(new Record(stage, image, cell, Thread.currentThread().getName(), parts.wallNanos, parts.nSpots, parts.allocatedBytes));
+            }
+        }
+
+    }
+
+    /**
+     * A single timed stage.
+     */
+    private static class Record {
+
+        final String stage, image, cell, thread;
+
+        final long wallNanos, nSpots, allocatedBytes;
+
+        Record( String stage, String image, String cell, String thread, long wallNanos, long nSpots, long allocatedBytes ) {
+            this.stage = stage;
+            this.image = image;
+            this.cell = cell;
+            this.thread = thread;
+            this.wallNanos = wallNanos;
+            this.nSpots = nSpots;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+    }
+
+    /**
+     * The totals of all of the records of a stage.
+     */
+    private static class Summary {
+
+        int count;
+
+        long wallNanos, nSpots, allocatedBytes;
+
+        Record slowest;
+
+        void add( Record r ) {
+            count++;
+            wallNanos += r.wallNanos;
+            nSpots += r.nSpots;
+            if (r.allocatedBytes >= 0 && allocatedBytes >= 0) {
+                allocatedBytes += r.allocatedBytes;
+            } else {
+                allocatedBytes = -1;
+            }
+            if (slowest == null || r.wallNanos > slowest.wallNanos) {
+                slowest = r;
+            }
+        }
+
+    }
+
+}
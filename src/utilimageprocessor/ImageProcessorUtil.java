@@ -18,6 +18,7 @@ package utilimageprocessor;
 import ij.plugin.filter.Convolver;
 import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.RankFilters;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
@@ -260,13 +261,31 @@ public class ImageProcessorUtil {
 
     /**
      * Applies a Gaussian filter to the image with the defined sigma and then
-     * filters the image with the 3 by 3 Laplacian filter.
+     * filters the image with the 3 by 3 Laplacian filter. 32 bit images are
+     * filtered in place by the {@link LoGEngine}.
      *
      * @param ip
      * @param sigma
      */
     public static void LaplacianOfGaussianFilter(ImageProcessor ip, float sigma) {
 
+        if (ip instanceof FloatProcessor && LoGEngine.isSupported(sigma)) {
+            float[] pixels = (float[]) ip.getPixels();
+            LoGEngine.get(sigma, 0, LoGEngine.ACCURACY).process(pixels, ip.getWidth(), ip.getHeight(), Float.NEGATIVE_INFINITY, pixels, null);
+            return;
+        }
+        laplacianOfGaussianImageJ(ip, sigma);
+    }
+
+    /**
+     * The Laplacian of Gaussian by the ImageJ filters, which the 
+     * {@link LoGEngine} falls back to for large sigmas. 
+     *
+     * @param ip
+     * @param sigma
+     */
+    static void laplacianOfGaussianImageJ(ImageProcessor ip, float sigma) {
+
         GaussianBlur gb = new GaussianBlur();
         gb.blurGaussian(ip, sigma);
 
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utilimageprocessor;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+
+/**
+ * Laplacian of Gaussian filtering of 32 bit pixel arrays, which gives the same
+ * values as {@link ImageProcessorUtil#LaplacianOfGaussianFilter(ij.process.ImageProcessor, float)}
+ * did with the ImageJ {@link GaussianBlur} and {@link ij.plugin.filter.Convolver},
+ * but without their copies of the image and of every line.
+ *
+ * The Gaussian is applied as two one dimensional kernels, those of the
+ * {@link GaussianBlur}, with the same sums in the same order so that the
+ * values are identical. The image is read once, each row being blurred for
+ * both the LoG and the smoothed intensity image, and the columns are then
+ * blurred a row at a time, with the 3 by 3 Laplacian and the threshold
+ * applied to each row as soon as its neighbours have been blurred. The buffers in between are
+ * kept and reused for the next image, so an engine must only be used by one
+ * thread at a time, see {@link #get(double, double, double)}. Buffers larger
+ * than {@link #MAX_KEPT_PIXELS}, e.g. those of a whole frame, are dropped once
+ * the image has been filtered, so that each thread only keeps those of crops.
+ *
+ * Above {@link #MAX_SIGMA} the {@link GaussianBlur} blurs a smaller copy of
+ * the image, which is not done here, so the ImageJ filters are used instead.
+ *
+ * @author mqbssep5
+ */
+public final class LoGEngine {
+
+    /**
+     * The accuracy the {@link GaussianBlur} uses for 32 and 16 bit images.
+     */
+    public static final double ACCURACY = 0.0002;
+
+    /**
+     * The accuracy the {@link GaussianBlur} uses for 8 bit images.
+     */
+    public static final double ACCURACY_8BIT = 0.002;
+
+    /**
+     * The largest sigma which is filtered by the engine rather than by the
+     * ImageJ filters.
+     */
+    public static final double MAX_SIGMA = 8.5;
+
+    /**
+     * The largest image, in pixels, whose buffers are kept for the next image,
+     * about 12 MB per thread.
+     */
+    public static final int MAX_KEPT_PIXELS = 1 << 20;
+
+    private static final float[] EMPTY = new float[0];
+
+    /**
+     * The 3 by 3 Laplacian, as applied by
+     * {@link ImageProcessorUtil#LaplacianOfGaussianFilter(ij.process.ImageProcessor, float)}.
+     */
+    private static final float[] LAPLACIAN = new float[]{1f, 1f, 1f,
+        1f, -8f, 1f,
+        1f, 1f, 1f};
+
+    private static final ThreadLocal<LoGEngine> ENGINES = new ThreadLocal<>();
+
+    private final double logSigma;
+
+    private final double smoothSigma;
+
+    private final double smoothAccuracy;
+
+    private final float[][] logKernel;
+
+    private final float[][] smoothKernel;
+
+    /**
+     * The rows blurred for the LoG and for the smoothed image, and the
+     * blurred image the Laplacian is taken of.
+     */
+    private float[] rowsLoG = EMPTY, rowsSmooth = EMPTY, blurred = EMPTY;
+
+    /**
+     * @param logSigma the standard deviation of the Gaussian of the LoG.
+     * @param smoothSigma the standard deviation of the Gaussian of the smoothed
+     * intensity image, or zero if it is not needed.
+     * @param smoothAccuracy the accuracy of the Gaussian of the smoothed image,
+     * {@link #ACCURACY} or {@link #ACCURACY_8BIT} to match the blur of an 8
+     * bit image.
+     */
+    public LoGEngine( double logSigma, double smoothSigma, double smoothAccuracy ) {
+        this.logSigma = logSigma;
+        this.smoothSigma = smoothSigma;
+        this.smoothAccuracy = smoothAccuracy;
+        logKernel = makeKernel(logSigma, ACCURACY);
+        smoothKernel = makeKernel(smoothSigma, smoothAccuracy);
+    }
+
+    /**
+     * @param logSigma
+     * @param smoothSigma
+     * @param smoothAccuracy
+     * @return the engine of the calling thread for the sigmas, which is reused
+     * for as long as the thread asks for the same sigmas.
+     */
+    public static LoGEngine get( double logSigma, double smoothSigma, double smoothAccuracy ) {
+        LoGEngine engine = ENGINES.get();
+        if (engine == null || engine.logSigma != logSigma || engine.smoothSigma != smoothSigma || engine.smoothAccuracy != smoothAccuracy) {
+            engine = new LoGEngine(logSigma, smoothSigma, smoothAccuracy);
+            ENGINES.set(engine);
+        }
+        return engine;
+    }
+
+    /**
+     * @param sigma
+     * @return true if the Gaussian is applied by the engine itself.
+     */
+    public static boolean isSupported( double sigma ) {
+        return sigma > 0 && sigma <= MAX_SIGMA;
+    }
+
+    /**
+     * @param sigma
+     * @param accuracy
+     * @return the kernel of the {@link GaussianBlur}, which is the same for
+     * every line up to {@link #MAX_SIGMA}, or null if not supported.
+     */
+    private static float[][] makeKernel( double sigma, double accuracy ) {
+        if (!isSupported(sigma)) {
+            return null;
+        }
+        return new GaussianBlur().makeGaussianKernel(sigma, accuracy, 0);
+    }
+
+    /**
+     * Filters the image with the Laplacian of Gaussian, inverted so that
+     * spots are positive, and blurs it for the smoothed intensity image.
+     *
+     * @param pixels the image, row by row, which is not changed.
+     * @param width
+     * @param height
+     * @param threshold values of the LoG not above the threshold are set to
+     * zero, {@link Float#NEGATIVE_INFINITY} to keep them all.
+     * @param log the LoG of the image, of at least width * height, which may be
+     * the pixels themselves.
+     * @param smoothed the smoothed image, of at least width * height, or null
+     * if not needed.
+     */
+    public void process( float[] pixels, int width, int height, float threshold, float[] log, float[] smoothed ) {
+        int n = width * height;
+        if (n == 0) {
+            return;
+        }
+        if (smoothed != null && (smoothKernel == null || logKernel == null)) {
+            // before the pixels are replaced by the LoG.
+            blur(pixels, width, height, smoothSigma, smoothAccuracy, smoothed);
+        }
+        if (logKernel == null) {
+            logImageJ(pixels, width, height, threshold, log);
+            return;
+        }
+        boolean smooth = smoothed != null && smoothKernel != null;
+        if (rowsLoG.length < n) {
+            rowsLoG = new float[n];
+            blurred = new float[n];
+        }
+        if (smooth && rowsSmooth.length < n) {
+            rowsSmooth = new float[n];
+        }
+        // each row is read once for both of the blurs.
+        for (int y = 0; y < height; y++) {
+            convolveRow(pixels, y * width, width, rowsLoG, logKernel);
+            if (smooth) {
+                convolveRow(pixels, y * width, width, rowsSmooth, smoothKernel);
+            }
+        }
+        // then down the columns, a row at a time, the Laplacian of each row
+        // being taken once the next has been blurred.
+        for (int y = 0; y < height; y++) {
+            convolveColumns(rowsLoG, width, height, y, blurred, logKernel);
+            if (smooth) {
+                convolveColumns(rowsSmooth, width, height, y, smoothed, smoothKernel);
+            }
+            if (y > 0) {
+                laplacianRow(blurred, width, height, y - 1, threshold, log);
+            }
+        }
+        laplacianRow(blurred, width, height, height - 1, threshold, log);
+        trimBuffers();
+    }
+
+    /**
+     * Blurs the image with the Gaussian, as {@link GaussianBlur#blurGaussian(ij.process.ImageProcessor, double, double, double)}.
+     *
+     * @param pixels the image, row by row, which is not changed.
+     * @param width
+     * @param height
+     * @param sigma
+     * @param accuracy
+     * @param out the blurred image, of at least width * height.
+     */
+    public void blur( float[] pixels, int width, int height, double sigma, double accuracy, float[] out ) {
+        float[][] kernel = sigma == logSigma && accuracy == ACCURACY ? logKernel
+                : sigma == smoothSigma && accuracy == smoothAccuracy ? smoothKernel
+                        : makeKernel(sigma, accuracy);
+        if (width * height == 0) {
+            return;
+        }
+        if (kernel == null) {
+            blurImageJ(pixels, width, height, sigma, accuracy, out);
+        } else {
+            blur(pixels, width, height, kernel, out);
+        }
+    }
+
+    private void blur( float[] pixels, int width, int height, float[][] kernel, float[] out ) {
+        int n = width * height;
+        if (rowsSmooth.length < n) {
+            rowsSmooth = new float[n];
+        }
+        for (int y = 0; y < height; y++) {
+            convolveRow(pixels, y * width, width, rowsSmooth, kernel);
+        }
+        for (int y = 0; y < height; y++) {
+            convolveColumns(rowsSmooth, width, height, y, out, kernel);
+        }
+        trimBuffers();
+    }
+
+    /**
+     * Drops the buffers larger than {@link #MAX_KEPT_PIXELS}.
+     */
+    private void trimBuffers() {
+        if (rowsLoG.length > MAX_KEPT_PIXELS) {
+            rowsLoG = EMPTY;
+            blurred = EMPTY;
+        }
+        if (rowsSmooth.length > MAX_KEPT_PIXELS) {
+            rowsSmooth = EMPTY;
+        }
+    }
+
+    /**
+     * Convolves a row with the kernel, as the GaussianBlur does, the values
+     * beyond the ends of the row being those at the ends. The inside of the
+     * row is summed one kernel element at a time over all of its pixels, which
+     * adds the terms of each pixel in the same order as the GaussianBlur.
+     *
+     * @param in
+     * @param offset index of the first pixel of the row, in and out.
+     * @param length
+     * @param out
+     * @param kernel the kernel and its running sum.
+     */
+    private static void convolveRow( float[] in, int offset, int length, float[] out, float[][] kernel ) {
+        final float first = in[offset];
+        final float last = in[offset + length - 1];
+        final float[] kern = kernel[0];
+        final float[] kernSum = kernel[1];
+        final int kRadius = kern.length;
+        final int firstPart = kRadius < length ? kRadius : length;
+        final int iEndInside = length - kRadius;
+        for (int i = 0; i < firstPart; i++) {
+            float result = in[offset + i] * kern[0];
+            result += kernSum[i] * first;
+            if (i + kRadius > length) {
+                result += kernSum[length - i - 1] * last;
+            }
+            out[offset + i] = addNeighbours(in, offset + i, i, length, kern, result);
+        }
+        if (iEndInside > firstPart) {
+            final int start = offset + firstPart;
+            final int end = offset + iEndInside;
+            final float kern0 = kern[0];
+            for (int c = start; c < end; c++) {
+                out[c] = in[c] * kern0;
+            }
+            for (int k = 1; k < kRadius; k++) {
+                final float kk = kern[k];
+                for (int c = start; c < end; c++) {
+                    out[c] += kk * (in[c - k] + in[c + k]);
+                }
+            }
+        }
+        for (int i = Math.max(firstPart, iEndInside); i < length; i++) {
+            float result = in[offset + i] * kern[0];
+            if (i < kRadius) {
+                result += kernSum[i] * first;
+            }
+            if (i + kRadius >= length) {
+                result += kernSum[length - i - 1] * last;
+            }
+            out[offset + i] = addNeighbours(in, offset + i, i, length, kern, result);
+        }
+    }
+
+    /**
+     * Adds the neighbours within the row to a value near the ends of the row.
+     */
+    private static float addNeighbours( float[] in, int c, int i, int length, float[] kern, float result ) {
+        for (int k = 1; k < kern.length; k++) {
+            float v = 0;
+            if (i - k >= 0) {
+                v += in[c - k];
+            }
+            if (i + k < length) {
+                v += in[c + k];
+            }
+            result += kern[k] * v;
+        }
+        return result;
+    }
+
+    /**
+     * Convolves every column of the image with the kernel at one row, as the
+     * GaussianBlur does, the values beyond the top and bottom being those of
+     * the first and last rows. The rows are read in order rather than a column
+     * at a time, but the terms of each pixel are added in the same order.
+     *
+     * @param in
+     * @param width
+     * @param height
+     * @param y the row to find.
+     * @param out
+     * @param kernel the kernel and its running sum.
+     */
+    private static void convolveColumns( float[] in, int width, int height, int y, float[] out, float[][] kernel ) {
+        final float[] kern = kernel[0];
+        final float[] kernSum = kernel[1];
+        final int kRadius = kern.length;
+        final int firstPart = kRadius < height ? kRadius : height;
+        final int iEndInside = height - kRadius;
+        final int row = y * width;
+        final float kern0 = kern[0];
+        for (int x = 0; x < width; x++) {
+            out[row + x] = in[row + x] * kern0;
+        }
+        if (y >= firstPart && y < iEndInside) {
+            for (int k = 1; k < kRadius; k++) {
+                final float kk = kern[k];
+                final int above = row - k * width;
+                final int below = row + k * width;
+                for (int x = 0; x < width; x++) {
+                    out[row + x] += kk * (in[above + x] + in[below + x]);
+                }
+            }
+            return;
+        }
+        if (y < kRadius) {
+            final float ks = kernSum[y];
+            for (int x = 0; x < width; x++) {
+                out[row + x] += ks * in[x];
+            }
+        }
+        if (y < firstPart ? y + kRadius > height : y + kRadius >= height) {
+            final float ks = kernSum[height - y - 1];
+            final int lastRow = (height - 1) * width;
+            for (int x = 0; x < width; x++) {
+                out[row + x] += ks * in[lastRow + x];
+            }
+        }
+        for (int k = 1; k < kRadius; k++) {
+            final float kk = kern[k];
+            final boolean hasAbove = y - k >= 0;
+            final boolean hasBelow = y + k < height;
+            final int above = row - k * width;
+            final int below = row + k * width;
+            for (int x = 0; x < width; x++) {
+                float v = 0;
+                if (hasAbove) {
+                    v += in[above + x];
+                }
+                if (hasBelow) {
+                    v += in[below + x];
+                }
+                out[row + x] += kk * v;
+            }
+        }
+    }
+
+    /**
+     * Takes the inverted 3 by 3 Laplacian of a blurred image, as
+     * {@link #process(float[], int, int, float, float[], float[])} does after
+     * the blur, e.g. for each level of a Gaussian scale space.
+     *
+     * @param blurred the blurred image, row by row, which is not changed.
+     * @param width
+     * @param height
+     * @param threshold values not above the threshold are set to zero,
+     * {@link Float#NEGATIVE_INFINITY} to keep them all.
+     * @param log the Laplacian, of at least width * height, which must not be
+     * the blurred image.
+     */
+    public static void laplacian( float[] blurred, int width, int height, float threshold, float[] log ) {
+        for (int y = 0; y < height; y++) {
+            laplacianRow(blurred, width, height, y, threshold, log);
+        }
+    }
+
+    /**
+     * Takes the inverted Laplacian of a row of the blurred image, as the
+     * Convolver does, the pixels beyond the edges being those at the edges,
+     * and thresholds it.
+     */
+    private static void laplacianRow( float[] blurred, int width, int height, int y, float threshold, float[] log ) {
+        int r0 = (y > 0 ? y - 1 : 0) * width;
+        int r1 = y * width;
+        int r2 = (y < height - 1 ? y + 1 : height - 1) * width;
+        for (int x = 0; x < width; x++) {
+            int x0 = x > 0 ? x - 1 : 0;
+            int x2 = x < width - 1 ? x + 1 : width - 1;
+            double sum = 0;
+            sum += blurred[r0 + x0] * LAPLACIAN[0];
+            sum += blurred[r0 + x] * LAPLACIAN[1];
+            sum += blurred[r0 + x2] * LAPLACIAN[2];
+            sum += blurred[r1 + x0] * LAPLACIAN[3];
+            sum += blurred[r1 + x] * LAPLACIAN[4];
+            sum += blurred[r1 + x2] * LAPLACIAN[5];
+            sum += blurred[r2 + x0] * LAPLACIAN[6];
+            sum += blurred[r2 + x] * LAPLACIAN[7];
+            sum += blurred[r2 + x2] * LAPLACIAN[8];
+            float v = -(float) sum;
+            log[r1 + x] = v > threshold ? v : 0f;
+        }
+    }
+
+    /**
+     * The LoG by the ImageJ filters, for sigmas larger than {@link #MAX_SIGMA}.
+     */
+    private void logImageJ( float[] pixels, int width, int height, float threshold, float[] log ) {
+        int n = width * height;
+        FloatProcessor fp = new FloatProcessor(width, height, Arrays.copyOf(pixels, n));
+        ImageProcessorUtil.laplacianOfGaussianImageJ(fp, (float) logSigma);
+        float[] p = (float[]) fp.getPixels();
+        for (int i = 0; i < n; i++) {
+            log[i] = p[i] > threshold ? p[i] : 0f;
+        }
+    }
+
+    private static void blurImageJ( float[] pixels, int width, int height, double sigma, double accuracy, float[] out ) {
+        int n = width * height;
+        System.arraycopy(pixels, 0, out, 0, n);
+        if (sigma > 0) {
+            GaussianBlur gb = new GaussianBlur();
+            gb.showProgress(false);
+            gb.blurGaussian(new FloatProcessor(width, height, out), sigma, sigma, accuracy);
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2018 mqbssep5.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utilimageprocessor;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+
+/**
+ * A read only view of a rectangle of one plane (channel, slice and frame) of
+ * an image, which shares the pixel array of the stack rather than copying it,
+ * e.g. instead of splitting the channels of an image with
+ * {@link ij.plugin.ChannelSplitter} and duplicating the bounds of each cell.
+ *
+ * The pixels of the view are at {@code offset + y * stride + x} in the array
+ * of the plane. The pixels are the raw values of the 8, 16 or 32 bit plane,
+ * without any calibration table. Copies are only made when a processor is
+ * asked for, e.g. by a filter which works in place.
+ *
+ * @author mqbssep5
+ */
+public final class PlaneView {
+
+    private final Object pixels;
+
+    private final int offset;
+
+    private final int stride;
+
+    private final int x;
+
+    private final int y;
+
+    private final int width;
+
+    private final int height;
+
+    private final int channel;
+
+    private final int slice;
+
+    private final int frame;
+
+    private PlaneView( Object pixels, int offset, int stride, int x, int y, int width, int height, int channel, int slice, int frame ) {
+        this.pixels = pixels;
+        this.offset = offset;
+        this.stride = stride;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.channel = channel;
+        this.slice = slice;
+        this.frame = frame;
+    }
+
+    /**
+     * @param imp
+     * @param channel indexed from 1.
+     * @param slice indexed from 1.
+     * @param frame indexed from 1.
+     * @return a view of the whole of the plane.
+     */
+    public static PlaneView of( ImagePlus imp, int channel, int slice, int frame ) {
+        Object pixels = imp.getStack().getPixels(imp.getStackIndex(channel, slice, frame));
+        return new PlaneView(checkType(pixels), 0, imp.getWidth(), 0, 0, imp.getWidth(), imp.getHeight(), channel, slice, frame);
+    }
+
+    /**
+     * @param ip
+     * @return a view of the whole of the processor, as the first plane.
+     */
+    public static PlaneView of( ImageProcessor ip ) {
+        return new PlaneView(checkType(ip.getPixels()), 0, ip.getWidth(), 0, 0, ip.getWidth(), ip.getHeight(), 1, 1, 1);
+    }
+
+    private static Object checkType( Object pixels ) {
+        if (!(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[])) {
+            throw new IllegalArgumentException("Only 8, 16 and 32 bit images can be viewed");
+        }
+        return pixels;
+    }
+
+    /**
+     * @param r the rectangle, in the coordinates of the plane.
+     * @return a view of the part of this view within the rectangle, sharing
+     * the same pixels.
+     */
+    public PlaneView crop( Rectangle r ) {
+        Rectangle c = r.intersection(new Rectangle(x, y, width, height));
+        if (c.isEmpty()) {
+            c = new Rectangle(x, y, 0, 0);
+        }
+        return new PlaneView(pixels, offset + (c.y - y) * stride + (c.x - x), stride, c.x, c.y, c.width, c.height, channel, slice, frame);
+    }
+
+    /**
+     * @param xv the x coordinate within the view.
+     * @param yv the y coordinate within the view.
+     * @return the value of the pixel, or zero outside of the view, as
+     * {@link ImageProcessor#getPixelValue(int, int)}.
+     */
+    public float getf( int xv, int yv ) {
+        if (xv < 0 || yv < 0 || xv >= width || yv >= height) {
+            return 0f;
+        }
+        int i = offset + yv * stride + xv;
+        if (pixels instanceof short[]) {
+            return ((short[]) pixels)[i] & 0xffff;
+        } else if (pixels instanceof byte[]) {
+            return ((byte[]) pixels)[i] & 0xff;
+        }
+        return ((float[]) pixels)[i];
+    }
+
+    /**
+     * Copies the view into a float array.
+     *
+     * @param out the array the pixels are written to, row by row, of at least
+     * width * height, or null to create one.
+     * @return the array.
+     */
+    public float[] toFloatArray( float[] out ) {
+        if (out == null) {
+            out = new float[width * height];
+        }
+        for (int yv = 0, j = 0; yv < height; yv++) {
+            int i = offset + yv * stride;
+            if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int xv = 0; xv < width; xv++) {
+                    out[j++] = p[i++] & 0xffff;
+                }
+            } else if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int xv = 0; xv < width; xv++) {
+                    out[j++] = p[i++] & 0xff;
+                }
+            } else {
+                System.arraycopy(pixels, i, out, j, width);
+                j += width;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return a copy of the view as 32 bit pixels, at the same position in the
+     * same plane, e.g. to be shared by several processors, see
+     * {@link featureobjects.CropCache}.
+     */
+    public PlaneView toFloatView() {
+        return new PlaneView(toFloatArray(null), 0, width, x, y, width, height, channel, slice, frame);
+    }
+
+    /**
+     * @return a copy of the view as a new float processor.
+     */
+    public FloatProcessor toFloatProcessor() {
+        return new FloatProcessor(width, height, toFloatArray(null));
+    }
+
+    /**
+     * @return a copy of the view as a new processor of the same type as the
+     * plane, as {@link ImageProcessor#crop()}.
+     */
+    public ImageProcessor toProcessor() {
+        if (pixels instanceof float[]) {
+            return toFloatProcessor();
+        }
+        Object copy = pixels instanceof short[] ? new short[width * height] : new byte[width * height];
+        for (int yv = 0; yv < height; yv++) {
+            System.arraycopy(pixels, offset + yv * stride, copy, yv * width, width);
+        }
+        if (copy instanceof short[]) {
+            return new ShortProcessor(width, height, (short[]) copy, null);
+        }
+        return new ByteProcessor(width, height, (byte[]) copy, null);
+    }
+
+    /**
+     * @return the pixel array of the whole plane, which must not be changed.
+     */
+    public Object getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return the index of the first pixel of the view in the array.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of pixels between the rows of the view in the array.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return the x coordinate of the view in the plane.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return the y coordinate of the view in the plane.
+     */
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public int getSlice() {
+        return slice;
+    }
+
+    public int getFrame() {
+        return frame;
+    }
+
+}